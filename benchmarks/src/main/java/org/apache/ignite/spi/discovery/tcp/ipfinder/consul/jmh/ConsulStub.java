@@ -0,0 +1,508 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub of the Consul HTTP API, covering what the Consul IP finder uses: agent service registration,
+ * TTL check updates, health and catalog service reads (including blocking queries) and the leader status.
+ *
+ * The transaction API is answered with 404, which makes the finder fall back to agent registrations.
+ */
+public class ConsulStub {
+    /** Registration ID field, which Consul matches case-insensitively. */
+    private static final Pattern ID = Pattern.compile("\"I[Dd]\"\\s*:\\s*\"([^\"]*)\"");
+
+    /** Registration service name field. */
+    private static final Pattern NAME = Pattern.compile("\"Name\"\\s*:\\s*\"([^\"]*)\"");
+
+    /** Registration address field. */
+    private static final Pattern ADDRESS = Pattern.compile("\"Address\"\\s*:\\s*\"([^\"]*)\"");
+
+    /** Registration port field. */
+    private static final Pattern PORT = Pattern.compile("\"Port\"\\s*:\\s*(\\d+)");
+
+    /** Registration tags field. */
+    private static final Pattern TAGS = Pattern.compile("\"Tags\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+    /** Blocking query wait parameter. */
+    private static final Pattern WAIT = Pattern.compile("(\\d+)(ms|s|m)");
+
+    /** Node all stub instances belong to. */
+    private static final String NODE = "consul-stub";
+
+    /** Instances by ID. */
+    private final Map<String, Instance> instances = new ConcurrentSkipListMap<>();
+
+    /** Injected latency of every request, in milliseconds. */
+    private volatile long latency;
+
+    /** Raft index, incremented on every change. */
+    private long index = 1;
+
+    /** Server. */
+    private HttpServer srv;
+
+    /** Request executor. */
+    private ExecutorService exec;
+
+    /**
+     * Starts the stub on an ephemeral port of the loopback interface.
+     *
+     * @param threads Number of request threads.
+     * @return {@code this} for chaining.
+     * @throws IOException If failed.
+     */
+    public ConsulStub start(int threads) throws IOException {
+        srv = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+
+        exec = Executors.newFixedThreadPool(threads);
+
+        srv.setExecutor(exec);
+
+        srv.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    respond(exchange, 500, "interrupted", -1);
+                }
+                catch (IOException | RuntimeException e) {
+                    respond(exchange, 400, String.valueOf(e), -1);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        srv.start();
+
+        return this;
+    }
+
+    /** Stops the stub. */
+    public void stop() {
+        srv.stop(0);
+
+        exec.shutdownNow();
+    }
+
+    /**
+     * @return Base URL, without the port.
+     */
+    public String address() {
+        return "http://127.0.0.1";
+    }
+
+    /**
+     * @return HTTP port.
+     */
+    public int port() {
+        return srv.getAddress().getPort();
+    }
+
+    /**
+     * @param latency Latency injected into every request, in milliseconds.
+     */
+    public void latency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Registers synthetic instances of a service, one address each.
+     *
+     * @param svc Service name.
+     * @param cnt Number of instances.
+     */
+    public void preload(String svc, int cnt) {
+        for (int i = 0; i < cnt; i++) {
+            String addr = "10." + (i >> 16 & 0xff) + '.' + (i >> 8 & 0xff) + '.' + (i & 0xff);
+
+            put(new Instance("preloaded-" + i, svc, addr, 47500, "[]"));
+        }
+    }
+
+    /**
+     * @return Number of registered instances.
+     */
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * @param exchange Exchange.
+     * @throws IOException If failed.
+     * @throws InterruptedException If interrupted.
+     */
+    private void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+        if (latency > 0)
+            Thread.sleep(latency);
+
+        String path = exchange.getRequestURI().getPath();
+        String qry = exchange.getRequestURI().getRawQuery();
+
+        if (path.startsWith("/v1/health/service/") || path.startsWith("/v1/catalog/service/")) {
+            String svc = decode(path.substring(path.lastIndexOf('/') + 1));
+
+            long idx = awaitChange(param(qry, "index"), param(qry, "wait"));
+
+            respond(exchange, 200, path.startsWith("/v1/health/") ? health(svc) : catalog(svc), idx);
+        }
+        else if (path.equals("/v1/agent/service/register")) {
+            String body = read(exchange.getRequestBody());
+
+            String port = group(PORT, body, "0");
+
+            put(new Instance(group(ID, body, null), group(NAME, body, null), group(ADDRESS, body, ""),
+                Integer.parseInt(port), tags(body)));
+
+            respond(exchange, 200, "", -1);
+        }
+        else if (path.startsWith("/v1/agent/service/deregister/")) {
+            remove(decode(path.substring("/v1/agent/service/deregister/".length())));
+
+            respond(exchange, 200, "", -1);
+        }
+        else if (path.equals("/v1/agent/services"))
+            respond(exchange, 200, agentServices(), -1);
+        else if (path.startsWith("/v1/agent/check/pass/")) {
+            String id = decode(path.substring("/v1/agent/check/pass/".length()));
+
+            if (id.startsWith("service:") && instances.containsKey(id.substring("service:".length())))
+                respond(exchange, 200, "", -1);
+            else
+                respond(exchange, 500, "CheckID \"" + id + "\" does not have associated TTL", -1);
+        }
+        else if (path.equals("/v1/agent/self"))
+            respond(exchange, 200, "{}", -1);
+        else if (path.equals("/v1/status/leader"))
+            respond(exchange, 200, "\"127.0.0.1:8300\"", -1);
+        else
+            respond(exchange, 404, "Unsupported by the stub: " + path, -1);
+    }
+
+    /**
+     * @param inst Instance.
+     */
+    private void put(Instance inst) {
+        instances.put(inst.id, inst);
+
+        changed();
+    }
+
+    /**
+     * @param id Instance ID.
+     */
+    private void remove(String id) {
+        if (instances.remove(id) != null)
+            changed();
+    }
+
+    /** Advances the index and wakes up blocking queries. */
+    private synchronized void changed() {
+        index++;
+
+        notifyAll();
+    }
+
+    /**
+     * Waits like a blocking query would.
+     *
+     * @param idx Index of the query or {@code null}.
+     * @param wait Wait time of the query or {@code null}.
+     * @return Current index.
+     * @throws InterruptedException If interrupted.
+     */
+    private synchronized long awaitChange(String idx, String wait) throws InterruptedException {
+        if (idx != null) {
+            long deadline = System.currentTimeMillis() + waitMillis(wait);
+
+            long since = Long.parseLong(idx);
+
+            for (long rem; index <= since && (rem = deadline - System.currentTimeMillis()) > 0; )
+                wait(rem);
+        }
+
+        return index;
+    }
+
+    /**
+     * @param svc Service name.
+     * @return Health response, including a node and a service check per instance as Consul does.
+     */
+    private String health(String svc) {
+        StringBuilder sb = new StringBuilder(256 * instances.size() + 2).append('[');
+
+        for (Instance inst : instances.values()) {
+            if (!inst.svc.equals(svc))
+                continue;
+
+            if (sb.length() > 1)
+                sb.append(',');
+
+            sb.append("{\"Node\":{\"ID\":\"40e4a748-2192-161a-0510-9bf59fe950b5\",\"Node\":\"").append(NODE)
+                .append("\",\"Address\":\"127.0.0.1\",\"Datacenter\":\"dc1\",")
+                .append("\"TaggedAddresses\":{\"lan\":\"127.0.0.1\",\"wan\":\"127.0.0.1\"},")
+                .append("\"Meta\":{\"consul-network-segment\":\"\"},\"CreateIndex\":5,\"ModifyIndex\":6},")
+                .append("\"Service\":");
+
+            service(sb, inst);
+
+            sb.append(",\"Checks\":[{\"Node\":\"").append(NODE).append("\",\"CheckID\":\"serfHealth\",")
+                .append("\"Name\":\"Serf Health Status\",\"Status\":\"passing\",\"Notes\":\"\",")
+                .append("\"Output\":\"Agent alive and reachable\",\"ServiceID\":\"\",\"ServiceName\":\"\",")
+                .append("\"ServiceTags\":[],\"CreateIndex\":5,\"ModifyIndex\":5}]}");
+        }
+
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @param svc Service name.
+     * @return Catalog response.
+     */
+    private String catalog(String svc) {
+        StringBuilder sb = new StringBuilder(128 * instances.size() + 2).append('[');
+
+        for (Instance inst : instances.values()) {
+            if (!inst.svc.equals(svc))
+                continue;
+
+            if (sb.length() > 1)
+                sb.append(',');
+
+            sb.append("{\"Node\":\"").append(NODE).append("\",\"Address\":\"127.0.0.1\",\"Datacenter\":\"dc1\",")
+                .append("\"ServiceID\":\"").append(inst.id).append("\",\"ServiceName\":\"").append(inst.svc)
+                .append("\",\"ServiceAddress\":\"").append(inst.addr).append("\",\"ServicePort\":")
+                .append(inst.port).append(",\"ServiceTags\":").append(inst.tags).append('}');
+        }
+
+        return sb.append(']').toString();
+    }
+
+    /**
+     * @return Agent services response.
+     */
+    private String agentServices() {
+        StringBuilder sb = new StringBuilder(128 * instances.size() + 2).append('{');
+
+        for (Instance inst : instances.values()) {
+            if (sb.length() > 1)
+                sb.append(',');
+
+            sb.append('"').append(inst.id).append("\":");
+
+            service(sb, inst);
+        }
+
+        return sb.append('}').toString();
+    }
+
+    /**
+     * @param sb Target.
+     * @param inst Instance.
+     */
+    private static void service(StringBuilder sb, Instance inst) {
+        sb.append("{\"ID\":\"").append(inst.id).append("\",\"Service\":\"").append(inst.svc)
+            .append("\",\"Tags\":").append(inst.tags).append(",\"Address\":\"").append(inst.addr)
+            .append("\",\"Port\":").append(inst.port)
+            .append(",\"EnableTagOverride\":false,\"CreateIndex\":7,\"ModifyIndex\":7}");
+    }
+
+    /**
+     * @param exchange Exchange.
+     * @param code Status code.
+     * @param body Body.
+     * @param idx Index to report in {@code X-Consul-Index} or {@code -1}.
+     * @throws IOException If failed.
+     */
+    private static void respond(HttpExchange exchange, int code, String body, long idx) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+
+        if (idx >= 0) {
+            exchange.getResponseHeaders().set("X-Consul-Index", String.valueOf(idx));
+            exchange.getResponseHeaders().set("X-Consul-KnownLeader", "true");
+            exchange.getResponseHeaders().set("X-Consul-LastContact", "0");
+        }
+
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @param body Registration body.
+     * @return Tags as a JSON array.
+     */
+    private static String tags(String body) {
+        Matcher m = TAGS.matcher(body);
+
+        return m.find() ? '[' + m.group(1) + ']' : "[]";
+    }
+
+    /**
+     * @param p Pattern.
+     * @param body Registration body.
+     * @param dflt Default value or {@code null} if the field is mandatory.
+     * @return First group of the first match.
+     * @throws IOException If a mandatory field is missing.
+     */
+    private static String group(Pattern p, String body, String dflt) throws IOException {
+        Matcher m = p.matcher(body);
+
+        if (m.find())
+            return m.group(1);
+
+        if (dflt == null)
+            throw new IOException("Field " + p + " not found in: " + body);
+
+        return dflt;
+    }
+
+    /**
+     * @param qry Raw query string or {@code null}.
+     * @param name Parameter name.
+     * @return Decoded value, empty string for a parameter without value or {@code null} if absent.
+     */
+    private static String param(String qry, String name) {
+        if (qry == null)
+            return null;
+
+        for (String kv : qry.split("&")) {
+            int eq = kv.indexOf('=');
+
+            if ((eq < 0 ? kv : kv.substring(0, eq)).equals(name))
+                return eq < 0 ? "" : decode(kv.substring(eq + 1));
+        }
+
+        return null;
+    }
+
+    /**
+     * @param wait Consul duration, e.g. {@code 5s}, or {@code null}.
+     * @return Duration in milliseconds, 5 minutes by default as in Consul.
+     */
+    private static long waitMillis(String wait) {
+        Matcher m = wait != null ? WAIT.matcher(wait) : null;
+
+        if (m == null || !m.matches())
+            return TimeUnit.MINUTES.toMillis(5);
+
+        long val = Long.parseLong(m.group(1));
+
+        switch (m.group(2)) {
+            case "ms":
+                return val;
+
+            case "s":
+                return TimeUnit.SECONDS.toMillis(val);
+
+            default:
+                return TimeUnit.MINUTES.toMillis(val);
+        }
+    }
+
+    /**
+     * @param s URL-encoded string.
+     * @return Decoded string.
+     */
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param in Stream.
+     * @return Content.
+     * @throws IOException If failed.
+     */
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        byte[] chunk = new byte[4096];
+
+        for (int n; (n = in.read(chunk)) != -1; )
+            buf.write(chunk, 0, n);
+
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Registered service instance.
+     */
+    private static class Instance {
+        /** ID. */
+        final String id;
+
+        /** Service name. */
+        final String svc;
+
+        /** Address. */
+        final String addr;
+
+        /** Port. */
+        final int port;
+
+        /** Tags, as a JSON array. */
+        final String tags;
+
+        /**
+         * @param id ID.
+         * @param svc Service name.
+         * @param addr Address.
+         * @param port Port.
+         * @param tags Tags, as a JSON array.
+         */
+        Instance(String id, String svc, String addr, int port, String tags) {
+            this.id = id;
+            this.svc = svc;
+            this.addr = addr;
+            this.port = port;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * Runs the stub standalone, e.g. to point a test node at it.
+     *
+     * @param args Number of instances to preload, {@code 0} by default.
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        ConsulStub stub = new ConsulStub().start(16);
+
+        stub.preload("ignite", args.length > 0 ? Integer.parseInt(args[0]) : 0);
+
+        System.out.println("Consul stub listening on " + stub.address() + ':' + stub.port());
+    }
+}
@@ -0,0 +1,120 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul.jmh;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ignite.logger.NullLogger;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.consul.TcpDiscoveryConsulIpFinder;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Base class of Consul IP finder benchmarks: starts a {@link ConsulStub} preloaded with {@link #instances}
+ * instances and {@link #latency} milliseconds of latency, and a finder pointing to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public abstract class JmhConsulAbstractBenchmark {
+    /** Service name. */
+    protected static final String SERVICE_NAME = "ignite";
+
+    /** Number of preloaded instances. */
+    @Param({"10", "100", "1000", "10000"})
+    protected int instances;
+
+    /** Latency injected into every Consul request, in milliseconds. */
+    @Param({"0", "5"})
+    protected long latency;
+
+    /** Consul stub. */
+    protected ConsulStub consul;
+
+    /** IP finder. */
+    protected TcpDiscoveryConsulIpFinder finder;
+
+    /**
+     * Starts the stub and the finder.
+     *
+     * @throws Exception If failed.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        consul = new ConsulStub().start(Runtime.getRuntime().availableProcessors() * 2);
+
+        consul.preload(SERVICE_NAME, instances);
+
+        finder = new TcpDiscoveryConsulIpFinder();
+
+        finder.setConsulAddres(consul.address());
+        finder.setConsulPort(consul.port());
+
+        configure(finder);
+
+        // Normally injected by the discovery SPI.
+        Field log = TcpDiscoveryConsulIpFinder.class.getDeclaredField("log");
+
+        log.setAccessible(true);
+        log.set(finder, new NullLogger());
+
+        // Initializes the finder outside of the measurement.
+        finder.getRegisteredAddresses();
+
+        consul.latency(latency);
+    }
+
+    /**
+     * Stops the finder and the stub.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        consul.latency(0);
+
+        finder.onSpiContextDestroyed();
+
+        consul.stop();
+    }
+
+    /**
+     * Applies benchmark specific settings to the finder.
+     *
+     * @param finder Finder.
+     */
+    protected void configure(TcpDiscoveryConsulIpFinder finder) {
+        // No-op.
+    }
+
+    /**
+     * Runs a benchmark class with the GC profiler, which reports the allocation rate.
+     *
+     * @param cls Benchmark class.
+     * @param threads Number of benchmark threads.
+     * @throws Exception If failed.
+     */
+    protected static void run(Class<?> cls, int threads) throws Exception {
+        Options opts = new OptionsBuilder()
+            .include(cls.getSimpleName())
+            .threads(threads)
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,40 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul.jmh;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+import org.apache.ignite.spi.discovery.tcp.ipfinder.consul.TcpDiscoveryConsulIpFinder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmark of {@link TcpDiscoveryConsulIpFinder#getRegisteredAddresses()}.
+ */
+public class JmhConsulLookupBenchmark extends JmhConsulAbstractBenchmark {
+    /** Whether lookups are lean. */
+    @Param({"false", "true"})
+    private boolean lean;
+
+    /** {@inheritDoc} */
+    @Override protected void configure(TcpDiscoveryConsulIpFinder finder) {
+        finder.setLeanLookups(lean);
+    }
+
+    /**
+     * @return Registered addresses.
+     */
+    @Benchmark
+    public Collection<InetSocketAddress> getRegisteredAddresses() {
+        return finder.getRegisteredAddresses();
+    }
+
+    /**
+     * Run benchmarks.
+     *
+     * @param args Arguments.
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        run(JmhConsulLookupBenchmark.class, 4);
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul.jmh;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ignite.spi.discovery.tcp.ipfinder.consul.TcpDiscoveryConsulIpFinder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark of {@link TcpDiscoveryConsulIpFinder#registerAddresses(Collection)} followed by
+ * {@link TcpDiscoveryConsulIpFinder#unregisterAddresses(Collection)}.
+ */
+public class JmhConsulRegistrationBenchmark extends JmhConsulAbstractBenchmark {
+    /** Whether unregistration looks instances up by address, which reads the whole service. */
+    @Param({"false", "true"})
+    private boolean legacyIdCleanup;
+
+    /** Source of unique ports. */
+    private final AtomicInteger ports = new AtomicInteger();
+
+    /** {@inheritDoc} */
+    @Override protected void configure(TcpDiscoveryConsulIpFinder finder) {
+        finder.setLegacyIdCleanup(legacyIdCleanup);
+    }
+
+    /**
+     * Per-thread address, so that threads do not step on each other's registrations.
+     */
+    @State(Scope.Thread)
+    public static class ThreadAddress {
+        /** Address. */
+        Collection<InetSocketAddress> addr;
+    }
+
+    /**
+     * @param thread Thread state.
+     */
+    @Benchmark
+    public void registerUnregister(ThreadAddress thread) {
+        if (thread.addr == null)
+            thread.addr = Collections.singleton(new InetSocketAddress("192.168.0.1", 1024 + ports.incrementAndGet()));
+
+        // The finder may trim the collection it is given, as the discovery SPI passes a fresh one each time.
+        finder.registerAddresses(new ArrayList<>(thread.addr));
+        finder.unregisterAddresses(new ArrayList<>(thread.addr));
+    }
+
+    /**
+     * Run benchmarks.
+     *
+     * @param args Arguments.
+     * @throws Exception If failed.
+     */
+    public static void main(String[] args) throws Exception {
+        run(JmhConsulRegistrationBenchmark.class, 1);
+    }
+}
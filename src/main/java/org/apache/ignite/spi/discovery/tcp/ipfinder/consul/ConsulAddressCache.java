@@ -0,0 +1,210 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Last addresses successfully read from Consul, persisted to a file so that a node can still find
+ * the cluster when Consul is down or slow at startup.
+ *
+ * The file is rewritten atomically (temporary file and rename) whenever the addresses change, and
+ * at least every {@link #REFRESH_INTERVAL} milliseconds while Consul keeps answering, so that its timestamp
+ * tells how recently Consul confirmed the addresses. The file holds a timestamp line and one address per line.
+ */
+class ConsulAddressCache {
+
+    /** Interval at which unchanged addresses are rewritten, in milliseconds. */
+    static final long REFRESH_INTERVAL = 60_000;
+
+    /** Prefix of the timestamp line. */
+    private static final String TIME_PREFIX = "timestamp=";
+
+    /** File. */
+    private final Path file;
+
+    /** Maximum age of the addresses served, in milliseconds. */
+    private final long maxAge;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Last known addresses, {@code null} if none. */
+    private volatile Collection<InetSocketAddress> addrs;
+
+    /** Time Consul last returned the addresses, in milliseconds. */
+    private volatile long time;
+
+    /** Time the file was last written, in milliseconds. */
+    private volatile long written;
+
+    /**
+     * @param file File.
+     * @param maxAge Maximum age of the addresses served, in milliseconds.
+     * @param log Logger.
+     */
+    ConsulAddressCache(Path file, long maxAge, IgniteLogger log) {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.log = log;
+    }
+
+    /**
+     * Loads the file, if any. A missing or unreadable file leaves the cache empty.
+     */
+    void load() {
+        if (!Files.exists(file))
+            return;
+
+        Set<InetSocketAddress> res = new LinkedHashSet<>();
+
+        long ts = 0;
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (String line; (line = in.readLine()) != null; ) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                if (line.startsWith(TIME_PREFIX)) {
+                    ts = Long.parseLong(line.substring(TIME_PREFIX.length()));
+
+                    continue;
+                }
+
+                InetSocketAddress addr = ConsulServiceInstance.parse(line);
+
+                if (addr != null)
+                    res.add(addr);
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            U.warn(log, "Failed to load Consul IP Finder address cache, ignoring it [file=" + file + ", err=" + e +
+                ']');
+
+            return;
+        }
+
+        if (ts == 0 || res.isEmpty())
+            return;
+
+        synchronized (this) {
+            addrs = Collections.unmodifiableSet(res);
+            time = ts;
+            written = ts;
+        }
+
+        if (log.isInfoEnabled())
+            log.info("Loaded Consul IP Finder address cache [file=" + file + ", age=" + age() + "ms, addrs=" +
+                res + ']');
+    }
+
+    /**
+     * @return Cached addresses if not older than the maximum age, otherwise {@code null}.
+     */
+    Collection<InetSocketAddress> get() {
+        Collection<InetSocketAddress> res = addrs;
+
+        return res != null && (maxAge <= 0 || age() <= maxAge) ? res : null;
+    }
+
+    /**
+     * @return Time since Consul last returned the cached addresses, in milliseconds.
+     */
+    long age() {
+        return U.currentTimeMillis() - time;
+    }
+
+    /**
+     * Records addresses just read from Consul, persisting them if they changed.
+     *
+     * @param newAddrs Immutable addresses.
+     */
+    void update(Collection<InetSocketAddress> newAddrs) {
+        long now = U.currentTimeMillis();
+
+        time = now;
+
+        if (same(addrs, newAddrs) && now - written < REFRESH_INTERVAL)
+            return;
+
+        synchronized (this) {
+            // Another thread may have written in the meantime.
+            if (same(addrs, newAddrs) && now - written < REFRESH_INTERVAL)
+                return;
+
+            addrs = newAddrs;
+
+            try {
+                write(newAddrs, now);
+
+                written = now;
+            }
+            catch (IOException e) {
+                U.warn(log, "Failed to write Consul IP Finder address cache [file=" + file + ", err=" + e + ']');
+            }
+        }
+    }
+
+    /**
+     * @param prev Previous addresses or {@code null}.
+     * @param addrs Addresses.
+     * @return {@code true} if both hold the same addresses.
+     */
+    private static boolean same(Collection<InetSocketAddress> prev, Collection<InetSocketAddress> addrs) {
+        // Lookups return the same instance while nothing changes, skip the comparison then.
+        return prev == addrs || prev != null && prev.size() == addrs.size() && prev.containsAll(addrs);
+    }
+
+    /**
+     * @param addrs Addresses.
+     * @param ts Timestamp.
+     * @throws IOException If failed.
+     */
+    private void write(Collection<InetSocketAddress> addrs, long ts) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+
+        Files.createDirectories(dir);
+
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write("# Ignite addresses last read from Consul, written by TcpDiscoveryConsulIpFinder");
+                out.newLine();
+                out.write(TIME_PREFIX + ts);
+                out.newLine();
+
+                for (InetSocketAddress addr : addrs) {
+                    out.write(addr.isUnresolved() ? addr.getHostString() + ':' + addr.getPort() :
+                        ConsulServiceInstance.toString(addr));
+                    out.newLine();
+                }
+            }
+
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ignored) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+/**
+ * Receives the changes of the addresses {@link TcpDiscoveryConsulIpFinder} reads from Consul, e.g. to update
+ * a routing table. Called from a dedicated thread of the finder, one change at a time and in order, so
+ * implementations may block without delaying discovery, but then delay the next changes.
+ */
+public interface ConsulAddressListener {
+    /**
+     * @param added Addresses that appeared since the previous call, all known addresses on the first call.
+     * @param removed Addresses that disappeared since the previous call.
+     */
+    void onAddressesChanged(Collection<InetSocketAddress> added, Collection<InetSocketAddress> removed);
+}
@@ -0,0 +1,164 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Notifies {@link ConsulAddressListener}s of the differences between consecutive address snapshots.
+ *
+ * Lookups and watchers return the same immutable instance while nothing changes, so an unchanged snapshot
+ * costs a reference comparison. Otherwise each snapshot is only scanned against the other one, and nothing
+ * is computed while there are no listeners. Listeners are called from a single thread, in order.
+ */
+class ConsulAddressNotifier {
+
+    /** Listeners. */
+    private final List<ConsulAddressListener> lsnrs = new ArrayList<>();
+
+    /** Last addresses, {@code null} until the first read. */
+    private volatile Collection<InetSocketAddress> addrs;
+
+    /** Executor calling the listeners, {@code null} unless started. */
+    private ExecutorService exec;
+
+    /** Logger. */
+    private IgniteLogger log;
+
+    /**
+     * @param serviceName Service name.
+     * @param log Logger.
+     */
+    synchronized void start(final String serviceName, IgniteLogger log) {
+        this.log = log;
+
+        exec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "consul-ip-finder-listener-" + serviceName);
+
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /** Stops notifying, letting the pending notifications complete. */
+    synchronized void stop() {
+        if (exec != null) {
+            exec.shutdown();
+
+            exec = null;
+        }
+    }
+
+    /**
+     * @param lsnr Listener, notified of the known addresses, if any, right away.
+     */
+    synchronized void add(ConsulAddressListener lsnr) {
+        lsnrs.add(lsnr);
+
+        Collection<InetSocketAddress> cur = addrs;
+
+        if (exec != null && cur != null && !cur.isEmpty())
+            dispatch(Collections.singletonList(lsnr), Collections.unmodifiableCollection(cur),
+                Collections.<InetSocketAddress>emptyList());
+    }
+
+    /**
+     * @param lsnr Listener.
+     * @return Whether the listener was registered.
+     */
+    synchronized boolean remove(ConsulAddressListener lsnr) {
+        return lsnrs.remove(lsnr);
+    }
+
+    /**
+     * @param newAddrs Immutable addresses just read.
+     */
+    void update(Collection<InetSocketAddress> newAddrs) {
+        if (newAddrs == addrs)
+            return;
+
+        synchronized (this) {
+            Collection<InetSocketAddress> prev = addrs;
+
+            if (newAddrs == prev)
+                return;
+
+            addrs = newAddrs;
+
+            if (exec == null || lsnrs.isEmpty())
+                return;
+
+            Collection<InetSocketAddress> added = diff(newAddrs, prev);
+            Collection<InetSocketAddress> removed = diff(prev, newAddrs);
+
+            if (!added.isEmpty() || !removed.isEmpty())
+                dispatch(new ArrayList<>(lsnrs), added, removed);
+        }
+    }
+
+    /**
+     * @param targets Listeners.
+     * @param added Added addresses.
+     * @param removed Removed addresses.
+     */
+    private void dispatch(final List<ConsulAddressListener> targets, final Collection<InetSocketAddress> added,
+        final Collection<InetSocketAddress> removed) {
+        exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ConsulAddressListener lsnr : targets) {
+                    try {
+                        lsnr.onAddressesChanged(added, removed);
+                    }
+                    catch (Exception e) {
+                        U.error(log, "Consul IP Finder address listener failed [lsnr=" + lsnr + ']', e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param a Addresses or {@code null}.
+     * @param b Addresses or {@code null}.
+     * @return Immutable addresses of {@code a} missing from {@code b}.
+     */
+    private static Collection<InetSocketAddress> diff(Collection<InetSocketAddress> a,
+        Collection<InetSocketAddress> b) {
+        if (a == null || a.isEmpty())
+            return Collections.emptyList();
+
+        if (b == null || b.isEmpty())
+            return Collections.unmodifiableCollection(a);
+
+        // Snapshots are sets, other collections would make every lookup linear.
+        Collection<InetSocketAddress> lookup = b instanceof Set ? b : new HashSet<>(b);
+
+        List<InetSocketAddress> res = null;
+
+        for (InetSocketAddress addr : a) {
+            if (!lookup.contains(addr)) {
+                if (res == null)
+                    res = new ArrayList<>();
+
+                res.add(addr);
+            }
+        }
+
+        return res != null ? Collections.unmodifiableList(res) : Collections.<InetSocketAddress>emptyList();
+    }
+}
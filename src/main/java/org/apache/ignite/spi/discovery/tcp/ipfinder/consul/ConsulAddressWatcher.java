@@ -0,0 +1,156 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.option.ConsistencyMode;
+
+/**
+ * Background watcher that keeps an immutable snapshot of the healthy instances of a service
+ * up to date by running Consul blocking queries (long-polls on the X-Consul-Index).
+ *
+ * Readers never touch Consul: they get whatever {@link #snapshot()} currently holds.
+ */
+class ConsulAddressWatcher extends Thread {
+
+    /** Owning IP finder, used to turn Consul responses into addresses. */
+    private final TcpDiscoveryConsulIpFinder finder;
+
+    /** Consul endpoints. */
+    private final ConsulEndpoints endpoints;
+
+    /** Watched service name. */
+    private final String serviceName;
+
+    /** Watched datacenter, {@code null} for the local one. */
+    private final String dc;
+
+    /** Blocking query wait time, in seconds. */
+    private final int waitSeconds;
+
+    /** Read consistency mode. */
+    private final ConsistencyMode consistency;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Last seen Consul index. */
+    private BigInteger index = BigInteger.ZERO;
+
+    /** Current snapshot, {@code null} until the first query completes. */
+    private volatile Collection<InetSocketAddress> snapshot;
+
+    /** Stop flag. */
+    private volatile boolean stopped;
+
+    /**
+     * @param finder Owning IP finder.
+     * @param endpoints Consul endpoints.
+     * @param serviceName Service name to watch.
+     * @param dc Datacenter to watch, {@code null} for the local one.
+     * @param waitSeconds Blocking query wait time, in seconds.
+     * @param consistency Read consistency mode.
+     * @param log Logger.
+     */
+    ConsulAddressWatcher(TcpDiscoveryConsulIpFinder finder, ConsulEndpoints endpoints, String serviceName, String dc,
+        int waitSeconds, ConsistencyMode consistency, IgniteLogger log) {
+        super("consul-ip-finder-watcher-" + serviceName + (dc != null ? "-" + dc : ""));
+
+        this.finder = finder;
+        this.endpoints = endpoints;
+        this.serviceName = serviceName;
+        this.dc = dc;
+        this.waitSeconds = waitSeconds;
+        this.consistency = consistency;
+        this.log = log;
+
+        setDaemon(true);
+    }
+
+    /**
+     * @return Latest immutable address snapshot or {@code null} if the first query has not completed yet.
+     */
+    Collection<InetSocketAddress> snapshot() {
+        return snapshot;
+    }
+
+    /** Stops the watcher. The thread exits once the in-flight blocking query returns. */
+    void shutdown() {
+        stopped = true;
+
+        interrupt();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+        int failures = 0;
+
+        while (!stopped) {
+            // Raft indexes are shared by all servers of a datacenter, so the index stays valid across endpoints.
+            ConsulEndpoints.Endpoint ep = endpoints.select();
+
+            long start = System.nanoTime();
+
+            try {
+                ConsulResponse<Collection<InetSocketAddress>> res = finder.watch(ep, waitSeconds, index, consistency,
+                    dc);
+
+                endpoints.metrics().record(ConsulOperation.WATCH, System.nanoTime() - start, null);
+
+                BigInteger newIdx = res.getIndex();
+
+                // Consul may reset its index (e.g. after a snapshot restore); start over in that case.
+                if (newIdx == null || newIdx.compareTo(index) < 0)
+                    newIdx = BigInteger.ZERO;
+
+                if (snapshot == null || !newIdx.equals(index)) {
+                    snapshot = res.getResponse();
+
+                    if (log.isDebugEnabled())
+                        log.debug("Consul IP Finder watch updated [dc=" + dc + ", index=" + newIdx + ", addrs=" +
+                            snapshot + ']');
+
+                    finder.onWatchUpdate();
+                }
+
+                index = newIdx;
+
+                if (dc == null)
+                    endpoints.metrics().onRead(snapshot.size());
+
+                failures = 0;
+            }
+            catch (Exception e) {
+                if (stopped)
+                    break;
+
+                endpoints.metrics().record(ConsulOperation.WATCH, System.nanoTime() - start, e);
+
+                if (ConsulEndpoints.isFailover(e))
+                    endpoints.onFailure(ep);
+
+                U.warn(log, "Consul IP Finder watch query failed, will retry [endpoint=" + ep +
+                    (dc != null ? ", dc=" + dc : "") + ", err=" + e.getMessage() + ']');
+
+                try {
+                    // Never spin: keep at least a second between failed long-polls.
+                    Thread.sleep(1000 + endpoints.backoff().delay(++failures));
+                }
+                catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+
+                    break;
+                }
+            }
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Consul IP Finder watcher stopped: " + serviceName);
+    }
+}
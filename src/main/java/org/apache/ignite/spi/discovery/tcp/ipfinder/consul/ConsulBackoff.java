@@ -0,0 +1,70 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.orbitz.consul.ConsulException;
+
+/**
+ * Exponential back-off with full jitter, so that many nodes failing at the same time do not retry in lockstep.
+ */
+class ConsulBackoff {
+
+    /** Maximum number of retries after the first attempt. */
+    private final int maxRetries;
+
+    /** Base delay, in milliseconds. */
+    private final long baseDelay;
+
+    /** Maximum delay, in milliseconds. */
+    private final long maxDelay;
+
+    /**
+     * @param maxRetries Maximum number of retries after the first attempt.
+     * @param baseDelay Base delay, in milliseconds.
+     * @param maxDelay Maximum delay, in milliseconds.
+     */
+    ConsulBackoff(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return Maximum number of retries after the first attempt.
+     */
+    int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param attempt Number of failed attempts so far, starting from {@code 1}.
+     * @return Random delay in {@code [0, min(maxDelay, baseDelay * 2^(attempt - 1))]}, in milliseconds.
+     */
+    long delay(int attempt) {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(Math.max(attempt - 1, 0), 30));
+
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Sleeps for {@link #delay(int)}.
+     *
+     * @param attempt Number of failed attempts so far, starting from {@code 1}.
+     * @throws InterruptedException If interrupted.
+     */
+    void pause(int attempt) throws InterruptedException {
+        long delay = delay(attempt);
+
+        if (delay > 0)
+            Thread.sleep(delay);
+    }
+
+    /**
+     * @param e Error.
+     * @return Whether Consul asked to slow down (HTTP 429).
+     */
+    static boolean isThrottled(Throwable e) {
+        return e instanceof ConsulHttpClient.ThrottledException ||
+            (e instanceof ConsulException && ((ConsulException)e).getCode() == 429);
+    }
+}
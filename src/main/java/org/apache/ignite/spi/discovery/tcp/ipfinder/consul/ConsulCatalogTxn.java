@@ -0,0 +1,167 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batches service registrations and deregistrations into Consul transactions ({@code PUT /v1/txn}).
+ *
+ * The transaction API operates on the catalog, not on the local agent. Services are therefore attached to
+ * an external catalog node: the agent anti-entropy only manages its own node and would remove anything
+ * written there behind its back. Each finder owns its catalog node, so that finders never overwrite each
+ * other's node address, and deletes the whole node once its last service is gone.
+ */
+class ConsulCatalogTxn {
+
+    /** Maximum number of operations Consul accepts in a single transaction. */
+    static final int MAX_OPS = 64;
+
+    /** Catalog node the services are attached to. */
+    private final String nodeName;
+
+    /** Pending operations, as JSON objects. */
+    private final List<String> ops = new ArrayList<>();
+
+    /** Number of operations committed so far. */
+    private int committed;
+
+    /**
+     * @param nodeName Catalog node the services are attached to.
+     */
+    ConsulCatalogTxn(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * Adds an operation creating (or refreshing) the catalog node.
+     *
+     * @param addr Node address.
+     * @return {@code this} for chaining.
+     */
+    ConsulCatalogTxn setNode(String addr) {
+        StringBuilder sb = new StringBuilder("{\"Node\":{\"Verb\":\"set\",\"Node\":{\"Node\":");
+
+        ConsulHttpClient.jsonString(sb, nodeName).append(",\"Address\":");
+        ConsulHttpClient.jsonString(sb, addr).append("}}}");
+
+        ops.add(sb.toString());
+
+        return this;
+    }
+
+    /**
+     * Adds a service registration.
+     *
+     * @param inst Service instance.
+     * @param name Service name.
+     * @return {@code this} for chaining.
+     */
+    ConsulCatalogTxn setService(ConsulServiceInstance inst, String name) {
+        StringBuilder sb = new StringBuilder("{\"Service\":{\"Verb\":\"set\",\"Node\":");
+
+        ConsulHttpClient.jsonString(sb, nodeName).append(",\"Service\":{\"ID\":");
+        ConsulHttpClient.jsonString(sb, inst.id()).append(",\"Service\":");
+        ConsulHttpClient.jsonString(sb, name).append(',');
+
+        ops.add(inst.appendFields(sb).append("}}}").toString());
+
+        return this;
+    }
+
+    /**
+     * Adds a deregistration of a service of the catalog node of this transaction.
+     *
+     * @param id Service ID.
+     * @return {@code this} for chaining.
+     */
+    ConsulCatalogTxn deleteService(String id) {
+        return deleteService(nodeName, id);
+    }
+
+    /**
+     * Adds a service deregistration.
+     *
+     * @param node Catalog node of the service, e.g. that of another finder whose node left the cluster.
+     * @param id Service ID.
+     * @return {@code this} for chaining.
+     */
+    ConsulCatalogTxn deleteService(String node, String id) {
+        StringBuilder sb = new StringBuilder("{\"Service\":{\"Verb\":\"delete\",\"Node\":");
+
+        ConsulHttpClient.jsonString(sb, node).append(",\"Service\":{\"ID\":");
+        ConsulHttpClient.jsonString(sb, id).append("}}}");
+
+        ops.add(sb.toString());
+
+        return this;
+    }
+
+    /**
+     * Adds a catalog node deregistration, removing its remaining services too.
+     *
+     * @param node Catalog node.
+     * @return {@code this} for chaining.
+     */
+    ConsulCatalogTxn deleteNode(String node) {
+        StringBuilder sb = new StringBuilder("{\"Node\":{\"Verb\":\"delete\",\"Node\":{\"Node\":");
+
+        ConsulHttpClient.jsonString(sb, node).append("}}}");
+
+        ops.add(sb.toString());
+
+        return this;
+    }
+
+    /**
+     * @return Number of pending operations.
+     */
+    int size() {
+        return ops.size();
+    }
+
+    /**
+     * @return Number of operations committed so far, by chunks that succeeded before a failed one.
+     */
+    int committed() {
+        return committed;
+    }
+
+    /**
+     * Submits pending operations, in chunks of {@link #MAX_OPS}. A single round-trip is enough
+     * unless a node has more than 63 addresses. Each chunk is a Consul transaction of its own: more operations
+     * are not atomic, the chunks committed before a failed one staying applied. Only committed chunks are removed,
+     * so the remaining operations can be retried, e.g. against another endpoint, if a request fails.
+     *
+     * @param http HTTP client.
+     * @return Response of the first failed chunk, or of the last chunk if all succeeded.
+     * @throws IOException If the request could not be performed.
+     */
+    ConsulHttpClient.Response commit(ConsulHttpClient http) throws IOException {
+        ConsulHttpClient.Response res = null;
+
+        while (!ops.isEmpty()) {
+            List<String> chunk = ops.subList(0, Math.min(MAX_OPS, ops.size()));
+
+            StringBuilder body = new StringBuilder(chunk.size() * 128).append('[');
+
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0)
+                    body.append(',');
+
+                body.append(chunk.get(i));
+            }
+
+            res = http.put("/v1/txn", body.append(']').toString());
+
+            if (!res.isSuccess())
+                break;
+
+            committed += chunk.size();
+
+            chunk.clear();
+        }
+
+        return res;
+    }
+}
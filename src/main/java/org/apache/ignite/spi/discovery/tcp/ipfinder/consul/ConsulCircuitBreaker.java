@@ -0,0 +1,107 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Circuit breaker failing Consul calls fast once Consul looks unavailable.
+ *
+ * The breaker opens after a number of consecutive calls failed on all endpoints, and then rejects calls
+ * for a while. Once that time has passed, a single call is let through (half-open): the breaker closes if it
+ * succeeds and opens again if it fails. Calls Consul answered with an error count as successes, as Consul is up.
+ */
+class ConsulCircuitBreaker {
+
+    /** Number of consecutive failed calls opening the breaker, {@code 0} if disabled. */
+    private final int threshold;
+
+    /** Time the breaker stays open before letting a probe through, in milliseconds. */
+    private final long openTime;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Consecutive failed calls. */
+    private int failures;
+
+    /** Time until which calls are rejected, in milliseconds. */
+    private long openUntil;
+
+    /** Whether a probe is in flight. */
+    private boolean probing;
+
+    /**
+     * @param threshold Number of consecutive failed calls opening the breaker, {@code 0} to disable it.
+     * @param openTime Time the breaker stays open before letting a probe through, in milliseconds.
+     * @param log Logger.
+     */
+    ConsulCircuitBreaker(int threshold, long openTime, IgniteLogger log) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+        this.log = log;
+    }
+
+    /**
+     * @return Whether a call may proceed. A call let through must be followed by {@link #onSuccess()},
+     *     {@link #onFailure()} or {@link #onAbort()}.
+     */
+    synchronized boolean allow() {
+        if (threshold <= 0 || failures < threshold)
+            return true;
+
+        if (probing || U.currentTimeMillis() < openUntil)
+            return false;
+
+        probing = true;
+
+        return true;
+    }
+
+    /**
+     * @return Whether calls are currently rejected.
+     */
+    synchronized boolean isOpen() {
+        return threshold > 0 && failures >= threshold;
+    }
+
+    /** Records a call Consul answered. */
+    void onSuccess() {
+        boolean closed;
+
+        synchronized (this) {
+            closed = threshold > 0 && failures >= threshold;
+
+            failures = 0;
+            probing = false;
+        }
+
+        if (closed && log.isInfoEnabled())
+            log.info("Consul IP Finder circuit breaker closed, Consul is reachable again.");
+    }
+
+    /** Records a call that failed on all endpoints. */
+    void onFailure() {
+        boolean opened;
+
+        synchronized (this) {
+            if (threshold <= 0)
+                return;
+
+            opened = ++failures == threshold;
+
+            if (failures >= threshold)
+                openUntil = U.currentTimeMillis() + openTime;
+
+            probing = false;
+        }
+
+        if (opened)
+            U.warn(log, "Consul IP Finder circuit breaker opened after " + threshold + " failed calls, " +
+                "Consul calls will fail fast [openTime=" + openTime + "ms]");
+    }
+
+    /** Records a call that ended without telling whether Consul is up, e.g. interrupted. */
+    synchronized void onAbort() {
+        probing = false;
+    }
+}
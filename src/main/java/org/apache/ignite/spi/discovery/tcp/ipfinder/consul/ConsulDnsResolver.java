@@ -0,0 +1,501 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Minimal DNS client resolving the SRV records of Consul services ({@code <service>.service.consul}), which
+ * only list instances whose checks are not critical.
+ *
+ * A lookup is a single UDP datagram each way, sent and awaited on a non-blocking channel; the query advertises
+ * a large EDNS payload so that Consul does not trim answers to a few records. Truncated answers are queried
+ * again over TCP. The target addresses are read from the additional records, so no further query is needed.
+ * Answers are reused until their TTL expires, which never happens with Consul's default TTL of zero.
+ */
+class ConsulDnsResolver {
+
+    /** Default query timeout, in milliseconds. */
+    static final int DEFAULT_TIMEOUT = 2_000;
+
+    /** UDP payload size advertised through EDNS. */
+    private static final int UDP_PAYLOAD_SIZE = 4096;
+
+    /** SRV record type. */
+    private static final int TYPE_SRV = 33;
+
+    /** A record type. */
+    private static final int TYPE_A = 1;
+
+    /** AAAA record type. */
+    private static final int TYPE_AAAA = 28;
+
+    /** OPT pseudo-record type (EDNS). */
+    private static final int TYPE_OPT = 41;
+
+    /** Truncation flag. */
+    private static final int FLAG_TC = 0x0200;
+
+    /** Name error (no such domain) response code. */
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /** Query timeout, in milliseconds. */
+    private final int timeout;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Last answer by name. */
+    private final ConcurrentMap<String, Answer> answers = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeout Query timeout, in milliseconds.
+     * @param log Logger.
+     */
+    ConsulDnsResolver(int timeout, IgniteLogger log) {
+        this.timeout = timeout;
+        this.log = log;
+    }
+
+    /**
+     * @param srv DNS server.
+     * @param name Service name, e.g. {@code ignite.service.consul}.
+     * @return Immutable set of addresses, the same instance as the previous lookup if they did not change.
+     * @throws IOException If the query failed or timed out.
+     */
+    Collection<InetSocketAddress> lookup(InetSocketAddress srv, String name) throws IOException {
+        Answer prev = answers.get(name);
+
+        if (prev != null && prev.expires - System.nanoTime() > 0)
+            return prev.addrs;
+
+        short id = (short)ThreadLocalRandom.current().nextInt();
+
+        ByteBuffer qry = query(id, name);
+
+        ByteBuffer res = udp(srv, qry, id);
+
+        if ((res.getShort(2) & FLAG_TC) != 0) {
+            if (log.isDebugEnabled())
+                log.debug("Truncated DNS answer, querying again over TCP [srv=" + srv + ", name=" + name + ']');
+
+            res = tcp(srv, qry, id);
+        }
+
+        Answer ans;
+
+        try {
+            ans = parse(res);
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS answer [srv=" + srv + ", name=" + name + ']', e);
+        }
+
+        // Keep the previous instance while nothing changes, later stages cache their results by identity.
+        if (prev != null && prev.addrs.equals(ans.addrs))
+            ans = new Answer(prev.addrs, ans.expires);
+
+        answers.put(name, ans);
+
+        return ans.addrs;
+    }
+
+    /**
+     * @param id Query ID.
+     * @param name Name.
+     * @return SRV query, ready to be sent.
+     */
+    private static ByteBuffer query(short id, String name) {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+
+        // Header: recursion desired, one question, one additional (OPT) record.
+        buf.putShort(id).putShort((short)0x0100).putShort((short)1).putShort((short)0).putShort((short)0)
+            .putShort((short)1);
+
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+
+            if (bytes.length == 0 || bytes.length > 63)
+                throw new IllegalArgumentException("Invalid DNS label '" + label + "' in " + name);
+
+            buf.put((byte)bytes.length).put(bytes);
+        }
+
+        buf.put((byte)0).putShort((short)TYPE_SRV).putShort((short)1);
+
+        // OPT record: root name, payload size in place of the class, no extended flags.
+        buf.put((byte)0).putShort((short)TYPE_OPT).putShort((short)UDP_PAYLOAD_SIZE).putInt(0).putShort((short)0);
+
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * @param res Answer.
+     * @return Addresses and expiration time.
+     * @throws IOException If the server reported an error.
+     */
+    private Answer parse(ByteBuffer res) throws IOException {
+        int flags = res.getShort(2) & 0xffff;
+        int rcode = flags & 0xf;
+
+        long now = System.nanoTime();
+
+        // Consul answers with a name error when the service has no instance.
+        if (rcode == RCODE_NXDOMAIN)
+            return new Answer(Collections.<InetSocketAddress>emptySet(), now);
+
+        if (rcode != 0)
+            throw new IOException("DNS server failed to answer [rcode=" + rcode + ']');
+
+        res.position(4);
+
+        int qdCnt = res.getShort() & 0xffff;
+        int anCnt = res.getShort() & 0xffff;
+        int nsCnt = res.getShort() & 0xffff;
+        int arCnt = res.getShort() & 0xffff;
+
+        for (int i = 0; i < qdCnt; i++) {
+            readName(res);
+
+            res.position(res.position() + 4);
+        }
+
+        List<String> targets = new ArrayList<>(anCnt);
+        List<Integer> ports = new ArrayList<>(anCnt);
+
+        long ttl = Long.MAX_VALUE;
+
+        for (int i = 0; i < anCnt; i++) {
+            readName(res);
+
+            int type = res.getShort() & 0xffff;
+
+            res.getShort();
+
+            long recTtl = res.getInt() & 0xffffffffL;
+            int len = res.getShort() & 0xffff;
+            int end = res.position() + len;
+
+            if (type == TYPE_SRV) {
+                // Priority and weight, Consul does not use them.
+                res.getInt();
+
+                ports.add(res.getShort() & 0xffff);
+                targets.add(readName(res));
+
+                ttl = Math.min(ttl, recTtl);
+            }
+
+            res.position(end);
+        }
+
+        for (int i = 0; i < nsCnt; i++)
+            skipRecord(res);
+
+        Map<String, InetAddress> hosts = new HashMap<>();
+
+        for (int i = 0; i < arCnt; i++) {
+            String name = readName(res);
+
+            int type = res.getShort() & 0xffff;
+
+            res.getShort();
+
+            long recTtl = res.getInt() & 0xffffffffL;
+            int len = res.getShort() & 0xffff;
+            int end = res.position() + len;
+
+            if ((type == TYPE_A && len == 4 || type == TYPE_AAAA && len == 16) && !hosts.containsKey(name)) {
+                byte[] addr = new byte[len];
+
+                res.get(addr);
+
+                hosts.put(name, InetAddress.getByAddress(addr));
+
+                ttl = Math.min(ttl, recTtl);
+            }
+
+            res.position(end);
+        }
+
+        Set<InetSocketAddress> addrs = new LinkedHashSet<>();
+
+        for (int i = 0; i < targets.size(); i++) {
+            InetAddress host = hosts.get(targets.get(i));
+
+            if (host == null)
+                host = hexAddress(targets.get(i));
+
+            if (host != null)
+                addrs.add(new InetSocketAddress(host, ports.get(i)));
+            else
+                U.warn(log, "Ignoring SRV record without address of " + targets.get(i) + ':' + ports.get(i));
+        }
+
+        long expires = ttl == Long.MAX_VALUE ? now : now + TimeUnit.SECONDS.toNanos(ttl);
+
+        return new Answer(Collections.unmodifiableSet(addrs), expires);
+    }
+
+    /**
+     * @param target SRV target.
+     * @return Address encoded in a {@code <hex>.addr.<dc>.<domain>} target, as used by Consul for services
+     *     whose address differs from their node's, or {@code null}.
+     */
+    private static InetAddress hexAddress(String target) {
+        int dot = target.indexOf('.');
+
+        if (dot != 8 && dot != 32 || !target.startsWith(".addr.", dot))
+            return null;
+
+        byte[] addr = new byte[dot / 2];
+
+        try {
+            for (int i = 0; i < addr.length; i++)
+                addr[i] = (byte)Integer.parseInt(target.substring(i * 2, i * 2 + 2), 16);
+
+            return InetAddress.getByAddress(addr);
+        }
+        catch (IOException | NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * @param buf Buffer positioned at a resource record, moved past it.
+     */
+    private static void skipRecord(ByteBuffer buf) {
+        readName(buf);
+
+        buf.position(buf.position() + 8);
+        buf.position(buf.position() + 2 + (buf.getShort(buf.position()) & 0xffff));
+    }
+
+    /**
+     * @param buf Buffer positioned at a possibly compressed name, moved past it.
+     * @return Lower-case name, without the trailing dot.
+     */
+    private static String readName(ByteBuffer buf) {
+        StringBuilder sb = new StringBuilder();
+
+        int pos = buf.position();
+        int next = -1;
+
+        for (int jumps = 0; ; ) {
+            int len = buf.get(pos) & 0xff;
+
+            if (len == 0) {
+                pos++;
+
+                break;
+            }
+
+            if ((len & 0xc0) == 0xc0) {
+                // Compression pointer; a pointer loop ends up reading out of bounds.
+                if (++jumps > 64)
+                    throw new IndexOutOfBoundsException("DNS name compression loop");
+
+                if (next < 0)
+                    next = pos + 2;
+
+                pos = (len & 0x3f) << 8 | buf.get(pos + 1) & 0xff;
+
+                continue;
+            }
+
+            if (sb.length() > 0)
+                sb.append('.');
+
+            for (int i = 1; i <= len; i++)
+                sb.append((char)(buf.get(pos + i) & 0xff));
+
+            pos += len + 1;
+        }
+
+        buf.position(next < 0 ? pos : next);
+
+        return sb.toString().toLowerCase();
+    }
+
+    /**
+     * @param srv Server.
+     * @param qry Query.
+     * @param id Query ID.
+     * @return Answer.
+     * @throws IOException If failed or timed out.
+     */
+    private ByteBuffer udp(InetSocketAddress srv, ByteBuffer qry, short id) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try (DatagramChannel ch = DatagramChannel.open(); Selector sel = Selector.open()) {
+            ch.configureBlocking(false);
+            ch.connect(srv);
+            ch.write(qry.duplicate());
+            ch.register(sel, SelectionKey.OP_READ);
+
+            ByteBuffer res = ByteBuffer.allocate(UDP_PAYLOAD_SIZE);
+
+            for (;;) {
+                await(sel, deadline, srv);
+
+                res.clear();
+
+                // Answers to earlier, timed out queries are dropped.
+                if (ch.read(res) >= 12 && res.getShort(0) == id) {
+                    res.flip();
+
+                    return res;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param srv Server.
+     * @param qry Query.
+     * @param id Query ID.
+     * @return Answer.
+     * @throws IOException If failed or timed out.
+     */
+    private ByteBuffer tcp(InetSocketAddress srv, ByteBuffer qry, short id) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try (SocketChannel ch = SocketChannel.open(); Selector sel = Selector.open()) {
+            ch.configureBlocking(false);
+
+            SelectionKey key = ch.register(sel, 0);
+
+            if (!ch.connect(srv)) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+
+                do
+                    await(sel, deadline, srv);
+                while (!ch.finishConnect());
+            }
+
+            // Messages are prefixed with their length over TCP.
+            ByteBuffer out = ByteBuffer.allocate(2 + qry.remaining());
+
+            out.putShort((short)qry.remaining()).put(qry.duplicate()).flip();
+
+            key.interestOps(SelectionKey.OP_WRITE);
+
+            while (out.hasRemaining()) {
+                if (ch.write(out) == 0)
+                    await(sel, deadline, srv);
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+
+            ByteBuffer len = ByteBuffer.allocate(2);
+
+            read(ch, sel, len, deadline, srv);
+
+            int size = len.getShort(0) & 0xffff;
+
+            if (size < 12)
+                throw new IOException("Unexpected DNS answer over TCP [srv=" + srv + ", size=" + size + ']');
+
+            ByteBuffer res = ByteBuffer.allocate(size);
+
+            read(ch, sel, res, deadline, srv);
+
+            if (res.getShort(0) != id)
+                throw new IOException("Unexpected DNS answer over TCP [srv=" + srv + ']');
+
+            res.flip();
+
+            return res;
+        }
+    }
+
+    /**
+     * @param ch Channel.
+     * @param sel Selector the channel is registered with for reads.
+     * @param buf Buffer to fill.
+     * @param deadline Deadline, in nanoseconds.
+     * @param srv Server, for messages.
+     * @throws IOException If failed or timed out.
+     */
+    private void read(SocketChannel ch, Selector sel, ByteBuffer buf, long deadline, InetSocketAddress srv)
+        throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf);
+
+            if (n < 0)
+                throw new EOFException("DNS server closed the connection [srv=" + srv + ']');
+
+            if (n == 0)
+                await(sel, deadline, srv);
+        }
+    }
+
+    /**
+     * Waits for a registered channel to be ready.
+     *
+     * @param sel Selector.
+     * @param deadline Deadline, in nanoseconds.
+     * @param srv Server, for messages.
+     * @throws IOException If failed or timed out.
+     */
+    private void await(Selector sel, long deadline, InetSocketAddress srv) throws IOException {
+        for (;;) {
+            long left = deadline - System.nanoTime();
+
+            if (left <= 0)
+                throw new SocketTimeoutException("DNS query timed out [srv=" + srv + ", timeout=" + timeout + "ms]");
+
+            if (sel.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left))) > 0) {
+                sel.selectedKeys().clear();
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Addresses of an answer with their expiration time.
+     */
+    private static class Answer {
+        /** Addresses. */
+        final Collection<InetSocketAddress> addrs;
+
+        /** Expiration time, in nanoseconds. */
+        final long expires;
+
+        /**
+         * @param addrs Addresses.
+         * @param expires Expiration time, in nanoseconds.
+         */
+        Answer(Collection<InetSocketAddress> addrs, long expires) {
+            this.addrs = addrs;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.X;
+import org.apache.ignite.internal.util.typedef.internal.U;
+import org.apache.ignite.spi.IgniteSpiException;
+
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.ConsulException;
+
+/**
+ * Set of Consul endpoints (agents or servers) with health tracking and latency-aware failover.
+ *
+ * Reads go to the healthy endpoint with the lowest latency EWMA. Agent writes (registrations, TTL checks)
+ * are node-local in Consul, so they stick to a home endpoint and only move when it fails. All calls go through
+ * a {@link ConsulCircuitBreaker}.
+ */
+class ConsulEndpoints {
+
+    /** Weight of the latest sample in the latency EWMA. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    /** Initial delay an endpoint is skipped for after a failure, in milliseconds. */
+    private static final long MIN_DOWN_TIME = 1000;
+
+    /** Maximum delay an endpoint is skipped for after repeated failures, in milliseconds. */
+    private static final long MAX_DOWN_TIME = 30_000;
+
+    /** Endpoints, in configuration order. */
+    private final List<Endpoint> endpoints;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Back-off between rounds over all endpoints. */
+    private final ConsulBackoff backoff;
+
+    /** Metrics. */
+    private final ConsulMetrics metrics;
+
+    /** Circuit breaker. */
+    private final ConsulCircuitBreaker breaker;
+
+    /** Endpoint agent writes go to. */
+    private volatile Endpoint home;
+
+    /**
+     * @param endpoints Endpoints, in configuration order.
+     * @param backoff Back-off between rounds over all endpoints.
+     * @param metrics Metrics.
+     * @param breaker Circuit breaker.
+     * @param log Logger.
+     */
+    ConsulEndpoints(List<Endpoint> endpoints, ConsulBackoff backoff, ConsulMetrics metrics,
+        ConsulCircuitBreaker breaker, IgniteLogger log) {
+        assert !endpoints.isEmpty();
+
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.backoff = backoff;
+        this.metrics = metrics;
+        this.breaker = breaker;
+        this.log = log;
+
+        home = endpoints.get(0);
+    }
+
+    /**
+     * Splits a comma-separated list of Consul URLs, appending the default port to entries that have none.
+     *
+     * @param addrs Comma-separated URLs, e.g. {@code http://consul-1,http://consul-2:8501}.
+     * @param dfltPort Default port.
+     * @return Base URLs.
+     */
+    static List<String> parseUrls(String addrs, int dfltPort) {
+        List<String> res = new ArrayList<>();
+
+        for (String addr : addrs.split(",")) {
+            addr = addr.trim();
+
+            if (addr.isEmpty())
+                continue;
+
+            int hostStart = addr.indexOf("//");
+
+            hostStart = hostStart < 0 ? 0 : hostStart + 2;
+
+            int end = addr.indexOf('/', hostStart);
+
+            String authority = end < 0 ? addr.substring(hostStart) : addr.substring(hostStart, end);
+
+            // An authority ending with ":<digits>" (and not being a bare IPv6 literal) already has a port.
+            boolean hasPort = authority.matches(".*:\\d+") && (!authority.startsWith("[") || authority.contains("]:"));
+
+            res.add(hasPort ? addr : addr + ":" + dfltPort);
+        }
+
+        return res;
+    }
+
+    /**
+     * @return All endpoints.
+     */
+    List<Endpoint> all() {
+        return endpoints;
+    }
+
+    /**
+     * @return Back-off between rounds over all endpoints.
+     */
+    ConsulBackoff backoff() {
+        return backoff;
+    }
+
+    /**
+     * @return Metrics.
+     */
+    ConsulMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Circuit breaker.
+     */
+    ConsulCircuitBreaker breaker() {
+        return breaker;
+    }
+
+    /**
+     * @return Client of the first endpoint.
+     */
+    Consul first() {
+        return endpoints.get(0).client();
+    }
+
+    /**
+     * Selects the healthy endpoint with the lowest latency EWMA. If every endpoint is down, selects the one
+     * that comes back first.
+     *
+     * @return Endpoint.
+     */
+    Endpoint select() {
+        long now = U.currentTimeMillis();
+
+        Endpoint best = null;
+        Endpoint soonest = null;
+
+        for (Endpoint ep : endpoints) {
+            if (ep.downUntil <= now) {
+                if (best == null || ep.ewma < best.ewma)
+                    best = ep;
+            }
+            else if (soonest == null || ep.downUntil < soonest.downUntil)
+                soonest = ep;
+        }
+
+        return best != null ? best : soonest;
+    }
+
+    /**
+     * Runs a read on the fastest healthy endpoint, failing over to the others.
+     *
+     * @param op Operation, for metrics.
+     * @param call Call.
+     * @return Call result.
+     * @throws IgniteSpiException If all endpoints failed.
+     */
+    <T> T read(ConsulOperation op, Call<T> call) throws IgniteSpiException {
+        return execute(op, call, false);
+    }
+
+    /**
+     * Runs an agent write on the home endpoint, moving home to another endpoint if it fails.
+     *
+     * @param op Operation, for metrics.
+     * @param call Call.
+     * @return Call result.
+     * @throws IgniteSpiException If all endpoints failed.
+     */
+    <T> T write(ConsulOperation op, Call<T> call) throws IgniteSpiException {
+        return execute(op, call, true);
+    }
+
+    /**
+     * @param op Operation, for metrics.
+     * @param call Call.
+     * @param sticky Whether to start from the home endpoint.
+     * @return Call result.
+     * @throws IgniteSpiException If all attempts failed or the circuit breaker is open.
+     */
+    private <T> T execute(ConsulOperation op, Call<T> call, boolean sticky) throws IgniteSpiException {
+        if (!breaker.allow()) {
+            IgniteSpiException e = new IgniteSpiException("Consul IP Finder circuit breaker is open, " +
+                "Consul is considered unavailable [endpoints=" + endpoints + ']');
+
+            metrics.record(op, 0, e);
+
+            throw e;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            T res = execute(call, sticky);
+
+            metrics.record(op, System.nanoTime() - start, null);
+
+            breaker.onSuccess();
+
+            return res;
+        }
+        catch (UnavailableException e) {
+            metrics.record(op, System.nanoTime() - start, e);
+
+            breaker.onFailure();
+
+            throw e;
+        }
+        catch (RuntimeException e) {
+            metrics.record(op, System.nanoTime() - start, e);
+
+            // Anything else but an interruption means Consul answered.
+            if (X.hasCause(e, InterruptedException.class))
+                breaker.onAbort();
+            else
+                breaker.onSuccess();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Tries every endpoint once per round; if all of them are unavailable or Consul throttles the request
+     * (HTTP 429), retries after a jittered exponential back-off.
+     *
+     * @param call Call.
+     * @param sticky Whether to start from the home endpoint.
+     * @return Call result.
+     * @throws IgniteSpiException If all attempts failed.
+     */
+    private <T> T execute(Call<T> call, boolean sticky) throws IgniteSpiException {
+        Exception lastErr = null;
+
+        for (int attempt = 0; attempt <= backoff.maxRetries(); attempt++) {
+            if (attempt > 0) {
+                try {
+                    backoff.pause(attempt);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    throw new IgniteSpiException("Interrupted while retrying Consul call.", e);
+                }
+            }
+
+            List<Endpoint> tried = new ArrayList<>(endpoints.size());
+
+            for (int i = 0; i < endpoints.size(); i++) {
+                Endpoint ep = sticky && i == 0 && home.downUntil <= U.currentTimeMillis() ?
+                    home : selectExcluding(tried);
+
+                tried.add(ep);
+
+                long start = System.nanoTime();
+
+                try {
+                    T res = call.apply(ep);
+
+                    onSuccess(ep, System.nanoTime() - start);
+
+                    if (sticky && ep != home) {
+                        U.warn(log, "Consul IP Finder moved agent writes to another endpoint: " + ep.url);
+
+                        home = ep;
+                    }
+
+                    return res;
+                }
+                catch (Exception e) {
+                    lastErr = e;
+
+                    // Throttling is not the endpoint's fault: back off rather than hammer the next one.
+                    if (ConsulBackoff.isThrottled(e))
+                        break;
+
+                    if (!isFailover(e)) {
+                        if (e instanceof RuntimeException)
+                            throw (RuntimeException)e;
+
+                        throw new IgniteSpiException("Consul call failed: " + ep.url, e);
+                    }
+
+                    onFailure(ep);
+
+                    if (endpoints.size() > 1)
+                        U.warn(log, "Consul endpoint failed, trying another one [url=" + ep.url + ", err=" + e + ']');
+                }
+            }
+        }
+
+        throw new UnavailableException("Consul call failed on all endpoints [endpoints=" + endpoints +
+            ", attempts=" + (backoff.maxRetries() + 1) + ']', lastErr);
+    }
+
+    /**
+     * @param tried Endpoints tried already.
+     * @return Best endpoint not tried yet.
+     */
+    private Endpoint selectExcluding(List<Endpoint> tried) {
+        if (tried.isEmpty())
+            return select();
+
+        long now = U.currentTimeMillis();
+
+        Endpoint best = null;
+
+        for (Endpoint ep : endpoints) {
+            if (tried.contains(ep))
+                continue;
+
+            // Prefer endpoints that are up, then the lowest EWMA.
+            if (best == null || (ep.downUntil <= now && best.downUntil > now) ||
+                ((ep.downUntil <= now) == (best.downUntil <= now) && ep.ewma < best.ewma))
+                best = ep;
+        }
+
+        return best;
+    }
+
+    /**
+     * @param ep Endpoint.
+     * @param nanos Call latency, in nanoseconds.
+     */
+    void onSuccess(Endpoint ep, long nanos) {
+        ep.failures = 0;
+        ep.downUntil = 0;
+        ep.ewma = ep.ewma == 0 ? nanos : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * ep.ewma;
+    }
+
+    /**
+     * Marks an endpoint as down for an exponentially growing period.
+     *
+     * @param ep Endpoint.
+     */
+    void onFailure(Endpoint ep) {
+        int failures = ++ep.failures;
+
+        ep.downUntil = U.currentTimeMillis() + Math.min(MAX_DOWN_TIME, MIN_DOWN_TIME << Math.min(failures - 1, 16));
+    }
+
+    /**
+     * @param e Error.
+     * @return Whether the error means the endpoint is unavailable rather than the request being wrong.
+     */
+    static boolean isFailover(Exception e) {
+        // Throttling is not the endpoint's fault.
+        if (e instanceof IOException)
+            return !ConsulBackoff.isThrottled(e);
+
+        if (e instanceof ConsulException) {
+            int code = ((ConsulException)e).getCode();
+
+            return code == 0 || code >= 500;
+        }
+
+        return false;
+    }
+
+    /** Releases the transports of all endpoints. Explicit clients belong to the application and are left open. */
+    void close() {
+        for (Endpoint ep : endpoints) {
+            if (ep.transport != null)
+                ep.transport.release();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return endpoints.toString();
+    }
+
+    /**
+     * Call to a Consul endpoint.
+     */
+    interface Call<T> {
+        /**
+         * @param ep Endpoint.
+         * @return Result.
+         * @throws Exception If failed.
+         */
+        T apply(Endpoint ep) throws Exception;
+    }
+
+    /**
+     * Failure of a call on all endpoints.
+     */
+    private static class UnavailableException extends IgniteSpiException {
+        /** */
+        private static final long serialVersionUID = 0L;
+
+        /**
+         * @param msg Message.
+         * @param cause Cause.
+         */
+        UnavailableException(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    /**
+     * Consul endpoint.
+     */
+    static class Endpoint {
+        /** Base URL, {@code null} for an injected client. */
+        final String url;
+
+        /** Explicit client, {@code null} to use the one of the transport. */
+        private final Consul explicitClient;
+
+        /** Shared transport, {@code null} if the URL is unknown. */
+        final ConsulTransport transport;
+
+        /** HTTP client for calls not covered by consul-client, {@code null} if the URL is unknown. */
+        final ConsulHttpClient http;
+
+        /** Latency EWMA, in nanoseconds, {@code 0} until the first successful call. */
+        volatile double ewma;
+
+        /** Time until which the endpoint is considered down. */
+        volatile long downUntil;
+
+        /** Consecutive failures. */
+        volatile int failures;
+
+        /**
+         * @param url Base URL, {@code null} for an injected client.
+         * @param client Explicit client or {@code null} to use the one of the transport.
+         * @param transport Shared transport, {@code null} if the URL is unknown.
+         */
+        Endpoint(String url, Consul client, ConsulTransport transport) {
+            this.url = url;
+            this.transport = transport;
+
+            explicitClient = client;
+
+            http = transport != null ? transport.http() : null;
+        }
+
+        /**
+         * @return Client: the explicit one if set, otherwise that of the transport, built on first use.
+         */
+        Consul client() {
+            return explicitClient != null ? explicitClient : transport.client();
+        }
+
+        /**
+         * @return Client for blocking queries: the explicit one if set, its read timeout being up to the application.
+         */
+        Consul blockingClient() {
+            return explicitClient != null ? explicitClient : transport.blockingClient();
+        }
+
+        /**
+         * @return HTTP client for blocking queries, {@code null} if the URL is unknown.
+         */
+        ConsulHttpClient blockingHttp() {
+            return transport != null ? transport.blockingHttp() : null;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return url != null ? url : "<injected client>";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.QueryOptions;
+
+/**
+ * Query options adding a filter expression ({@code ?filter=}, Consul 1.5+), which consul-client does not support,
+ * to other query options.
+ */
+class ConsulFilterQueryOptions extends QueryOptions {
+
+    /** Options. */
+    private final QueryOptions opts;
+
+    /** Filter expression. */
+    private final String filter;
+
+    /**
+     * @param opts Options.
+     * @param filter Filter expression.
+     */
+    ConsulFilterQueryOptions(QueryOptions opts, String filter) {
+        this.opts = opts;
+        this.filter = filter;
+    }
+
+    /** {@inheritDoc} */
+    @Override public Optional<String> getWait() {
+        return opts.getWait();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Optional<String> getToken() {
+        return opts.getToken();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Optional<BigInteger> getIndex() {
+        return opts.getIndex();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Optional<String> getNear() {
+        return opts.getNear();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Optional<String> getDatacenter() {
+        return opts.getDatacenter();
+    }
+
+    /** {@inheritDoc} */
+    @Override public List<String> getNodeMeta() {
+        return opts.getNodeMeta();
+    }
+
+    /** {@inheritDoc} */
+    @Override public List<String> getTag() {
+        return opts.getTag();
+    }
+
+    /** {@inheritDoc} */
+    @Override public ConsistencyMode getConsistencyMode() {
+        return opts.getConsistencyMode();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Map<String, Object> toQuery() {
+        Map<String, Object> query = super.toQuery();
+
+        query.put("filter", filter);
+
+        return query;
+    }
+}
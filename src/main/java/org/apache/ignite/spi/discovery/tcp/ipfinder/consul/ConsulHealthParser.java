@@ -0,0 +1,172 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts discovery addresses from a {@code /v1/health/service/<name>} response, reading only
+ * the service address, port and tags and skipping everything else.
+ *
+ * Address instances of the previous parse are reused, and so is the previous result if nothing changed,
+ * so repeated lookups of a stable topology retain no new objects. Addresses keep the order of the response.
+ */
+class ConsulHealthParser {
+
+    /** Addresses of the previous parse by their textual form. */
+    private volatile Map<String, InetSocketAddress> prevAddrs = Collections.emptyMap();
+
+    /** Result of the previous parse. */
+    private volatile Collection<InetSocketAddress> prevRes;
+
+    /**
+     * @param src Response body.
+     * @return Immutable set of addresses, in response order.
+     * @throws IOException If the response is malformed.
+     */
+    Collection<InetSocketAddress> parse(Reader src) throws IOException {
+        ConsulJsonReader r = new ConsulJsonReader(src);
+
+        Map<String, InetSocketAddress> prev = prevAddrs;
+
+        Map<String, InetSocketAddress> addrs = new LinkedHashMap<>(Math.max(16, prev.size() * 4 / 3 + 1));
+
+        List<String> tags = new ArrayList<>(4);
+
+        r.beginArray();
+
+        while (r.hasNext()) {
+            String nodeAddr = null;
+            String svcAddr = null;
+            int port = -1;
+
+            tags.clear();
+
+            r.beginObject();
+
+            while (r.hasNext()) {
+                String name = r.nextName();
+
+                if ("Node".equals(name) && !r.nextNull()) {
+                    r.beginObject();
+
+                    while (r.hasNext()) {
+                        if ("Address".equals(r.nextName()))
+                            nodeAddr = r.nextString();
+                        else
+                            r.skipValue();
+                    }
+
+                    r.endObject();
+                }
+                else if ("Service".equals(name) && !r.nextNull()) {
+                    r.beginObject();
+
+                    while (r.hasNext()) {
+                        String field = r.nextName();
+
+                        if ("Address".equals(field))
+                            svcAddr = r.nextString();
+                        else if ("Port".equals(field))
+                            port = (int)r.nextLong();
+                        else if ("Tags".equals(field) && !r.nextNull()) {
+                            r.beginArray();
+
+                            while (r.hasNext())
+                                tags.add(r.nextString());
+
+                            r.endArray();
+                        }
+                        else
+                            r.skipValue();
+                    }
+
+                    r.endObject();
+                }
+                else
+                    r.skipValue();
+            }
+
+            r.endObject();
+
+            addAddresses(prev, addrs, tags, svcAddr == null || svcAddr.isEmpty() ? nodeAddr : svcAddr, port);
+        }
+
+        r.endArray();
+
+        Collection<InetSocketAddress> res = prevRes;
+
+        if (res == null || !sameOrder(res, addrs.values())) {
+            res = Collections.unmodifiableSet(new LinkedHashSet<>(addrs.values()));
+
+            prevRes = res;
+            prevAddrs = addrs;
+        }
+
+        return res;
+    }
+
+    /**
+     * @param a Addresses.
+     * @param b Addresses.
+     * @return {@code true} if both hold the same addresses in the same order.
+     */
+    private static boolean sameOrder(Collection<InetSocketAddress> a, Collection<InetSocketAddress> b) {
+        if (a.size() != b.size())
+            return false;
+
+        for (Iterator<InetSocketAddress> i = a.iterator(), j = b.iterator(); i.hasNext(); ) {
+            if (!i.next().equals(j.next()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds the addresses carried by an instance: those in tags if any, otherwise the service address and port.
+     *
+     * @param prev Addresses of the previous parse by their textual form.
+     * @param res Result, by textual form.
+     * @param tags Instance tags.
+     * @param addr Service address, or node address if the service has none.
+     * @param port Service port.
+     */
+    private void addAddresses(Map<String, InetSocketAddress> prev, Map<String, InetSocketAddress> res,
+        List<String> tags, String addr, int port) {
+        boolean tagged = false;
+
+        for (String tag : tags) {
+            if (tag.startsWith(ConsulServiceInstance.ADDR_TAG_PREFIX)) {
+                String key = tag.substring(ConsulServiceInstance.ADDR_TAG_PREFIX.length());
+
+                InetSocketAddress sockAddr = prev.get(key);
+
+                if (sockAddr == null)
+                    sockAddr = ConsulServiceInstance.parse(key);
+
+                if (sockAddr != null) {
+                    res.put(key, sockAddr);
+
+                    tagged = true;
+                }
+            }
+        }
+
+        if (!tagged && addr != null && port >= 0) {
+            String key = addr + ':' + port;
+
+            InetSocketAddress sockAddr = prev.get(key);
+
+            res.put(key, sockAddr != null ? sockAddr : new InetSocketAddress(addr, port));
+        }
+    }
+}
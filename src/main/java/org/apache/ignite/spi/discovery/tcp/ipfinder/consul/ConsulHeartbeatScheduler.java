@@ -0,0 +1,88 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler refreshing TTL checks and sessions, one per Consul: all {@link TcpDiscoveryConsulIpFinder} instances
+ * of the JVM using the same Consul share a daemon thread, so that a slow Consul only delays the heartbeats of its
+ * own finders. A scheduler is created by the first {@link #acquire} and stopped by the last {@link #release()}.
+ */
+final class ConsulHeartbeatScheduler {
+
+    /** Shared schedulers by Consul. */
+    private static final Map<Object, ConsulHeartbeatScheduler> schedulers = new HashMap<>();
+
+    /** Key. */
+    private final Object key;
+
+    /** Number of users, guarded by the class. */
+    private int refCnt;
+
+    /** Executor. */
+    private final ScheduledExecutorService exec;
+
+    /**
+     * @param key Key.
+     * @param name Name of the Consul, for the thread name.
+     */
+    private ConsulHeartbeatScheduler(Object key, final String name) {
+        this.key = key;
+
+        exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "consul-ip-finder-heartbeat-" + name);
+
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param key Consul identity, e.g. its endpoint URLs.
+     * @param name Name of the Consul, for the thread name.
+     * @return Shared scheduler, to be released with {@link #release()}.
+     */
+    static synchronized ConsulHeartbeatScheduler acquire(Object key, String name) {
+        ConsulHeartbeatScheduler scheduler = schedulers.get(key);
+
+        if (scheduler == null) {
+            scheduler = new ConsulHeartbeatScheduler(key, name);
+
+            schedulers.put(key, scheduler);
+        }
+
+        scheduler.refCnt++;
+
+        return scheduler;
+    }
+
+    /** Releases this scheduler, stopping its thread once nobody uses it. */
+    void release() {
+        synchronized (ConsulHeartbeatScheduler.class) {
+            if (refCnt == 0 || --refCnt > 0)
+                return;
+
+            schedulers.remove(key);
+        }
+
+        exec.shutdownNow();
+    }
+
+    /**
+     * @param task Task refreshing all checks of a finder in one pass, which should not outlast the TTL.
+     * @param periodMs Period, in milliseconds.
+     * @return Future to cancel the task with.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long periodMs) {
+        return exec.scheduleWithFixedDelay(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,66 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Resolves host names of addresses in the background so that they can be shown in logs
+ * without blocking registration on reverse DNS.
+ */
+class ConsulHostNameCache {
+
+    /** Resolved host names. */
+    private final ConcurrentMap<InetAddress, String> names = new ConcurrentHashMap<>();
+
+    /** Resolver thread. */
+    private final ExecutorService exec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "consul-ip-finder-dns");
+
+            t.setDaemon(true);
+
+            return t;
+        }
+    });
+
+    /**
+     * Returns the host name if it has been resolved already, otherwise schedules resolution
+     * and returns the literal address.
+     *
+     * @param addr Address.
+     * @return Host name or literal address.
+     */
+    String hostName(final InetAddress addr) {
+        String name = names.get(addr);
+
+        if (name != null)
+            return name;
+
+        if (names.putIfAbsent(addr, addr.getHostAddress()) == null) {
+            try {
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        names.put(addr, addr.getCanonicalHostName());
+                    }
+                });
+            }
+            catch (RejectedExecutionException ignored) {
+                // Stopped.
+            }
+        }
+
+        return addr.getHostAddress();
+    }
+
+    /** Stops the resolver thread. */
+    void stop() {
+        exec.shutdownNow();
+    }
+}
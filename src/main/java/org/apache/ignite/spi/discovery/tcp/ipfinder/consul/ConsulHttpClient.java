@@ -0,0 +1,320 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal HTTP client for the few Consul endpoints that the consul-client library does not cover
+ * (e.g. service operations of the transaction API).
+ *
+ * Connections are left to the keep-alive cache of the JVM once a response is read, so that requests
+ * to the same endpoint reuse them.
+ */
+class ConsulHttpClient {
+
+    /** Default connect timeout, in milliseconds. */
+    static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+
+    /** Default read timeout, in milliseconds. */
+    static final int DEFAULT_READ_TIMEOUT = 10_000;
+
+    /** Base URL, e.g. {@code http://consul:8500}. */
+    private final String baseUrl;
+
+    /** Connect timeout, in milliseconds. */
+    private final int connTimeout;
+
+    /** Read timeout, in milliseconds. */
+    private final int readTimeout;
+
+    /** ACL token, {@code null} if none. */
+    private final String aclToken;
+
+    /** Socket factory of HTTPS connections, {@code null} for the default one. */
+    private final SSLSocketFactory sslFactory;
+
+    /**
+     * @param baseUrl Base URL, e.g. {@code http://consul:8500}.
+     * @param connTimeout Connect timeout, in milliseconds.
+     * @param readTimeout Read timeout, in milliseconds.
+     * @param aclToken ACL token or {@code null}.
+     * @param sslCtx SSL context or {@code null} for the default one.
+     */
+    ConsulHttpClient(String baseUrl, int connTimeout, int readTimeout, String aclToken, SSLContext sslCtx) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.connTimeout = connTimeout;
+        this.readTimeout = readTimeout;
+        this.aclToken = aclToken;
+
+        // A single factory per context, which keep-alive connections and TLS sessions are cached by.
+        sslFactory = sslCtx != null ? sslCtx.getSocketFactory() : null;
+    }
+
+    /**
+     * @return Base URL.
+     */
+    String baseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Issues a PUT request with a JSON body.
+     *
+     * @param path Path including the query string, e.g. {@code /v1/txn}.
+     * @param body JSON body.
+     * @return Response.
+     * @throws IOException If the request could not be performed.
+     */
+    Response put(String path, String body) throws IOException {
+        HttpURLConnection conn = open(path, "PUT");
+
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return read(conn);
+    }
+
+    /**
+     * Issues a DELETE request.
+     *
+     * @param path Path including the query string.
+     * @return Response.
+     * @throws IOException If the request could not be performed.
+     */
+    Response delete(String path) throws IOException {
+        return read(open(path, "DELETE"));
+    }
+
+    /**
+     * Issues a GET request and hands the response body to a reader as it arrives, without buffering it.
+     *
+     * @param path Path including the query string.
+     * @param hdrs Extra request headers.
+     * @param rdr Body reader, called for any status code.
+     * @return Value returned by the reader.
+     * @throws IOException If the request could not be performed.
+     */
+    <T> T get(String path, Map<String, String> hdrs, BodyReader<T> rdr) throws IOException {
+        HttpURLConnection conn = open(path, "GET");
+
+        for (Map.Entry<String, String> hdr : hdrs.entrySet())
+            conn.setRequestProperty(hdr.getKey(), hdr.getValue());
+
+        int code = conn.getResponseCode();
+
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+        Response res = new Response(code, "", conn.getHeaderFields());
+
+        // Closing the body hands the connection back to the keep-alive cache.
+        try (Reader body = new InputStreamReader(in != null ? in : new ByteArrayInputStream(new byte[0]),
+            StandardCharsets.UTF_8)) {
+            return rdr.read(res, body);
+        }
+    }
+
+    /**
+     * Throws if a failed response is worth retrying.
+     *
+     * @param code Status code of a failed response.
+     * @param msg Error message.
+     * @throws ThrottledException If Consul asked to slow down (HTTP 429).
+     * @throws IOException If Consul is unavailable (HTTP 5xx).
+     */
+    static void checkRetryable(int code, String msg) throws IOException {
+        if (code == 429)
+            throw new ThrottledException(msg);
+
+        if (code >= 500)
+            throw new IOException(msg);
+    }
+
+    /**
+     * @param s Path segment or query parameter value.
+     * @return URL-encoded value.
+     */
+    static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param path Path including the query string.
+     * @param mtd HTTP method.
+     * @return Connection.
+     * @throws IOException If failed.
+     */
+    private HttpURLConnection open(String path, String mtd) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL(baseUrl + path).openConnection();
+
+        conn.setRequestMethod(mtd);
+        conn.setConnectTimeout(connTimeout);
+        conn.setReadTimeout(readTimeout);
+
+        if (aclToken != null)
+            conn.setRequestProperty("X-Consul-Token", aclToken);
+
+        if (sslFactory != null && conn instanceof HttpsURLConnection)
+            ((HttpsURLConnection)conn).setSSLSocketFactory(sslFactory);
+
+        return conn;
+    }
+
+    /**
+     * @param conn Connection.
+     * @return Response.
+     * @throws IOException If failed.
+     */
+    private static Response read(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+        String body = "";
+
+        if (in != null) {
+            try (InputStream is = in) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+                byte[] chunk = new byte[4096];
+
+                for (int n; (n = is.read(chunk)) != -1; )
+                    buf.write(chunk, 0, n);
+
+                body = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+
+        return new Response(code, body, conn.getHeaderFields());
+    }
+
+    /**
+     * Appends a JSON string literal.
+     *
+     * @param sb Target.
+     * @param s String.
+     * @return Target.
+     */
+    static StringBuilder jsonString(StringBuilder sb, String s) {
+        sb.append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int)c));
+                    else
+                        sb.append(c);
+            }
+        }
+
+        return sb.append('"');
+    }
+
+    /**
+     * Reader of a streamed response body.
+     */
+    interface BodyReader<T> {
+        /**
+         * @param res Status code and headers; the body is empty.
+         * @param body Body.
+         * @return Result.
+         * @throws IOException If failed.
+         */
+        T read(Response res, Reader body) throws IOException;
+    }
+
+    /**
+     * Consul asked to slow down (HTTP 429): to be retried after a back-off, not on another endpoint.
+     */
+    static class ThrottledException extends IOException {
+        /** */
+        private static final long serialVersionUID = 0L;
+
+        /**
+         * @param msg Message.
+         */
+        ThrottledException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * HTTP response.
+     */
+    static class Response {
+        /** Status code. */
+        final int code;
+
+        /** Body. */
+        final String body;
+
+        /** Headers. */
+        private final Map<String, List<String>> hdrs;
+
+        /**
+         * @param code Status code.
+         * @param body Body.
+         * @param hdrs Headers.
+         */
+        Response(int code, String body, Map<String, List<String>> hdrs) {
+            this.code = code;
+            this.body = body;
+            this.hdrs = hdrs;
+        }
+
+        /**
+         * @param name Header name, case-insensitive.
+         * @return First value of the header or {@code null}.
+         */
+        String header(String name) {
+            for (Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+                if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty())
+                    return e.getValue().get(0);
+            }
+
+            return null;
+        }
+
+        /**
+         * @return {@code true} for 2xx responses.
+         */
+        boolean isSuccess() {
+            return code >= 200 && code < 300;
+        }
+    }
+}
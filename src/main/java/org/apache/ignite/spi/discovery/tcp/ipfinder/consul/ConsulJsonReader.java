@@ -0,0 +1,307 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for the JSON returned by Consul. Only what the finder needs is supported:
+ * objects, arrays, strings, numbers, booleans and {@code null}; unknown values are skipped without
+ * being materialized.
+ */
+class ConsulJsonReader {
+
+    /** Source. */
+    private final Reader in;
+
+    /** Read buffer. */
+    private final char[] buf = new char[8192];
+
+    /** Position in the buffer. */
+    private int pos;
+
+    /** Number of valid characters in the buffer. */
+    private int lim;
+
+    /** Reusable string builder. */
+    private final StringBuilder sb = new StringBuilder(64);
+
+    /**
+     * @param in Source.
+     */
+    ConsulJsonReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @throws IOException If the next token is not the start of an array.
+     */
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    /**
+     * @throws IOException If the next token is not the end of an array.
+     */
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * @throws IOException If the next token is not the start of an object.
+     */
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    /**
+     * @throws IOException If the next token is not the end of an object.
+     */
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    /**
+     * Consumes a separating comma if present.
+     *
+     * @return {@code true} if the current array or object has more elements.
+     * @throws IOException If failed.
+     */
+    boolean hasNext() throws IOException {
+        int c = peek();
+
+        if (c == ',') {
+            pos++;
+
+            c = peek();
+        }
+
+        return c != ']' && c != '}' && c != -1;
+    }
+
+    /**
+     * @return {@code true} if the next value is {@code null}, in which case it is consumed.
+     * @throws IOException If failed.
+     */
+    boolean nextNull() throws IOException {
+        if (peek() != 'n')
+            return false;
+
+        literal("null");
+
+        return true;
+    }
+
+    /**
+     * @return Object member name; the following colon is consumed.
+     * @throws IOException If failed.
+     */
+    String nextName() throws IOException {
+        String name = nextString();
+
+        expect(':');
+
+        return name;
+    }
+
+    /**
+     * @return String value.
+     * @throws IOException If the next value is not a string.
+     */
+    String nextString() throws IOException {
+        expect('"');
+
+        sb.setLength(0);
+
+        while (true) {
+            int c = read();
+
+            if (c == '"')
+                return sb.toString();
+
+            if (c == '\\') {
+                c = read();
+
+                switch (c) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+
+                    case 'u':
+                        int cp = 0;
+
+                        for (int i = 0; i < 4; i++)
+                            cp = (cp << 4) + Character.digit(read(), 16);
+
+                        sb.append((char)cp);
+
+                        break;
+
+                    default:
+                        sb.append((char)c);
+                }
+            }
+            else if (c == -1)
+                throw new IOException("Unterminated JSON string.");
+            else
+                sb.append((char)c);
+        }
+    }
+
+    /**
+     * @return Integer value.
+     * @throws IOException If the next value is not an integer.
+     */
+    long nextLong() throws IOException {
+        peek();
+
+        boolean neg = false;
+        long res = 0;
+        int digits = 0;
+
+        if (pos < lim || fill()) {
+            if (buf[pos] == '-') {
+                neg = true;
+
+                pos++;
+            }
+        }
+
+        while (pos < lim || fill()) {
+            char c = buf[pos];
+
+            if (c < '0' || c > '9')
+                break;
+
+            res = res * 10 + (c - '0');
+
+            digits++;
+            pos++;
+        }
+
+        if (digits == 0)
+            throw new IOException("JSON number expected.");
+
+        return neg ? -res : res;
+    }
+
+    /**
+     * Skips the next value, whatever it is.
+     *
+     * @throws IOException If failed.
+     */
+    void skipValue() throws IOException {
+        int c = peek();
+
+        switch (c) {
+            case '"':
+                nextString();
+
+                break;
+
+            case '{':
+            case '[':
+                int depth = 0;
+
+                do {
+                    c = peek();
+
+                    if (c == '"') {
+                        nextString();
+
+                        continue;
+                    }
+
+                    pos++;
+
+                    if (c == '{' || c == '[')
+                        depth++;
+                    else if (c == '}' || c == ']')
+                        depth--;
+                    else if (c == -1)
+                        throw new IOException("Unexpected end of JSON.");
+                }
+                while (depth > 0);
+
+                break;
+
+            default:
+                // Number, boolean or null.
+                while (pos < lim || fill()) {
+                    char ch = buf[pos];
+
+                    if (ch == ',' || ch == '}' || ch == ']' || Character.isWhitespace(ch))
+                        break;
+
+                    pos++;
+                }
+        }
+    }
+
+    /**
+     * @param s Expected literal.
+     * @throws IOException If the input does not match.
+     */
+    private void literal(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            if (read() != s.charAt(i))
+                throw new IOException("JSON literal expected: " + s);
+        }
+    }
+
+    /**
+     * @param c Expected character, after optional whitespace.
+     * @throws IOException If the input does not match.
+     */
+    private void expect(char c) throws IOException {
+        if (peek() != c)
+            throw new IOException("'" + c + "' expected in JSON but found: " + (char)peek());
+
+        pos++;
+    }
+
+    /**
+     * Skips whitespace.
+     *
+     * @return Next character, not consumed, or {@code -1} at the end of input.
+     * @throws IOException If failed.
+     */
+    private int peek() throws IOException {
+        while (pos < lim || fill()) {
+            char c = buf[pos];
+
+            if (!Character.isWhitespace(c))
+                return c;
+
+            pos++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return Next character or {@code -1} at the end of input.
+     * @throws IOException If failed.
+     */
+    private int read() throws IOException {
+        return pos < lim || fill() ? buf[pos++] : -1;
+    }
+
+    /**
+     * @return {@code false} at the end of input.
+     * @throws IOException If failed.
+     */
+    private boolean fill() throws IOException {
+        pos = 0;
+        lim = in.read(buf, 0, buf.length);
+
+        if (lim < 0) {
+            lim = 0;
+
+            return false;
+        }
+
+        return true;
+    }
+}
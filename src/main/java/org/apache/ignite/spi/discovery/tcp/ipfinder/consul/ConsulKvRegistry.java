@@ -0,0 +1,406 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+import org.apache.ignite.spi.IgniteSpiException;
+
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.session.ImmutableSession;
+import com.orbitz.consul.option.ConsistencyMode;
+
+/**
+ * Registry of {@link ConsulRegistrationMode#KV} registrations: one key per address under a prefix, each
+ * acquired by a session of the registering finder. The session has {@code Behavior=delete}, so that the keys
+ * of a node vanish once it stops renewing the session (or its agent fails), the way ZooKeeper ephemeral nodes do.
+ *
+ * Keys are named after their addresses and lookups list key names only ({@code ?keys}), so a read never
+ * transfers or decodes values. Address instances of the previous read are reused, and so is the previous result
+ * if no key changed.
+ */
+class ConsulKvRegistry {
+
+    /** Prefix of the keys, ending with a slash. */
+    private final String prefix;
+
+    /** Session TTL, in seconds. */
+    private final int sessionTtl;
+
+    /** Consul endpoints. */
+    private final ConsulEndpoints endpoints;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Session ID, {@code null} until created or once invalidated. */
+    private volatile String session;
+
+    /** Keys acquired by this registry, with their values. */
+    private final ConcurrentMap<String, String> owned = new ConcurrentHashMap<>();
+
+    /** Key names and result of the previous read, by datacenter ({@code ""} for the local one). */
+    private final ConcurrentMap<String, Object[]> prevReads = new ConcurrentHashMap<>();
+
+    /**
+     * @param prefix Prefix of the keys, ending with a slash.
+     * @param sessionTtl Session TTL, in seconds.
+     * @param endpoints Consul endpoints.
+     * @param log Logger.
+     */
+    ConsulKvRegistry(String prefix, int sessionTtl, ConsulEndpoints endpoints, IgniteLogger log) {
+        assert prefix.endsWith("/") : prefix;
+
+        this.prefix = prefix;
+        this.sessionTtl = sessionTtl;
+        this.endpoints = endpoints;
+        this.log = log;
+    }
+
+    /**
+     * @param addrs Addresses to register.
+     * @throws IgniteSpiException If failed.
+     */
+    void register(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
+        for (InetSocketAddress addr : addrs) {
+            String key = key(addr);
+            String val = ConsulServiceInstance.toString(addr);
+
+            acquire(key, val);
+
+            owned.put(key, val);
+        }
+    }
+
+    /**
+     * @param addrs Addresses to unregister.
+     * @throws IgniteSpiException If failed.
+     */
+    void unregister(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
+        for (InetSocketAddress addr : addrs) {
+            final String key = key(addr);
+
+            owned.remove(key);
+
+            endpoints.write(ConsulOperation.DEREGISTER, new ConsulEndpoints.Call<Void>() {
+                @Override
+                public Void apply(ConsulEndpoints.Endpoint ep) throws IOException {
+                    ConsulHttpClient.Response res = ep.http.delete(path(key));
+
+                    check(res.code, res.body, "delete");
+
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Renews the session. If Consul has invalidated it meanwhile, which deleted the keys, creates another one
+     * and writes the keys again.
+     */
+    void heartbeat() {
+        final String id = session;
+
+        if (id == null && owned.isEmpty())
+            return;
+
+        try {
+            boolean alive = id != null && endpoints.write(ConsulOperation.HEARTBEAT,
+                new ConsulEndpoints.Call<Boolean>() {
+                    @Override
+                    public Boolean apply(ConsulEndpoints.Endpoint ep) {
+                        try {
+                            return ep.client().sessionClient().renewSession(id).isPresent();
+                        }
+                        catch (ConsulException e) {
+                            if (e.getCode() != 404)
+                                throw e;
+
+                            return false;
+                        }
+                    }
+                });
+
+            if (alive)
+                return;
+
+            if (id != null)
+                U.warn(log, "Consul IP Finder session expired, registering addresses again [session=" + id +
+                    ", keys=" + owned.keySet() + ']');
+
+            session = null;
+
+            for (Map.Entry<String, String> e : owned.entrySet())
+                acquire(e.getKey(), e.getValue());
+        }
+        catch (Exception e) {
+            U.warn(log, "Failed to renew Consul IP Finder session, will retry on next heartbeat [session=" + id +
+                ", err=" + e.getMessage() + ']');
+        }
+    }
+
+    /**
+     * Destroys the session, which deletes the keys still held.
+     */
+    void destroy() {
+        final String id = session;
+
+        session = null;
+
+        owned.clear();
+
+        if (id == null)
+            return;
+
+        try {
+            endpoints.write(ConsulOperation.DEREGISTER, new ConsulEndpoints.Call<Void>() {
+                @Override
+                public Void apply(ConsulEndpoints.Endpoint ep) {
+                    ep.client().sessionClient().destroySession(id);
+
+                    return null;
+                }
+            });
+        }
+        catch (Exception e) {
+            U.warn(log, "Failed to destroy Consul IP Finder session, its keys will be deleted once it expires " +
+                "[session=" + id + ", err=" + e.getMessage() + ']');
+        }
+    }
+
+    /**
+     * Lists the registered addresses, possibly with a blocking query.
+     *
+     * @param ep Endpoint.
+     * @param consistency Consistency mode.
+     * @param dc Datacenter, {@code null} for the local one.
+     * @param index Index to wait for a change from, {@code null} for a plain read.
+     * @param waitSeconds Blocking query wait time, in seconds.
+     * @return Immutable set of addresses with the Consul index.
+     * @throws IOException If failed.
+     */
+    ConsulResponse<Collection<InetSocketAddress>> read(ConsulEndpoints.Endpoint ep, ConsistencyMode consistency,
+        final String dc, BigInteger index, int waitSeconds) throws IOException {
+        StringBuilder path = new StringBuilder(path(null)).append("?keys");
+
+        if (consistency == ConsistencyMode.STALE)
+            path.append("&stale");
+        else if (consistency == ConsistencyMode.CONSISTENT)
+            path.append("&consistent");
+
+        if (dc != null)
+            path.append("&dc=").append(ConsulHttpClient.encode(dc));
+
+        if (index != null)
+            path.append("&index=").append(index).append("&wait=").append(waitSeconds).append('s');
+
+        ConsulHttpClient http = index != null ? ep.blockingHttp() : ep.http;
+
+        return http.get(path.toString(), Collections.<String, String>emptyMap(),
+            new ConsulHttpClient.BodyReader<ConsulResponse<Collection<InetSocketAddress>>>() {
+                @Override
+                public ConsulResponse<Collection<InetSocketAddress>> read(ConsulHttpClient.Response res, Reader body)
+                    throws IOException {
+                    String idx = res.header("X-Consul-Index");
+
+                    List<String> keys = new ArrayList<>();
+
+                    // No key under the prefix.
+                    if (res.code != 404) {
+                        if (!res.isSuccess())
+                            check(res.code, TcpDiscoveryConsulIpFinder.readFully(body), "list");
+
+                        ConsulJsonReader in = new ConsulJsonReader(body);
+
+                        in.beginArray();
+
+                        while (in.hasNext())
+                            keys.add(in.nextString());
+
+                        in.endArray();
+                    }
+
+                    return new ConsulResponse<>(addresses(dc == null ? "" : dc, keys), 0, true,
+                        idx != null ? new BigInteger(idx) : null);
+                }
+            });
+    }
+
+    /**
+     * @param dc Datacenter, {@code ""} for the local one.
+     * @param keys Key names.
+     * @return Immutable set of addresses.
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<InetSocketAddress> addresses(String dc, List<String> keys) {
+        Object[] prev = prevReads.get(dc);
+
+        if (prev != null && prev[0].equals(keys))
+            return (Collection<InetSocketAddress>)prev[1];
+
+        Map<String, InetSocketAddress> prevAddrs = prev != null ?
+            (Map<String, InetSocketAddress>)prev[2] : Collections.<String, InetSocketAddress>emptyMap();
+
+        Map<String, InetSocketAddress> addrs = new HashMap<>(keys.size() * 2);
+        Set<InetSocketAddress> res = new LinkedHashSet<>(keys.size() * 2);
+
+        for (String key : keys) {
+            InetSocketAddress addr = prevAddrs.get(key);
+
+            if (addr == null && key.startsWith(prefix))
+                addr = ConsulServiceInstance.parse(key.substring(prefix.length()));
+
+            if (addr != null) {
+                addrs.put(key, addr);
+                res.add(addr);
+            }
+        }
+
+        Collection<InetSocketAddress> out = Collections.unmodifiableSet(res);
+
+        prevReads.put(dc, new Object[] {keys, out, addrs});
+
+        return out;
+    }
+
+    /**
+     * Writes a key with the session, creating the session if needed. A key still held by another session,
+     * e.g. of a previous run of the node whose session has not expired yet, is taken over.
+     *
+     * @param key Key.
+     * @param val Value.
+     * @throws IgniteSpiException If failed.
+     */
+    private void acquire(final String key, final String val) throws IgniteSpiException {
+        endpoints.write(ConsulOperation.REGISTER, new ConsulEndpoints.Call<Void>() {
+            @Override
+            public Void apply(ConsulEndpoints.Endpoint ep) throws IOException {
+                if (put(ep, key, val))
+                    return null;
+
+                ConsulHttpClient.Response res = ep.http.delete(path(key));
+
+                check(res.code, res.body, "delete");
+
+                if (!put(ep, key, val))
+                    throw new IgniteSpiException("Consul key is held by another session [key=" + key + ']');
+
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param ep Endpoint.
+     * @param key Key.
+     * @param val Value.
+     * @return Whether the key was acquired.
+     * @throws IOException If failed.
+     */
+    private boolean put(ConsulEndpoints.Endpoint ep, String key, String val) throws IOException {
+        String id = session(ep);
+
+        ConsulHttpClient.Response res = ep.http.put(path(key) + "?acquire=" + ConsulHttpClient.encode(id), val);
+
+        // An expired session is rejected with a server error, which must not be taken for an outage.
+        if (res.code == 500 && res.body.contains("invalid session")) {
+            invalidate(id);
+
+            res = ep.http.put(path(key) + "?acquire=" + ConsulHttpClient.encode(session(ep)), val);
+        }
+
+        check(res.code, res.body, "write");
+
+        return Boolean.parseBoolean(res.body.trim());
+    }
+
+    /**
+     * @param id Session ID found invalid.
+     */
+    private synchronized void invalidate(String id) {
+        if (id.equals(session))
+            session = null;
+    }
+
+    /**
+     * @param ep Endpoint.
+     * @return Session ID, the session being created if needed.
+     */
+    private synchronized String session(ConsulEndpoints.Endpoint ep) {
+        String id = session;
+
+        if (id == null) {
+            // Lock delay would block taking keys back right after a session expiry.
+            id = ep.client().sessionClient().createSession(ImmutableSession.builder()
+                .name("ignite-" + prefix)
+                .ttl(sessionTtl + "s")
+                .behavior("delete")
+                .lockDelay("0s")
+                .build()).getId();
+
+            session = id;
+
+            if (log.isDebugEnabled())
+                log.debug("Created Consul IP Finder session [id=" + id + ", ttl=" + sessionTtl + "s]");
+        }
+
+        return id;
+    }
+
+    /**
+     * @param addr Address.
+     * @return Key of the address.
+     */
+    private String key(InetSocketAddress addr) {
+        return prefix + ConsulServiceInstance.toString(addr);
+    }
+
+    /**
+     * @param key Key or {@code null} for the prefix.
+     * @return URL path of the key.
+     */
+    private String path(String key) {
+        StringBuilder sb = new StringBuilder("/v1/kv");
+
+        for (String seg : (key != null ? key : prefix).split("/"))
+            sb.append('/').append(ConsulHttpClient.encode(seg));
+
+        if (key == null)
+            sb.append('/');
+
+        return sb.toString();
+    }
+
+    /**
+     * @param code Status code.
+     * @param body Body.
+     * @param op Operation, for the message.
+     * @throws IOException If Consul is unavailable or throttles requests.
+     * @throws IgniteSpiException If Consul rejected the request.
+     */
+    private static void check(int code, String body, String op) throws IOException {
+        if (code >= 200 && code < 300)
+            return;
+
+        String msg = "Consul KV " + op + " failed [code=" + code + ", body=" + body + ']';
+
+        ConsulHttpClient.checkRetryable(code, msg);
+
+        throw new IgniteSpiException(msg);
+    }
+}
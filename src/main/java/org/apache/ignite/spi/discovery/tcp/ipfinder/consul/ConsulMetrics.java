@@ -0,0 +1,206 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Lock-free metrics of a {@link TcpDiscoveryConsulIpFinder}, exposed through its MXBean.
+ */
+class ConsulMetrics implements TcpDiscoveryConsulIpFinderMXBean {
+
+    /** Upper bounds of the latency buckets, in milliseconds. */
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10_000};
+
+    /** Statistics by operation. */
+    private final Map<ConsulOperation, OperationStats> stats = new EnumMap<>(ConsulOperation.class);
+
+    /** Lookups served without a Consul call of their own. */
+    private final LongAdder hits = new LongAdder();
+
+    /** Lookups that called Consul. */
+    private final LongAdder misses = new LongAdder();
+
+    /** Time the addresses were last read from Consul, {@code 0} if never. */
+    private volatile long lastRead;
+
+    /** Number of addresses last read from Consul. */
+    private volatile int addrCnt;
+
+    /** External hook or {@code null}. */
+    private volatile ConsulMetricsHook hook;
+
+    /** */
+    ConsulMetrics() {
+        for (ConsulOperation op : ConsulOperation.values())
+            stats.put(op, new OperationStats());
+    }
+
+    /**
+     * @param hook External hook or {@code null}.
+     */
+    void hook(ConsulMetricsHook hook) {
+        this.hook = hook;
+    }
+
+    /**
+     * @param op Operation.
+     * @param nanos Duration, in nanoseconds.
+     * @param err Error or {@code null}.
+     */
+    void record(ConsulOperation op, long nanos, Throwable err) {
+        stats.get(op).record(nanos, err != null);
+
+        ConsulMetricsHook h = hook;
+
+        if (h != null)
+            h.onOperation(op, nanos, err);
+    }
+
+    /**
+     * @param cnt Number of addresses just read from Consul.
+     */
+    void onRead(int cnt) {
+        addrCnt = cnt;
+        lastRead = U.currentTimeMillis();
+    }
+
+    /**
+     * @param hit Whether a lookup was served without a Consul call of its own.
+     */
+    void onLookup(boolean hit) {
+        (hit ? hits : misses).increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override public Map<String, Long> getCallCounts() {
+        Map<String, Long> res = new TreeMap<>();
+
+        for (Map.Entry<ConsulOperation, OperationStats> e : stats.entrySet())
+            res.put(e.getKey().name(), e.getValue().calls.sum());
+
+        return res;
+    }
+
+    /** {@inheritDoc} */
+    @Override public Map<String, Long> getErrorCounts() {
+        Map<String, Long> res = new TreeMap<>();
+
+        for (Map.Entry<ConsulOperation, OperationStats> e : stats.entrySet())
+            res.put(e.getKey().name(), e.getValue().errors.sum());
+
+        return res;
+    }
+
+    /** {@inheritDoc} */
+    @Override public Map<String, Double> getAverageLatencies() {
+        Map<String, Double> res = new TreeMap<>();
+
+        for (Map.Entry<ConsulOperation, OperationStats> e : stats.entrySet()) {
+            long calls = e.getValue().calls.sum();
+
+            res.put(e.getKey().name(), calls == 0 ? 0 : e.getValue().nanos.sum() / 1e6 / calls);
+        }
+
+        return res;
+    }
+
+    /** {@inheritDoc} */
+    @Override public long[] getLatencyHistogramBounds() {
+        return BOUNDS.clone();
+    }
+
+    /** {@inheritDoc} */
+    @Override public long[] latencyHistogram(String op) {
+        AtomicLongArray buckets = stats.get(ConsulOperation.valueOf(op.trim().toUpperCase())).buckets;
+
+        long[] res = new long[buckets.length()];
+
+        for (int i = 0; i < res.length; i++)
+            res[i] = buckets.get(i);
+
+        return res;
+    }
+
+    /** {@inheritDoc} */
+    @Override public long getSnapshotAge() {
+        long t = lastRead;
+
+        return t == 0 ? -1 : U.currentTimeMillis() - t;
+    }
+
+    /** {@inheritDoc} */
+    @Override public int getAddressCount() {
+        return addrCnt;
+    }
+
+    /** {@inheritDoc} */
+    @Override public double getCacheHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void resetMetrics() {
+        for (OperationStats s : stats.values())
+            s.reset();
+
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Statistics of an operation.
+     */
+    private static class OperationStats {
+        /** Calls. */
+        final LongAdder calls = new LongAdder();
+
+        /** Failed calls. */
+        final LongAdder errors = new LongAdder();
+
+        /** Total duration, in nanoseconds. */
+        final LongAdder nanos = new LongAdder();
+
+        /** Calls by latency bucket. */
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+        /**
+         * @param dur Duration, in nanoseconds.
+         * @param failed Whether the call failed.
+         */
+        void record(long dur, boolean failed) {
+            calls.increment();
+            nanos.add(dur);
+
+            if (failed)
+                errors.increment();
+
+            long ms = TimeUnit.NANOSECONDS.toMillis(dur);
+
+            int i = 0;
+
+            while (i < BOUNDS.length && ms >= BOUNDS[i])
+                i++;
+
+            buckets.incrementAndGet(i);
+        }
+
+        /** Resets the statistics. */
+        void reset() {
+            calls.reset();
+            errors.reset();
+            nanos.reset();
+
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+        }
+    }
+}
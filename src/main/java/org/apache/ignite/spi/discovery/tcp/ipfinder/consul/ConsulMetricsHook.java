@@ -0,0 +1,14 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+/**
+ * Receives every Consul interaction of {@link TcpDiscoveryConsulIpFinder}, e.g. to feed an external metrics
+ * system. Called synchronously from discovery threads, so implementations must be fast and thread-safe.
+ */
+public interface ConsulMetricsHook {
+    /**
+     * @param op Operation.
+     * @param durationNanos Duration including retries and failover, in nanoseconds.
+     * @param err Error if the operation failed, {@code null} otherwise.
+     */
+    void onOperation(ConsulOperation op, long durationNanos, Throwable err);
+}
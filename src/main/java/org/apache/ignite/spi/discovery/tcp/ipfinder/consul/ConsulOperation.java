@@ -0,0 +1,30 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+/**
+ * Kinds of Consul interactions of {@link TcpDiscoveryConsulIpFinder}, as reported by its metrics.
+ */
+public enum ConsulOperation {
+    /** Read of the healthy addresses. */
+    LOOKUP,
+
+    /** Read of all service instances, to find those carrying addresses being unregistered. */
+    SCAN,
+
+    /** Agent service registration. */
+    REGISTER,
+
+    /** Agent service deregistration. */
+    DEREGISTER,
+
+    /** Catalog transaction, registering or deregistering a batch of instances. */
+    TXN,
+
+    /** TTL check update. */
+    HEARTBEAT,
+
+    /** Blocking query of the watch mode; its latency includes the time spent waiting for changes. */
+    WATCH,
+
+    /** Call of the reconciler: session renewal, leader lock, instance scan or orphan removal. */
+    RECONCILE
+}
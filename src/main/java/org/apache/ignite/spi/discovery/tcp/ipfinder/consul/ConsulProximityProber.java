@@ -0,0 +1,164 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+/**
+ * Orders addresses by TCP connect time and drops those that do not accept a connection in time.
+ *
+ * All addresses are probed at once from the calling thread with non-blocking connects on a single selector,
+ * so a probe never takes longer than its timeout whatever the number of addresses. Connections are closed
+ * as soon as they are established, nothing is sent. The result is reused while the addresses do not change,
+ * for at most {@link #CACHE_TTL} milliseconds.
+ */
+class ConsulProximityProber {
+
+    /** Time a probe result is reused for the same addresses, in milliseconds. */
+    static final long CACHE_TTL = 30_000;
+
+    /** Probe timeout, in milliseconds. */
+    private final int timeout;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Input, result and time of the last probe. */
+    private volatile Object[] last;
+
+    /**
+     * @param timeout Probe timeout, in milliseconds.
+     * @param log Logger.
+     */
+    ConsulProximityProber(int timeout, IgniteLogger log) {
+        this.timeout = timeout;
+        this.log = log;
+    }
+
+    /**
+     * @param addrs Addresses.
+     * @return Reachable addresses, fastest first, or {@code addrs} if none is reachable.
+     */
+    @SuppressWarnings("unchecked")
+    Collection<InetSocketAddress> order(Collection<InetSocketAddress> addrs) {
+        if (addrs.size() <= 1)
+            return addrs;
+
+        Object[] prev = last;
+
+        if (prev != null && U.currentTimeMillis() - (Long)prev[2] < CACHE_TTL && prev[0].equals(addrs))
+            return (Collection<InetSocketAddress>)prev[1];
+
+        Collection<InetSocketAddress> res;
+
+        try {
+            List<InetSocketAddress> reachable = probe(addrs);
+
+            // Better try everything than to start a new cluster because of a firewall dropping probes.
+            if (reachable.isEmpty()) {
+                U.warn(log, "Consul IP Finder could not connect to any address within " + timeout +
+                    " ms, returning them unordered: " + addrs);
+
+                res = addrs;
+            }
+            else {
+                res = Collections.unmodifiableSet(new LinkedHashSet<>(reachable));
+
+                if (log.isDebugEnabled())
+                    log.debug("Consul IP Finder probed addresses [reachable=" + res + ", all=" + addrs + ']');
+            }
+        }
+        catch (IOException e) {
+            U.warn(log, "Consul IP Finder could not probe addresses, returning them unordered: " + e.getMessage());
+
+            return addrs;
+        }
+
+        last = new Object[] {addrs, res, U.currentTimeMillis()};
+
+        return res;
+    }
+
+    /**
+     * @param addrs Addresses.
+     * @return Addresses that accepted a connection, in connection order.
+     * @throws IOException If the selector could not be opened.
+     */
+    private List<InetSocketAddress> probe(Collection<InetSocketAddress> addrs) throws IOException {
+        List<InetSocketAddress> res = new ArrayList<>(addrs.size());
+
+        try (Selector sel = Selector.open()) {
+            int pending = 0;
+
+            for (InetSocketAddress addr : addrs) {
+                if (addr.isUnresolved())
+                    continue;
+
+                SocketChannel ch = SocketChannel.open();
+
+                try {
+                    ch.configureBlocking(false);
+
+                    if (ch.connect(addr)) {
+                        res.add(addr);
+
+                        ch.close();
+                    }
+                    else {
+                        ch.register(sel, SelectionKey.OP_CONNECT, addr);
+
+                        pending++;
+                    }
+                }
+                catch (IOException ignored) {
+                    // Unreachable network and the like.
+                    U.closeQuiet(ch);
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+            for (long left; pending > 0 && (left = deadline - System.nanoTime()) > 0; ) {
+                sel.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+
+                for (Iterator<SelectionKey> it = sel.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+
+                    it.remove();
+
+                    SocketChannel ch = (SocketChannel)key.channel();
+
+                    try {
+                        if (ch.finishConnect())
+                            res.add((InetSocketAddress)key.attachment());
+                    }
+                    catch (IOException ignored) {
+                        // Refused or reset.
+                    }
+                    finally {
+                        U.closeQuiet(ch);
+
+                        pending--;
+                    }
+                }
+            }
+
+            for (SelectionKey key : sel.keys())
+                U.closeQuiet(key.channel());
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,403 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.internal.util.typedef.F;
+import org.apache.ignite.internal.util.typedef.internal.U;
+
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.SessionClient;
+import com.orbitz.consul.model.catalog.ImmutableCatalogDeregistration;
+import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.model.session.ImmutableSession;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+
+/**
+ * Background task removing the instances of nodes that left the cluster without unregistering, e.g. killed.
+ *
+ * Every finder runs the task, but only the one holding a lock on {@code service/<name>/[<cluster>/]reconciler},
+ * through a Consul session renewed on every run, does any work. Clusters sharing the service each have their
+ * own leader, which only considers the instances of its cluster. The leader compares the registered instances with
+ * the live topology and removes the instances of nodes that left, according to their node tag, none of whose
+ * addresses is live, once they have been found so for a whole period: a node registers before it joins.
+ * Instances without a node tag are never removed, as the addresses alone cannot prove that their node left.
+ * Instances of the agent of the leader are deregistered from that agent, the others from the catalog.
+ *
+ * The task runs on its own low-priority thread, reads stale data from any server and removes at most
+ * a batch of instances per period, one at a time, so that it never competes with discovery traffic.
+ */
+class ConsulReconciler {
+
+    /** Pause between two removals, in milliseconds. */
+    static final long REMOVAL_PAUSE = 100;
+
+    /** Minimum session TTL accepted by Consul, in seconds. */
+    private static final long MIN_SESSION_TTL = 10;
+
+    /** Maximum session TTL accepted by Consul, in seconds. */
+    private static final long MAX_SESSION_TTL = 86_400;
+
+    /** Owning IP finder, used for lookup options and the live topology. */
+    private final TcpDiscoveryConsulIpFinder finder;
+
+    /** Consul endpoints. */
+    private final ConsulEndpoints endpoints;
+
+    /** Service name. */
+    private final String serviceName;
+
+    /** Cluster name, {@code null} for none. */
+    private final String clusterName;
+
+    /** Leader lock key. */
+    private final String lockKey;
+
+    /** Identity of the local node, stored in the lock. */
+    private final String owner;
+
+    /** Period, in milliseconds. */
+    private final long period;
+
+    /** Maximum number of instances removed per period. */
+    private final int batchSize;
+
+    /** Logger. */
+    private final IgniteLogger log;
+
+    /** Executor. */
+    private final ScheduledExecutorService exec;
+
+    /** Session ID, {@code null} until created or once invalidated. */
+    private volatile String session;
+
+    /** Whether the lock was held on the last run. */
+    private boolean leader;
+
+    /** Time orphaned instances were first found so, by node and ID. */
+    private Map<String, Long> suspects = new HashMap<>();
+
+    /** Instances removed from the catalog on the last run, by node and ID. */
+    private Set<String> removed = new HashSet<>();
+
+    /** Instances put back by their agent after a catalog removal, left alone. */
+    private final Set<String> restored = new HashSet<>();
+
+    /** Endpoint {@link #agentNode} was read from. */
+    private ConsulEndpoints.Endpoint agentEp;
+
+    /** Node name of the agent of {@link #agentEp}. */
+    private String agentNode;
+
+    /**
+     * @param finder Owning IP finder.
+     * @param endpoints Consul endpoints.
+     * @param serviceName Service name.
+     * @param clusterName Cluster name or {@code null}.
+     * @param owner Identity of the local node.
+     * @param period Period, in milliseconds.
+     * @param batchSize Maximum number of instances removed per period.
+     * @param log Logger.
+     */
+    ConsulReconciler(TcpDiscoveryConsulIpFinder finder, ConsulEndpoints endpoints, final String serviceName,
+        String clusterName, String owner, long period, int batchSize, IgniteLogger log) {
+        this.finder = finder;
+        this.endpoints = endpoints;
+        this.serviceName = serviceName;
+        this.clusterName = clusterName;
+        this.owner = owner;
+        this.period = period;
+        this.batchSize = batchSize;
+        this.log = log;
+
+        lockKey = "service/" + serviceName + '/' + (clusterName != null ? clusterName + '/' : "") + "reconciler";
+
+        exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "consul-ip-finder-reconciler-" + serviceName);
+
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+
+                return t;
+            }
+        });
+    }
+
+    /** Schedules the task, the first run taking place after a period. */
+    void start() {
+        exec.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                }
+                catch (Exception e) {
+                    // An exception would cancel the task.
+                    U.warn(log, "Consul IP Finder reconciliation failed, will retry in " + period + " ms: " +
+                        e.getMessage());
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the task and destroys the session, releasing the lock. */
+    void stop() {
+        exec.shutdownNow();
+
+        try {
+            exec.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+
+        final String id = session;
+
+        if (id == null)
+            return;
+
+        session = null;
+
+        try {
+            endpoints.write(ConsulOperation.RECONCILE, new ConsulEndpoints.Call<Void>() {
+                @Override
+                public Void apply(ConsulEndpoints.Endpoint ep) {
+                    ep.client().sessionClient().destroySession(id);
+
+                    return null;
+                }
+            });
+        }
+        catch (Exception e) {
+            // The session expires with its TTL anyway.
+            U.warn(log, "Consul IP Finder failed to destroy its reconciler session [id=" + id + ", err=" +
+                e.getMessage() + ']');
+        }
+    }
+
+    /** Runs a reconciliation if this node is the leader. */
+    private void reconcile() {
+        if (endpoints.breaker().isOpen())
+            return;
+
+        Collection<InetSocketAddress> live = finder.topologyAddresses();
+        Set<String> liveIds = finder.topologyNodeIds();
+
+        // Not in the topology yet.
+        if (live == null || liveIds == null)
+            return;
+
+        boolean lead = lead();
+
+        if (lead != leader) {
+            leader = lead;
+
+            if (log.isInfoEnabled())
+                log.info("Consul IP Finder " + (lead ? "is now" : "is no longer") + " the reconciler of service " +
+                    serviceName);
+        }
+
+        if (!lead) {
+            suspects.clear();
+            removed.clear();
+            restored.clear();
+
+            return;
+        }
+
+        List<ServiceHealth> all = endpoints.read(ConsulOperation.RECONCILE,
+            new ConsulEndpoints.Call<List<ServiceHealth>>() {
+                @Override
+                public List<ServiceHealth> apply(ConsulEndpoints.Endpoint ep) {
+                    return ep.client().healthClient().getAllServiceInstances(serviceName,
+                        finder.queryOptions(ImmutableQueryOptions.builder(), ConsistencyMode.STALE, null))
+                        .getResponse();
+                }
+            });
+
+        long now = U.currentTimeMillis();
+
+        Map<String, Long> orphans = new HashMap<>();
+        List<ServiceHealth> batch = new ArrayList<>();
+
+        for (ServiceHealth sh : all) {
+            Collection<InetSocketAddress> addrs = ConsulServiceInstance.addresses(sh);
+
+            // Consul may ignore all tags of the query but one, e.g. before 1.2.
+            if (!F.eq(clusterName, tag(sh, TcpDiscoveryConsulIpFinder.CLUSTER_TAG_PREFIX)))
+                continue;
+
+            String nodeId = tag(sh, TcpDiscoveryConsulIpFinder.NODE_TAG_PREFIX);
+
+            if (nodeId == null || liveIds.contains(nodeId) || !Collections.disjoint(addrs, live))
+                continue;
+
+            String key = key(sh);
+
+            Long since = suspects.get(key);
+
+            orphans.put(key, since != null ? since : now);
+
+            if (removed.contains(key) && restored.add(key))
+                U.warn(log, "Consul IP Finder reconciler cannot remove an instance its agent keeps registering, " +
+                    "use TTL checks to have it removed [id=" + sh.getService().getId() + ", node=" +
+                    sh.getNode().getNode() + ", addrs=" + addrs + ']');
+
+            if (since != null && now - since >= period && !restored.contains(key) && batch.size() < batchSize)
+                batch.add(sh);
+        }
+
+        // Instances that came back to life or were removed meanwhile are forgotten.
+        suspects = orphans;
+        restored.retainAll(orphans.keySet());
+        removed = new HashSet<>();
+
+        for (ServiceHealth sh : batch) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+
+            remove(sh);
+
+            try {
+                Thread.sleep(REMOVAL_PAUSE);
+            }
+            catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Renews or creates the session and tries to take the lock with it.
+     *
+     * @return Whether this node holds the lock.
+     */
+    private boolean lead() {
+        return endpoints.write(ConsulOperation.RECONCILE, new ConsulEndpoints.Call<Boolean>() {
+            @Override
+            public Boolean apply(ConsulEndpoints.Endpoint ep) {
+                SessionClient sessions = ep.client().sessionClient();
+
+                String id = session;
+
+                if (id != null) {
+                    try {
+                        if (!sessions.renewSession(id).isPresent())
+                            id = null;
+                    }
+                    catch (ConsulException e) {
+                        // Expired, e.g. while Consul was unreachable.
+                        if (e.getCode() != 404)
+                            throw e;
+
+                        id = null;
+                    }
+                }
+
+                if (id == null) {
+                    // Consul invalidates sessions after twice their TTL, a missed renewal is tolerated.
+                    long ttl = Math.min(Math.max(TimeUnit.MILLISECONDS.toSeconds(period) + 1, MIN_SESSION_TTL),
+                        MAX_SESSION_TTL);
+
+                    id = sessions.createSession(ImmutableSession.builder()
+                        .name("ignite-" + serviceName + "-reconciler")
+                        .ttl(ttl + "s")
+                        .behavior("release")
+                        .build()).getId();
+
+                    session = id;
+                }
+
+                return ep.client().keyValueClient().acquireLock(lockKey, owner, id);
+            }
+        });
+    }
+
+    /**
+     * @param sh Orphaned instance.
+     */
+    private void remove(final ServiceHealth sh) {
+        final String node = sh.getNode().getNode();
+        final String id = sh.getService().getId();
+
+        try {
+            endpoints.write(ConsulOperation.RECONCILE, new ConsulEndpoints.Call<Void>() {
+                @Override
+                public Void apply(ConsulEndpoints.Endpoint ep) {
+                    if (ep != agentEp) {
+                        agentNode = ep.client().agentClient().getAgent().getConfig().getNodeName();
+                        agentEp = ep;
+                    }
+
+                    try {
+                        // The anti-entropy of an agent puts back its services removed from the catalog only.
+                        if (node.equals(agentNode))
+                            ep.client().agentClient().deregister(id);
+                        else {
+                            ep.client().catalogClient().deregister(ImmutableCatalogDeregistration.builder()
+                                .node(node)
+                                .serviceId(id)
+                                .build());
+
+                            removed.add(key(sh));
+                        }
+                    }
+                    catch (ConsulException e) {
+                        // Already deregistered.
+                        if (e.getCode() != 404)
+                            throw e;
+                    }
+
+                    return null;
+                }
+            });
+
+            if (log.isInfoEnabled())
+                log.info("Consul IP Finder reconciler removed an orphaned instance [id=" + id + ", node=" + node +
+                    ", addrs=" + ConsulServiceInstance.addresses(sh) + ']');
+        }
+        catch (Exception e) {
+            U.warn(log, "Consul IP Finder reconciler failed to remove an orphaned instance, will retry [id=" + id +
+                ", node=" + node + ", err=" + e.getMessage() + ']');
+        }
+    }
+
+    /**
+     * @param sh Instance.
+     * @param prefix Tag prefix.
+     * @return Value of the first tag of the instance with the prefix, {@code null} if none.
+     */
+    private static String tag(ServiceHealth sh, String prefix) {
+        for (String tag : sh.getService().getTags()) {
+            if (tag.startsWith(prefix))
+                return tag.substring(prefix.length());
+        }
+
+        return null;
+    }
+
+    /**
+     * @param sh Instance.
+     * @return Key of the instance, its IDs being unique per node only.
+     */
+    private static String key(ServiceHealth sh) {
+        return sh.getNode().getNode() + '/' + sh.getService().getId();
+    }
+}
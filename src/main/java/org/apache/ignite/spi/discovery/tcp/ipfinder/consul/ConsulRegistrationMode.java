@@ -0,0 +1,22 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+/**
+ * Defines how {@link TcpDiscoveryConsulIpFinder} maps discovery addresses onto Consul service instances.
+ */
+public enum ConsulRegistrationMode {
+    /** One service instance per address (default). */
+    PER_ADDRESS,
+
+    /**
+     * One service instance per registration call, i.e. per node, carrying all its addresses in service tags.
+     * Shrinks the catalog and health responses on multi-homed hosts.
+     */
+    PER_NODE,
+
+    /**
+     * One key per address under {@code service/<name>/[<cluster>/]addresses/} in the KV store instead of
+     * service instances. Keys are bound to a session the node renews and are deleted by Consul once it stops,
+     * so dead nodes disappear without deregistration. Lookups list key names only.
+     */
+    KV
+}
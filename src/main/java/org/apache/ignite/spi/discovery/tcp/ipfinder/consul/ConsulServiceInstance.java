@@ -0,0 +1,314 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.orbitz.consul.model.agent.ImmutableRegistration;
+import com.orbitz.consul.model.agent.Registration;
+import com.orbitz.consul.model.health.Service;
+import com.orbitz.consul.model.health.ServiceHealth;
+
+/**
+ * Service instance as registered by {@link TcpDiscoveryConsulIpFinder}.
+ *
+ * An instance may carry several discovery addresses in tags of the form {@code ignite-addr=host:port};
+ * the service address and port then hold the first of them so that plain Consul clients still see a usable address.
+ * Instances may also carry user-defined tags and metadata, e.g. to tell clusters sharing a service name apart.
+ */
+class ConsulServiceInstance {
+
+    /** Prefix of tags carrying discovery addresses. */
+    static final String ADDR_TAG_PREFIX = "ignite-addr=";
+
+    /** Instance ID. */
+    private final String id;
+
+    /** Service address. */
+    private final String addr;
+
+    /** Service port. */
+    private final int port;
+
+    /** Tags. */
+    private final List<String> tags;
+
+    /** Metadata. */
+    private final Map<String, String> meta;
+
+    /**
+     * @param id Instance ID.
+     * @param addr Service address.
+     * @param port Service port.
+     * @param tags Tags.
+     * @param meta Metadata.
+     */
+    ConsulServiceInstance(String id, String addr, int port, List<String> tags, Map<String, String> meta) {
+        this.id = id;
+        this.addr = addr;
+        this.port = port;
+        this.tags = tags;
+        this.meta = meta;
+    }
+
+    /**
+     * Creates an instance for a single address.
+     *
+     * @param id Instance ID.
+     * @param sockAddr Address.
+     * @param labels User-defined tags.
+     * @param meta Metadata.
+     * @return Instance.
+     */
+    static ConsulServiceInstance single(String id, InetSocketAddress sockAddr, List<String> labels,
+        Map<String, String> meta) {
+        return new ConsulServiceInstance(id, sockAddr.getAddress().getHostAddress(), sockAddr.getPort(), labels, meta);
+    }
+
+    /**
+     * Creates an instance carrying several addresses.
+     *
+     * @param id Instance ID.
+     * @param sockAddrs Addresses, the first one becomes the service address.
+     * @param labels User-defined tags.
+     * @param meta Metadata.
+     * @return Instance.
+     */
+    static ConsulServiceInstance multi(String id, List<InetSocketAddress> sockAddrs, List<String> labels,
+        Map<String, String> meta) {
+        List<String> tags = new ArrayList<>(labels.size() + sockAddrs.size());
+
+        tags.addAll(labels);
+
+        for (InetSocketAddress sockAddr : sockAddrs)
+            tags.add(ADDR_TAG_PREFIX + toString(sockAddr));
+
+        InetSocketAddress first = sockAddrs.get(0);
+
+        return new ConsulServiceInstance(id, first.getAddress().getHostAddress(), first.getPort(), tags, meta);
+    }
+
+    /**
+     * @return Instance ID.
+     */
+    String id() {
+        return id;
+    }
+
+    /**
+     * @return Service address.
+     */
+    String address() {
+        return addr;
+    }
+
+    /**
+     * @return Service port.
+     */
+    int port() {
+        return port;
+    }
+
+    /**
+     * @return Tags.
+     */
+    List<String> tags() {
+        return tags;
+    }
+
+    /**
+     * @return Metadata.
+     */
+    Map<String, String> meta() {
+        return meta;
+    }
+
+    /**
+     * @param name Service name.
+     * @param check Health check or {@code null}.
+     * @return Agent registration, without metadata which consul-client does not support.
+     */
+    Registration toRegistration(String name, Registration.RegCheck check) {
+        ImmutableRegistration.Builder builder = ImmutableRegistration.builder()
+            .name(name)
+            .id(id)
+            .address(addr)
+            .port(port)
+            .tags(tags);
+
+        if (check != null)
+            builder.check(check);
+
+        return builder.build();
+    }
+
+    /**
+     * @param name Service name.
+     * @param check TTL health check or {@code null}.
+     * @return Body of an agent registration ({@code PUT /v1/agent/service/register}), with metadata.
+     */
+    String toRegistrationJson(String name, Registration.RegCheck check) {
+        StringBuilder sb = new StringBuilder("{\"ID\":");
+
+        ConsulHttpClient.jsonString(sb, id).append(",\"Name\":");
+        ConsulHttpClient.jsonString(sb, name).append(',');
+
+        appendFields(sb);
+
+        if (check != null) {
+            sb.append(",\"Check\":{\"TTL\":");
+            ConsulHttpClient.jsonString(sb, check.getTtl().get());
+
+            if (check.getDeregisterCriticalServiceAfter().isPresent()) {
+                sb.append(",\"DeregisterCriticalServiceAfter\":");
+                ConsulHttpClient.jsonString(sb, check.getDeregisterCriticalServiceAfter().get());
+            }
+
+            if (check.getStatus().isPresent()) {
+                sb.append(",\"Status\":");
+                ConsulHttpClient.jsonString(sb, check.getStatus().get());
+            }
+
+            sb.append('}');
+        }
+
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Appends the address, port, tags and metadata fields of a service definition.
+     *
+     * @param sb Target.
+     * @return Target.
+     */
+    StringBuilder appendFields(StringBuilder sb) {
+        sb.append("\"Address\":");
+        ConsulHttpClient.jsonString(sb, addr).append(",\"Port\":").append(port);
+
+        if (!tags.isEmpty()) {
+            sb.append(",\"Tags\":[");
+
+            for (int i = 0; i < tags.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+
+                ConsulHttpClient.jsonString(sb, tags.get(i));
+            }
+
+            sb.append(']');
+        }
+
+        if (!meta.isEmpty()) {
+            sb.append(",\"Meta\":{");
+
+            boolean first = true;
+
+            for (Map.Entry<String, String> e : meta.entrySet()) {
+                if (!first)
+                    sb.append(',');
+
+                ConsulHttpClient.jsonString(sb, e.getKey()).append(':');
+                ConsulHttpClient.jsonString(sb, e.getValue());
+
+                first = false;
+            }
+
+            sb.append('}');
+        }
+
+        return sb;
+    }
+
+    /**
+     * Extracts discovery addresses from a healthy service instance, like {@link ConsulHealthParser}: the addresses
+     * carried in tags if any, otherwise the service address and port, the address defaulting to that of the node
+     * if the service was registered without one.
+     *
+     * @param sh Service instance.
+     * @return Addresses.
+     */
+    static Collection<InetSocketAddress> addresses(ServiceHealth sh) {
+        return addresses(sh.getService(), sh.getNode().getAddress());
+    }
+
+    /**
+     * Extracts discovery addresses from a registered service: the addresses carried in tags if any,
+     * otherwise the service address and port.
+     *
+     * @param svc Service.
+     * @return Addresses.
+     */
+    static Collection<InetSocketAddress> addresses(Service svc) {
+        return addresses(svc, null);
+    }
+
+    /**
+     * @param svc Service.
+     * @param dfltAddr Address used if the service has none, {@code null} if none.
+     * @return Addresses.
+     */
+    private static Collection<InetSocketAddress> addresses(Service svc, String dfltAddr) {
+        List<InetSocketAddress> res = null;
+
+        for (String tag : svc.getTags()) {
+            if (tag.startsWith(ADDR_TAG_PREFIX)) {
+                InetSocketAddress sockAddr = parse(tag.substring(ADDR_TAG_PREFIX.length()));
+
+                if (sockAddr != null) {
+                    if (res == null)
+                        res = new ArrayList<>(4);
+
+                    res.add(sockAddr);
+                }
+            }
+        }
+
+        if (res != null)
+            return res;
+
+        String addr = svc.getAddress();
+
+        if ((addr == null || addr.isEmpty()) && dfltAddr != null)
+            addr = dfltAddr;
+
+        return Collections.singletonList(new InetSocketAddress(addr, svc.getPort()));
+    }
+
+    /**
+     * @param sockAddr Address.
+     * @return {@code host:port}, with IPv6 hosts in brackets.
+     */
+    static String toString(InetSocketAddress sockAddr) {
+        String host = sockAddr.getAddress().getHostAddress();
+
+        return sockAddr.getAddress() instanceof Inet6Address ?
+            '[' + host + "]:" + sockAddr.getPort() : host + ':' + sockAddr.getPort();
+    }
+
+    /**
+     * @param s {@code host:port} as produced by {@link #toString(InetSocketAddress)}.
+     * @return Address or {@code null} if malformed.
+     */
+    static InetSocketAddress parse(String s) {
+        int colon = s.lastIndexOf(':');
+
+        if (colon <= 0 || colon == s.length() - 1)
+            return null;
+
+        String host = s.substring(0, colon);
+
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+
+        try {
+            return new InetSocketAddress(host, Integer.parseInt(s.substring(colon + 1)));
+        }
+        catch (IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.ignite.spi.IgniteSpiException;
+
+/**
+ * JVM-wide coalescing of identical in-flight Consul queries: while a query for a key is running, other callers
+ * with the same key wait for its result instead of issuing their own request. Results must be immutable.
+ */
+final class ConsulSingleFlight {
+
+    /** In-flight queries. */
+    private static final ConcurrentMap<String, FutureTask<?>> inFlight = new ConcurrentHashMap<>();
+
+    /** No instances. */
+    private ConsulSingleFlight() {
+        // No-op.
+    }
+
+    /**
+     * @param key Query key; callers with equal keys share a single execution.
+     * @param qry Query.
+     * @return Query result, possibly computed for another caller.
+     * @throws IgniteSpiException If the query failed with a checked exception.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T execute(String key, Callable<T> qry) throws IgniteSpiException {
+        FutureTask<T> task = new FutureTask<>(qry);
+
+        FutureTask<T> running = (FutureTask<T>)inFlight.putIfAbsent(key, task);
+
+        if (running == null) {
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.remove(key, task);
+            }
+
+            running = task;
+        }
+
+        try {
+            return running.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IgniteSpiException("Interrupted while waiting for Consul query: " + key, e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+
+            if (cause instanceof Error)
+                throw (Error)cause;
+
+            throw new IgniteSpiException("Consul query failed: " + key, cause);
+        }
+    }
+}
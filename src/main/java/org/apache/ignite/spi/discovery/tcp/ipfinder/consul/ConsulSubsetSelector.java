@@ -0,0 +1,173 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Deterministic subset selection by rendezvous (highest random weight) hashing.
+ *
+ * The subset of a node is made of a few anchors, ranked with a seed shared by all nodes so that every node
+ * knows them, and of addresses ranked with the node's own seed, which spreads nodes evenly over the cluster.
+ * Adding or removing an address only changes the subsets it ranks in, so subsets stay stable as the cluster grows.
+ */
+class ConsulSubsetSelector {
+
+    /** Seed shared by all nodes for ranking anchors. */
+    private static final long ANCHOR_SEED = hash("ignite-consul-anchors", 0);
+
+    /** Subset size. */
+    private final int size;
+
+    /** Number of anchors. */
+    private final int anchors;
+
+    /** Seed of the local node. */
+    private final long seed;
+
+    /** Input and result of the last selection. */
+    private volatile Collection<?>[] last;
+
+    /**
+     * @param size Subset size.
+     * @param anchors Number of anchors, at most {@code size}.
+     * @param nodeId Identity of the local node.
+     */
+    ConsulSubsetSelector(int size, int anchors, String nodeId) {
+        assert anchors <= size;
+
+        this.size = size;
+        this.anchors = anchors;
+
+        seed = hash(nodeId, 0);
+    }
+
+    /**
+     * @param addrs All addresses, immutable.
+     * @return Immutable subset, in the order of {@code addrs}.
+     */
+    @SuppressWarnings("unchecked")
+    Collection<InetSocketAddress> select(Collection<InetSocketAddress> addrs) {
+        if (addrs.size() <= size)
+            return addrs;
+
+        Collection<?>[] prev = last;
+
+        // Lookups return the same instance while nothing changes.
+        if (prev != null && prev[0] == addrs)
+            return (Collection<InetSocketAddress>)prev[1];
+
+        Set<InetSocketAddress> res = new HashSet<>(
+            top(addrs, ANCHOR_SEED, anchors, Collections.<InetSocketAddress>emptySet()));
+
+        res.addAll(top(addrs, seed, size - res.size(), res));
+
+        // Keep the input order, which may rank addresses by proximity.
+        Set<InetSocketAddress> ordered = new LinkedHashSet<>(res.size() * 2);
+
+        for (InetSocketAddress addr : addrs) {
+            if (res.contains(addr))
+                ordered.add(addr);
+        }
+
+        Collection<InetSocketAddress> out = Collections.unmodifiableSet(ordered);
+
+        last = new Collection<?>[] {addrs, out};
+
+        return out;
+    }
+
+    /**
+     * @param addrs Addresses.
+     * @param seed Ranking seed.
+     * @param k Number of addresses to select.
+     * @param excl Addresses not to select.
+     * @return {@code k} highest ranked addresses.
+     */
+    private static List<InetSocketAddress> top(Collection<InetSocketAddress> addrs, long seed, int k,
+        Set<InetSocketAddress> excl) {
+        if (k <= 0)
+            return Collections.emptyList();
+
+        // Min-heap of the k best scores seen so far.
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(k + 1);
+
+        for (InetSocketAddress addr : addrs) {
+            if (excl.contains(addr))
+                continue;
+
+            long score = hash(ConsulServiceInstance.toString(addr), seed);
+
+            if (heap.size() < k)
+                heap.add(new Ranked(addr, score));
+            else if (score > heap.peek().score) {
+                heap.poll();
+
+                heap.add(new Ranked(addr, score));
+            }
+        }
+
+        List<InetSocketAddress> res = new ArrayList<>(heap.size());
+
+        for (Ranked r : heap)
+            res.add(r.addr);
+
+        return res;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer.
+     *
+     * @param s String.
+     * @param seed Seed.
+     * @return Hash.
+     */
+    static long hash(String s, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    /**
+     * Address with its score.
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        /** Address. */
+        final InetSocketAddress addr;
+
+        /** Score. */
+        final long score;
+
+        /**
+         * @param addr Address.
+         * @param score Score.
+         */
+        Ranked(InetSocketAddress addr, long score) {
+            this.addr = addr;
+            this.score = score;
+        }
+
+        /** {@inheritDoc} */
+        @Override public int compareTo(Ranked o) {
+            return Long.compare(score, o.score);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+import com.orbitz.consul.Consul;
+
+/**
+ * HTTP transport to a Consul endpoint, shared by all {@link TcpDiscoveryConsulIpFinder} instances of the JVM
+ * using the same endpoint and settings, so that several nodes per JVM share connection pools, dispatcher threads
+ * and TLS sessions. A transport is created by the first {@link #acquire} and closed by the last {@link #release()}.
+ *
+ * The consul-client clients are built on first use: finders with an explicit client only use the raw HTTP ones,
+ * and only the watch mode needs the blocking query ones. They are never rebuilt once the transport is closed.
+ */
+final class ConsulTransport {
+
+    /** Shared transports by endpoint and settings. */
+    private static final Map<List<Object>, ConsulTransport> transports = new HashMap<>();
+
+    /** Key. */
+    private final List<Object> key;
+
+    /** Base URL. */
+    private final String url;
+
+    /** Connect timeout, in milliseconds. */
+    private final int connTimeout;
+
+    /** Read timeout, in milliseconds. */
+    private final int readTimeout;
+
+    /** Read timeout of blocking queries, in milliseconds. */
+    private final int blockingReadTimeout;
+
+    /** ACL token, {@code null} if none. */
+    private final String aclToken;
+
+    /** SSL context, {@code null} for the default one. */
+    private final SSLContext sslCtx;
+
+    /** HTTP client. */
+    private final ConsulHttpClient http;
+
+    /** HTTP client for blocking queries. */
+    private final ConsulHttpClient blockingHttp;
+
+    /** Number of users, guarded by the class. */
+    private int refCnt;
+
+    /** Client, {@code null} until first used. */
+    private Consul client;
+
+    /** Client for blocking queries, {@code null} until first used. */
+    private Consul blockingClient;
+
+    /** Whether the transport is closed, guarded by this. */
+    private boolean closed;
+
+    /**
+     * @param key Key.
+     * @param url Base URL.
+     * @param connTimeout Connect timeout, in milliseconds.
+     * @param readTimeout Read timeout, in milliseconds.
+     * @param blockingReadTimeout Read timeout of blocking queries, in milliseconds.
+     * @param aclToken ACL token or {@code null}.
+     * @param sslCtx SSL context or {@code null}.
+     */
+    private ConsulTransport(List<Object> key, String url, int connTimeout, int readTimeout, int blockingReadTimeout,
+        String aclToken, SSLContext sslCtx) {
+        this.key = key;
+        this.url = url;
+        this.connTimeout = connTimeout;
+        this.readTimeout = readTimeout;
+        this.blockingReadTimeout = blockingReadTimeout;
+        this.aclToken = aclToken;
+        this.sslCtx = sslCtx;
+
+        http = new ConsulHttpClient(url, connTimeout, readTimeout, aclToken, sslCtx);
+        blockingHttp = new ConsulHttpClient(url, connTimeout, blockingReadTimeout, aclToken, sslCtx);
+    }
+
+    /**
+     * @param url Base URL.
+     * @param connTimeout Connect timeout, in milliseconds.
+     * @param readTimeout Read timeout, in milliseconds.
+     * @param blockingReadTimeout Read timeout of blocking queries, in milliseconds.
+     * @param aclToken ACL token or {@code null}.
+     * @param sslCtx SSL context or {@code null} for the default one.
+     * @return Shared transport, to be released with {@link #release()}.
+     */
+    static synchronized ConsulTransport acquire(String url, int connTimeout, int readTimeout,
+        int blockingReadTimeout, String aclToken, SSLContext sslCtx) {
+        // SSL contexts are compared by identity.
+        List<Object> key = Arrays.<Object>asList(url, connTimeout, readTimeout, blockingReadTimeout, aclToken, sslCtx);
+
+        ConsulTransport transport = transports.get(key);
+
+        if (transport == null) {
+            transport = new ConsulTransport(key, url, connTimeout, readTimeout, blockingReadTimeout, aclToken,
+                sslCtx);
+
+            transports.put(key, transport);
+        }
+
+        transport.refCnt++;
+
+        return transport;
+    }
+
+    /** Releases this transport, closing it once nobody uses it. */
+    void release() {
+        Consul c;
+        Consul bc;
+
+        synchronized (ConsulTransport.class) {
+            if (refCnt == 0 || --refCnt > 0)
+                return;
+
+            transports.remove(key);
+        }
+
+        synchronized (this) {
+            c = client;
+            bc = blockingClient;
+
+            client = null;
+            blockingClient = null;
+
+            closed = true;
+        }
+
+        if (c != null)
+            c.destroy();
+
+        if (bc != null)
+            bc.destroy();
+    }
+
+    /**
+     * @return Client.
+     * @throws IllegalStateException If the transport is closed.
+     */
+    synchronized Consul client() {
+        checkOpen();
+
+        if (client == null)
+            client = build(readTimeout);
+
+        return client;
+    }
+
+    /**
+     * @return Client for blocking queries.
+     * @throws IllegalStateException If the transport is closed.
+     */
+    synchronized Consul blockingClient() {
+        checkOpen();
+
+        if (blockingClient == null)
+            blockingClient = build(blockingReadTimeout);
+
+        return blockingClient;
+    }
+
+    /**
+     * @return HTTP client for calls not covered by consul-client.
+     */
+    ConsulHttpClient http() {
+        return http;
+    }
+
+    /**
+     * @return HTTP client for blocking queries not covered by consul-client.
+     */
+    ConsulHttpClient blockingHttp() {
+        return blockingHttp;
+    }
+
+    /**
+     * @throws IllegalStateException If the transport is closed, a client built now would never be destroyed.
+     */
+    private void checkOpen() {
+        assert Thread.holdsLock(this);
+
+        if (closed)
+            throw new IllegalStateException("Consul transport is closed: " + url);
+    }
+
+    /**
+     * @param readTimeout Read timeout, in milliseconds.
+     * @return Client.
+     */
+    private Consul build(int readTimeout) {
+        // No ping: an unreachable endpoint must neither fail nor stall initialization, failover deals with it.
+        Consul.Builder builder = Consul.builder()
+            .withUrl(url)
+            .withPing(false)
+            .withConnectTimeoutMillis(connTimeout)
+            .withReadTimeoutMillis(readTimeout);
+
+        if (aclToken != null)
+            builder.withAclToken(aclToken);
+
+        if (sslCtx != null)
+            builder.withSslContext(sslCtx);
+
+        return builder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -1,24 +1,79 @@
 package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.ignite.IgniteCheckedException;
 import org.apache.ignite.IgniteLogger;
+import org.apache.ignite.cluster.ClusterNode;
+import org.apache.ignite.internal.IgniteEx;
+import org.apache.ignite.internal.IgniteInterruptedCheckedException;
+import org.apache.ignite.internal.util.GridConcurrentHashSet;
 import org.apache.ignite.internal.util.tostring.GridToStringExclude;
 import org.apache.ignite.internal.util.typedef.internal.A;
+import org.apache.ignite.internal.util.typedef.internal.LT;
 import org.apache.ignite.internal.util.typedef.internal.U;
 import org.apache.ignite.resources.LoggerResource;
+import org.apache.ignite.spi.IgniteSpiContext;
 import org.apache.ignite.spi.IgniteSpiException;
+import org.apache.ignite.spi.discovery.tcp.TcpDiscoverySpi;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.TcpDiscoveryIpFinder;
+import org.apache.ignite.spi.discovery.tcp.internal.TcpDiscoveryNode;
 import org.apache.ignite.spi.discovery.tcp.ipfinder.TcpDiscoveryIpFinderAdapter;
 
 import com.orbitz.consul.Consul;
-import com.orbitz.consul.model.agent.ImmutableRegistration;
+import com.orbitz.consul.ConsulException;
+import com.orbitz.consul.NotRegisteredException;
+import com.orbitz.consul.model.agent.ImmutableRegCheck;
 import com.orbitz.consul.model.agent.Registration;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.ImmutableCatalogDeregistration;
+import com.orbitz.consul.model.health.Service;
 import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+import com.orbitz.consul.option.QueryOptions;
 
 /**
  * 
@@ -31,6 +86,10 @@ import com.orbitz.consul.model.health.ServiceHealth;
  * 
  * The main difference is that Consul does not allow for duplicated registration and hasn't the same notion of ephemeral 
  * node as ZooKeeper, so we have to take that into account and manually deregister nodes when closing
+ * (the {@link ConsulRegistrationMode#KV KV} registration mode emulates them with Consul sessions).
+ * 
+ * Finders of the JVM using the same Consul URLs and HTTP settings share their clients, connection pools and
+ * dispatcher threads, released by the last finder stopped.
  * 
  *
  */
@@ -46,17 +105,87 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
     public static final String PROP_CONSUL_PORT_KEY = "IGNITE_CONSUL_PORT";
     
     public static final int DEFAULT_CONSUL_PORT = 8500;
+    
+    /** Default delay after which Consul deregisters instances whose TTL check stays critical, in seconds. */
+    public static final int DEFAULT_DEREGISTER_CRITICAL_AFTER_SECONDS = 60;
+    
+    /** Default number of retries of a failed Consul call. */
+    public static final int DEFAULT_RETRY_COUNT = 2;
+    
+    /** Default base delay of the exponential back-off between retries, in milliseconds. */
+    public static final long DEFAULT_RETRY_BASE_DELAY = 200;
+    
+    /** Default maximum delay between retries, in milliseconds. */
+    public static final long DEFAULT_RETRY_MAX_DELAY = 5000;
+    
+    /** Default maximum number of Consul calls run in parallel by a finder. */
+    public static final int DEFAULT_ASYNC_PARALLELISM = 8;
+    
+    /** Default time to wait for the local addresses to be unregistered on shutdown, in milliseconds. */
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 10_000;
+    
+    /** Default connect timeout of HTTP calls to Consul, in milliseconds. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = ConsulHttpClient.DEFAULT_CONNECT_TIMEOUT;
+    
+    /** Default read timeout of HTTP calls to Consul, in milliseconds. */
+    public static final int DEFAULT_READ_TIMEOUT = ConsulHttpClient.DEFAULT_READ_TIMEOUT;
+    
+    /** Default time lookups wait for remote datacenters, in milliseconds. */
+    public static final long DEFAULT_DATACENTER_TIMEOUT = 2_000;
+    
+    /** Default number of nearest addresses joining nodes get when proximity is enabled. */
+    public static final int DEFAULT_PROXIMITY_CANDIDATES = 3;
+    
+    /** Default time the circuit breaker stays open before letting a probe through, in milliseconds. */
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_TIME = 10_000;
+    
+    /** Default maximum age of addresses served from the address cache file, in milliseconds. */
+    public static final long DEFAULT_CACHE_MAX_AGE = 60 * 60_000;
+    
+    /** Default number of subset addresses shared by all nodes. */
+    public static final int DEFAULT_SUBSET_ANCHORS = 2;
+    
+    /** Default TTL of the sessions of the {@link ConsulRegistrationMode#KV} registration mode, in seconds. */
+    public static final int DEFAULT_SESSION_TTL_SECONDS = 15;
+    
+    /** Default domain of the Consul DNS interface. */
+    public static final String DEFAULT_DNS_DOMAIN = "consul";
+    
+    /** Default maximum number of orphaned instances removed per reconciliation. */
+    public static final int DEFAULT_RECONCILE_BATCH_SIZE = 16;
+    
+    /** Prefix of the tag naming the cluster of an instance. */
+    public static final String CLUSTER_TAG_PREFIX = "ignite-cluster=";
+    
+    /** Prefix of the tag naming the Ignite node, by ID, that registered an instance. */
+    public static final String NODE_TAG_PREFIX = "ignite-node=";
+    
+    /** Value of the {@code near} query parameter sorting instances by round trip time from the local agent. */
+    static final String NEAR_AGENT = "_agent";
+    
+    /** Default blocking query wait time used by the watch mode, in seconds. */
+    public static final int DEFAULT_WATCH_WAIT_SECONDS = 55;
+    
+    /** Maximum age of prefetched addresses served to the first lookup, in milliseconds. */
+    static final long PREFETCH_MAX_AGE = 5000;
 	
     /** Init guard. */
     @GridToStringExclude
     private final AtomicBoolean initGuard = new AtomicBoolean();
 
+    /** Released once initialization completes, successfully or not. */
+    @GridToStringExclude
+    private final CountDownLatch initLatch = new CountDownLatch(1);
+
+    /** Initialization error, if any. */
+    @GridToStringExclude
+    private volatile RuntimeException initErr;
+
     /** Close guard. */
     @GridToStringExclude
     private final AtomicBoolean closeGuard = new AtomicBoolean();
     
     /** Logger. */
-    @LoggerResource
     private IgniteLogger log;
     
     private String serviceName = SERVICE_NAME;
@@ -64,28 +193,411 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
     /** Consul client*/
 	private Consul consul;
 	
-	/** Consul server address*/
+	/** Consul endpoints, built on init*/
+	@GridToStringExclude
+	private ConsulEndpoints endpoints;
+	
+	/** Consul server address, or comma-separated addresses*/
 	private String consulAddres;
 	
 	/** Consul server port*/
 	private int consulPort = DEFAULT_CONSUL_PORT;
 	
 	/** All addresses registered by this node*/
-	private HashSet<InetSocketAddress> ourInstances = new HashSet<>();
+	private final Set<InetSocketAddress> ourInstances = new GridConcurrentHashSet<>();
 	
 	/** Registered addresses for this node*/
-	private HashSet<InetSocketAddress> myAddresses = new HashSet<>();
+	private final Set<InetSocketAddress> myAddresses = new GridConcurrentHashSet<>();
+	
+	/** Whether addresses are served from a snapshot kept up to date by Consul blocking queries*/
+	private boolean watchEnabled;
+	
+	/** Blocking query wait time for the watch mode, in seconds*/
+	private int watchWaitSeconds = DEFAULT_WATCH_WAIT_SECONDS;
+	
+	/** How addresses are mapped onto Consul service instances*/
+	private ConsulRegistrationMode registrationMode = ConsulRegistrationMode.PER_ADDRESS;
+	
+	/** Whether registrations are batched through the Consul transaction API*/
+	private boolean batchRegistration;
+	
+	/** Prefix of the catalog nodes that batched registrations are attached to*/
+	private String catalogNodeName;
+	
+	/** Catalog node of this finder, {@code null} until first used*/
+	private volatile String catalogNode;
+	
+	/** Set once the agent turned out to have no transaction API, registrations then going through the agent*/
+	private volatile boolean txnUnsupported;
+	
+	/** Whether instance IDs are prefixed with the configured node consistent ID*/
+	private boolean includeConsistentId;
+	
+	/** Whether the instances of the local addresses registered under legacy host-name based IDs are removed*/
+	private boolean legacyIdCleanup;
+	
+	/** Whether host names are resolved in the background for logging*/
+	private boolean resolveHostNames;
+	
+	/** Prefix of instance IDs, empty unless consistent IDs are included*/
+	private String instanceIdPrefix = "";
+	
+	/** Background host name resolver, {@code null} unless host names are resolved*/
+	@GridToStringExclude
+	private ConsulHostNameCache hostNames;
+	
+	/** TTL of the health check attached to registrations in seconds, {@code 0} for no check*/
+	private int checkTtlSeconds;
+	
+	/** Delay after which Consul deregisters instances whose TTL check stays critical, in seconds*/
+	private int deregisterCriticalAfterSeconds = DEFAULT_DEREGISTER_CRITICAL_AFTER_SECONDS;
+	
+	/** Instances registered with a TTL check, refreshed by the heartbeat*/
+	@GridToStringExclude
+	private final ConcurrentMap<String, ConsulServiceInstance> ttlInstances = new ConcurrentHashMap<>();
+	
+	/** Heartbeat task, {@code null} unless TTL checks are enabled*/
+	@GridToStringExclude
+	private ScheduledFuture<?> heartbeat;
+	
+	/** Scheduler of {@link #heartbeat}, shared with the finders of the same Consul*/
+	@GridToStringExclude
+	private ConsulHeartbeatScheduler heartbeatScheduler;
+	
+	/** Number of retries of a failed Consul call*/
+	private int retryCount = DEFAULT_RETRY_COUNT;
+	
+	/** Base delay of the exponential back-off between retries, in milliseconds*/
+	private long retryBaseDelay = DEFAULT_RETRY_BASE_DELAY;
+	
+	/** Maximum delay between retries, in milliseconds*/
+	private long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+	
+	/** Consistency mode of discovery reads*/
+	private ConsistencyMode readConsistency = ConsistencyMode.DEFAULT;
+	
+	/** Maximum staleness accepted from stale reads in milliseconds, {@code 0} for no bound*/
+	private long maxStale;
+	
+	/** Max-age of responses served from the agent cache in seconds, {@code 0} to bypass the agent cache*/
+	private int agentCacheMaxAge;
+	
+	/** Whether lookups stream the health response instead of deserializing it*/
+	private boolean leanLookups;
+	
+	/** Port of the Consul DNS interface lookups go through, {@code 0} to use the HTTP API*/
+	private int dnsPort;
+	
+	/** Domain of the Consul DNS interface*/
+	private String dnsDomain = DEFAULT_DNS_DOMAIN;
+	
+	/** TTL of the sessions of the KV registration mode in seconds*/
+	private int sessionTtlSeconds = DEFAULT_SESSION_TTL_SECONDS;
+	
+	/** KV registry, {@code null} unless the KV registration mode is used*/
+	@GridToStringExclude
+	private ConsulKvRegistry kv;
+	
+	/** DNS resolver, {@code null} unless lookups go through DNS*/
+	@GridToStringExclude
+	private ConsulDnsResolver dns;
+	
+	/** Parser of streamed health responses, keeping the addresses of the previous lookup*/
+	private final ConsulHealthParser healthParser = new ConsulHealthParser();
+	
+	/** Name of the cluster, registered as a tag and required from looked up instances*/
+	private String clusterName;
+	
+	/** Tags added to registrations*/
+	private List<String> serviceTags = Collections.emptyList();
+	
+	/** Metadata added to registrations*/
+	private Map<String, String> serviceMeta = Collections.emptyMap();
+	
+	/** Tags looked up instances must have*/
+	private List<String> lookupTags = Collections.emptyList();
+	
+	/** Filter expression looked up instances must match, {@code null} for none*/
+	private String lookupFilter;
+	
+	/** Tags of registrations, including the cluster tag, built on init*/
+	private List<String> regTags = Collections.emptyList();
+	
+	/** Tags of lookups, including the cluster tag, built on init*/
+	private List<String> qryTags = Collections.emptyList();
+	
+	/** Remote datacenters queried in addition to the local one*/
+	private List<String> datacenters = Collections.emptyList();
+	
+	/** Time lookups wait for remote datacenters in milliseconds*/
+	private long datacenterTimeout = DEFAULT_DATACENTER_TIMEOUT;
+	
+	/** Number of local addresses below which joining nodes also get those of remote datacenters*/
+	private int minLocalAddresses = 1;
+	
+	/** Parsers of streamed health responses of remote datacenters*/
+	@GridToStringExclude
+	private final ConcurrentMap<String, ConsulHealthParser> dcParsers = new ConcurrentHashMap<>();
+	
+	/** In-flight lookups of remote datacenters*/
+	@GridToStringExclude
+	private final ConcurrentMap<String, CompletableFuture<Collection<InetSocketAddress>>> dcReads =
+		new ConcurrentHashMap<>();
+	
+	/** Last addresses read from each remote datacenter*/
+	@GridToStringExclude
+	private final ConcurrentMap<String, Collection<InetSocketAddress>> dcAddrs = new ConcurrentHashMap<>();
+	
+	/** Parts and result of the last merge of datacenter addresses*/
+	@GridToStringExclude
+	private volatile Object[] lastMerge;
+	
+	/** Maximum number of Consul calls run in parallel*/
+	private int asyncParallelism = DEFAULT_ASYNC_PARALLELISM;
+	
+	/** Time to wait for the local addresses to be unregistered on shutdown in milliseconds, {@code 0} for no limit*/
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+	
+	/** Connect timeout of HTTP calls in milliseconds*/
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	/** Read timeout of HTTP calls other than blocking queries in milliseconds*/
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	
+	/** ACL token, {@code null} if none*/
+	@GridToStringExclude
+	private String aclToken;
+	
+	/** SSL context of HTTPS calls, {@code null} for the default one*/
+	@GridToStringExclude
+	private SSLContext sslContext;
+	
+	/** Whether the local addresses are unregistered by a JVM shutdown hook if the SPI is not stopped*/
+	private boolean shutdownHookEnabled;
+	
+	/** Executor of asynchronous Consul calls*/
+	@GridToStringExclude
+	private ThreadPoolExecutor asyncExec;
+	
+	/** JVM shutdown hook, {@code null} if disabled*/
+	@GridToStringExclude
+	private Thread shutdownHook;
+	
+	/** Number of addresses returned by lookups, {@code 0} to return all of them*/
+	private int subsetSize;
+	
+	/** Number of subset addresses shared by all nodes*/
+	private int subsetAnchors = DEFAULT_SUBSET_ANCHORS;
+	
+	/** Subset selector, built on first use*/
+	@GridToStringExclude
+	private volatile ConsulSubsetSelector subsetSelector;
+	
+	/** Whether lookups are sorted by network round trip time from the local agent*/
+	private boolean proximityOrdering;
+	
+	/** TCP connect probe timeout in milliseconds, {@code 0} for no probe*/
+	private int proximityProbeTimeout;
+	
+	/** Number of nearest addresses joining nodes get when proximity is enabled*/
+	private int proximityCandidates = DEFAULT_PROXIMITY_CANDIDATES;
+	
+	/** Connect prober, {@code null} if disabled*/
+	@GridToStringExclude
+	private ConsulProximityProber prober;
+	
+	/** Number of consecutive failed Consul calls opening the circuit breaker, {@code 0} to disable it*/
+	private int circuitBreakerThreshold;
+	
+	/** Time the circuit breaker stays open before letting a probe through in milliseconds*/
+	private long circuitBreakerOpenTime = DEFAULT_CIRCUIT_BREAKER_OPEN_TIME;
+	
+	/** IP finder used when Consul lookups fail, {@code null} for none*/
+	private TcpDiscoveryIpFinder fallbackIpFinder;
+	
+	/** Whether the addresses of the fallback IP finder are always merged into lookups*/
+	private boolean mergeFallbackAddresses;
+	
+	/** Address cache file, {@code null} for none*/
+	private String cacheFile;
+	
+	/** Maximum age of addresses served from the cache file in milliseconds, {@code 0} for no bound*/
+	private long cacheMaxAge = DEFAULT_CACHE_MAX_AGE;
+	
+	/** Address cache, {@code null} unless a cache file is set*/
+	@GridToStringExclude
+	private ConsulAddressCache addrCache;
+	
+	/** Whether the first Consul read after loading the cache file is in progress*/
+	private volatile boolean cacheWarmup;
+	
+	/** Whether this finder initializes as soon as the discovery SPI starts*/
+	private boolean eagerInit;
+	
+	/** Addresses prefetched by the eager initialization, {@code null} once served*/
+	@GridToStringExclude
+	private volatile Collection<InetSocketAddress> prefetched;
+	
+	/** Time the addresses were prefetched, in milliseconds*/
+	private volatile long prefetchTime;
+	
+	/** Reconciliation period in milliseconds, {@code 0} to disable the reconciler*/
+	private long reconcileInterval;
+	
+	/** Maximum number of orphaned instances removed per reconciliation*/
+	private int reconcileBatchSize = DEFAULT_RECONCILE_BATCH_SIZE;
+	
+	/** Reconciler, {@code null} unless enabled*/
+	@GridToStringExclude
+	private ConsulReconciler reconciler;
+	
+	/** Metrics, exposed through {@link TcpDiscoveryConsulIpFinderMXBean}*/
+	@GridToStringExclude
+	private final ConsulMetrics metrics = new ConsulMetrics();
+	
+	/** Name of the registered MXBean, {@code null} if not registered*/
+	@GridToStringExclude
+	private ObjectName mbeanName;
+	
+	/** Key under which identical lookups are coalesced across the JVM*/
+	private String lookupKey;
+	
+	/** Address watcher, {@code null} unless the watch mode is enabled*/
+	@GridToStringExclude
+	private volatile ConsulAddressWatcher watcher;
+	
+	/** Address watchers of remote datacenters, empty unless the watch mode is enabled*/
+	@GridToStringExclude
+	private final Map<String, ConsulAddressWatcher> dcWatchers = new LinkedHashMap<>();
+	
+	/** Notifier of the address listeners*/
+	@GridToStringExclude
+	private final ConsulAddressNotifier notifier = new ConsulAddressNotifier();
 	
 	/** Constructor. */
 	public TcpDiscoveryConsulIpFinder() {
 		setShared(true);
 	}
 	
-	/** Initializes this IP Finder by creating the appropriate Curator objects. */
-    private void init() {
-        if (!initGuard.compareAndSet(false, true))
-            return;
+	/**
+	 * Initializes this IP Finder once. Concurrent callers wait for the initializing thread, so none of them
+	 * sees a half-built finder.
+	 * 
+	 * @throws IgniteSpiException If initialization failed.
+	 */
+    private void init() throws IgniteSpiException {
+        if (initGuard.compareAndSet(false, true)) {
+        	try {
+        		initialize();
+        	}
+        	catch (RuntimeException e) {
+        		initErr = e;
+        		
+        		throw e;
+        	}
+        	finally {
+        		initLatch.countDown();
+        	}
+        	
+        	return;
+        }
+        
+        try {
+        	U.await(initLatch);
+        }
+        catch (IgniteInterruptedCheckedException e) {
+        	throw new IgniteSpiException("Thread has been interrupted.", e);
+        }
+        
+        if (initErr != null)
+        	throw new IgniteSpiException("Consul IP Finder failed to initialize.", initErr);
+    }
+    
+    /**
+     * Injects the logger, which Ignite does after the Ignite instance as the discovery SPI starts, and starts
+     * the {@link #setEagerInit(boolean) eager initialization} if enabled.
+     * 
+     * @param log Logger, {@code null} when resources are cleaned up.
+     */
+    @LoggerResource
+    private void injectLogger(IgniteLogger log) {
+    	this.log = log;
+    	
+    	if (log != null && eagerInit)
+    		initAsync();
+    }
+    
+    /**
+     * Initializes this IP Finder, warms up the connections to Consul and prefetches the addresses in the background,
+     * while the discovery SPI resolves and binds its local addresses.
+     */
+    private void initAsync() {
+    	if (initGuard.get())
+    		return;
+    	
+    	Thread t = new Thread("consul-ip-finder-init-" + serviceName) {
+    		@Override
+    		public void run() {
+    			try {
+    				init();
+    			}
+    			catch (RuntimeException e) {
+    				// Discovery gets the error from its own init() call.
+    				U.warn(log, "Consul IP Finder eager initialization failed: " + e.getMessage());
+    				
+    				return;
+    			}
+    			
+    			prewarm();
+    		}
+    	};
+    	
+    	t.setDaemon(true);
+    	t.start();
+    }
+    
+    /** Opens a connection to every Consul endpoint and prefetches the addresses. */
+    private void prewarm() {
+    	for (ConsulEndpoints.Endpoint ep : endpoints.all()) {
+    		if (closeGuard.get())
+    			return;
+    		
+    		try {
+    			// Leaves a pooled connection, TLS handshake included, for registration and lookups.
+    			ep.client().statusClient().getLeader();
+    		}
+    		catch (Exception e) {
+    			if (log.isDebugEnabled())
+    				log.debug("Consul IP Finder could not warm up a connection [endpoint=" + ep + ", err=" +
+    					e.getMessage() + ']');
+    		}
+    	}
+    	
+    	// The watcher or the cache warm-up are reading the addresses already.
+    	if (watcher != null || cacheWarmup || closeGuard.get())
+    		return;
+    	
+    	try {
+    		// A lookup issued meanwhile joins this read.
+    		Collection<InetSocketAddress> addrs = onConsulRead(ConsulSingleFlight.execute(lookupKey,
+    			new Callable<Collection<InetSocketAddress>>() {
+    				@Override
+    				public Collection<InetSocketAddress> call() {
+    					return readAllAddresses();
+    				}
+    			}));
+    		
+    		prefetchTime = U.currentTimeMillis();
+    		prefetched = addrs;
+    	}
+    	catch (IgniteSpiException e) {
+    		if (log.isDebugEnabled())
+    			log.debug("Consul IP Finder could not prefetch addresses: " + e.getMessage());
+    	}
+    }
     
+	/** Initializes this IP Finder by creating the appropriate Curator objects. */
+    private void initialize() {
         String propsAddress = StringUtils.trim(System.getProperty(PROP_CONSUL_ADDRESS_KEY));
         String propsPort = StringUtils.trim(System.getProperty(PROP_CONSUL_PORT_KEY));
         
@@ -98,12 +610,267 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
         if(StringUtils.isNotBlank(propsPort))
         	consulPort = Integer.parseInt(propsPort);
         
-        if (consul == null) {
+        List<ConsulEndpoints.Endpoint> eps = new ArrayList<>();
+        
+        boolean injected = consul != null;
+        
+        if (!injected) {
             A.notNullOrEmpty(consulAddres, String.format("Consul URL (or system property %s) cannot be null " +
                 "or empty if a Consul client object is not provided explicitly", PROP_CONSUL_ADDRESS_KEY));
-            consul = Consul.builder().withUrl(consulAddres + ":" + consulPort).build();
+            
+            for (String url : ConsulEndpoints.parseUrls(consulAddres, consulPort))
+            	eps.add(new ConsulEndpoints.Endpoint(url, null, transport(url)));
+            
+            A.ensure(!eps.isEmpty(), "No Consul address configured: " + consulAddres);
+        }
+        else {
+        	// The transaction API is not exposed by consul-client, so it needs the URL even if a client was injected.
+        	String url = StringUtils.isNotBlank(consulAddres) ?
+        		ConsulEndpoints.parseUrls(consulAddres, consulPort).get(0) : null;
+        	
+        	eps.add(new ConsulEndpoints.Endpoint(url, consul, url != null ? transport(url) : null));
+        }
+        
+        endpoints = new ConsulEndpoints(eps, new ConsulBackoff(retryCount, retryBaseDelay, retryMaxDelay), metrics,
+        	new ConsulCircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenTime, log), log);
+        
+        // consul-client cannot register metadata, it goes over raw HTTP.
+        A.ensure(serviceMeta.isEmpty() || eps.get(0).http != null, "Consul URL must be set along with an explicit " +
+        	"Consul client to register service metadata");
+        
+        regTags = withClusterTag(serviceTags);
+        qryTags = withClusterTag(lookupTags);
+        
+        // Lets the reconciler match instances with live nodes whatever addresses they registered.
+        if (ignite instanceof IgniteEx) {
+        	List<String> tags = new ArrayList<>(regTags);
+        	
+        	tags.add(NODE_TAG_PREFIX + ((IgniteEx)ignite).context().localNodeId());
+        	
+        	regTags = Collections.unmodifiableList(tags);
+        }
+        
+        if (registrationMode == ConsulRegistrationMode.KV) {
+        	A.ensure(eps.get(0).url != null, "Consul URL must be set along with an explicit Consul client to " +
+        		"register addresses in the KV store");
+        	A.ensure(serviceTags.isEmpty() && serviceMeta.isEmpty() && lookupTags.isEmpty() && lookupFilter == null,
+        		"KV registrations have no tags, metadata or lookup filter, use the cluster name to separate clusters");
+        	A.ensure(dnsPort == 0 && checkTtlSeconds == 0 && reconcileInterval == 0, "KV registrations support " +
+        		"neither DNS lookups, TTL checks nor the reconciler, sessions take care of dead nodes");
+        	
+        	kv = new ConsulKvRegistry("service/" + serviceName + '/' + (clusterName != null ? clusterName + '/' : "") +
+        		"addresses/", sessionTtlSeconds, endpoints, log);
+        }
+        
+        if (dnsPort > 0) {
+        	A.ensure(eps.get(0).url != null, "Consul URL must be set along with an explicit Consul client to " +
+        		"look up addresses through DNS");
+        	A.ensure(registrationMode == ConsulRegistrationMode.PER_ADDRESS, "DNS lookups require the " +
+        		ConsulRegistrationMode.PER_ADDRESS + " registration mode");
+        	A.ensure(qryTags.size() <= 1 && lookupFilter == null, "DNS lookups support a single tag (cluster name " +
+        		"included) and no lookup filter");
+        	
+        	dns = new ConsulDnsResolver(ConsulDnsResolver.DEFAULT_TIMEOUT, log);
+        }
+        
+        // Finders sharing a client or pointing to the same Consul URLs share lookups, as long as every option
+        // shaping the query or its result is the same.
+        lookupKey = (injected ? "client@" + System.identityHashCode(consul) : String.valueOf(eps)) + '|' + serviceName +
+        	(datacenters.isEmpty() ? "" : "|" + datacenters) + (qryTags.isEmpty() ? "" : "|" + qryTags) +
+        	(lookupFilter == null ? "" : "|" + lookupFilter) + (dnsPort > 0 ? "|dns:" + dnsPort : "") +
+        	(kv != null ? "|kv" : "") + '|' + readConsistency + (maxStale > 0 ? "|maxStale:" + maxStale : "") +
+        	(agentCacheMaxAge > 0 ? "|cache:" + agentCacheMaxAge : "") + (proximityOrdering ? "|near" : "") +
+        	(leanLookups ? "|lean" : "") + (aclToken != null ? "|token:" + hash(aclToken) : "");
+        
+        if (includeConsistentId && ignite != null && ignite.configuration().getConsistentId() != null)
+        	instanceIdPrefix = ignite.configuration().getConsistentId() + ":";
+        
+        if (resolveHostNames)
+        	hostNames = new ConsulHostNameCache();
+        
+        asyncExec = new ThreadPoolExecutor(asyncParallelism, asyncParallelism, 60, TimeUnit.SECONDS,
+        	new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        		@Override
+        		public Thread newThread(Runnable r) {
+        			Thread t = new Thread(r, "consul-ip-finder-async-" + serviceName);
+        			
+        			t.setDaemon(true);
+        			
+        			return t;
+        		}
+        	});
+        
+        asyncExec.allowCoreThreadTimeOut(true);
+        
+        notifier.start(serviceName, log);
+        
+        if (shutdownHookEnabled) {
+        	Thread hook = new Thread("consul-ip-finder-shutdown-hook-" + serviceName) {
+        		@Override
+        		public void run() {
+        			onSpiContextDestroyed();
+        		}
+        	};
+        	
+        	Runtime.getRuntime().addShutdownHook(hook);
+        	
+        	shutdownHook = hook;
         }
+        
+        if (kv != null || checkTtlSeconds > 0) {
+        	ConsulEndpoints.Endpoint ep = endpoints.all().get(0);
+        	
+        	// An injected client stands for its Consul.
+        	heartbeatScheduler = ep.url != null ? ConsulHeartbeatScheduler.acquire(endpoints.toString(), ep.url) :
+        		ConsulHeartbeatScheduler.acquire(ep.client(), ep.toString());
+        }
+        
+        if (kv != null) {
+        	final ConsulKvRegistry reg = kv;
+        	
+        	// Renew well within the TTL, Consul only invalidates sessions after twice their TTL though.
+        	heartbeat = heartbeatScheduler.schedule(new Runnable() {
+        		@Override
+        		public void run() {
+        			reg.heartbeat();
+        		}
+        	}, sessionTtlSeconds * 1000L / 3);
+        }
+        else if (checkTtlSeconds > 0) {
+        	// Refresh well within the TTL so that a single slow or failed pass does not flip checks to critical.
+        	heartbeat = heartbeatScheduler.schedule(new Runnable() {
+        		@Override
+        		public void run() {
+        			heartbeat();
+        		}
+        	}, Math.max(checkTtlSeconds * 1000L / 3, 500L));
+        }
+        
+        if (catalogNodeName == null)
+        	catalogNodeName = serviceName + "-external";
+        
+        if (watchEnabled) {
+        	// Remote datacenters get their own watchers, so that a slow WAN link only delays their own updates.
+        	for (String dc : datacenters) {
+        		ConsulAddressWatcher w = new ConsulAddressWatcher(this, endpoints, serviceName, dc, watchWaitSeconds,
+        			readConsistency, log);
+        		
+        		w.start();
+        		
+        		dcWatchers.put(dc, w);
+        	}
+        	
+        	ConsulAddressWatcher w = new ConsulAddressWatcher(this, endpoints, serviceName, null, watchWaitSeconds,
+        		readConsistency, log);
+        	
+        	// Published first, so that the first update of the watcher reaches the address listeners.
+        	watcher = w;
+        	
+        	w.start();
+        }
+        
+        if (proximityProbeTimeout > 0)
+        	prober = new ConsulProximityProber(proximityProbeTimeout, log);
+        
+        if (cacheFile != null) {
+        	ConsulAddressCache c = new ConsulAddressCache(Paths.get(cacheFile), cacheMaxAge, log);
+        	
+        	c.load();
+        	
+        	addrCache = c;
+        	
+        	// Lookups are answered from the file until the watcher or this first read gets an answer from Consul.
+        	if (c.get() != null && !watchEnabled) {
+        		cacheWarmup = true;
+        		
+        		Thread t = new Thread("consul-ip-finder-warmup-" + serviceName) {
+        			@Override
+        			public void run() {
+        				try {
+        					onConsulRead(readAllAddresses());
+        				}
+        				catch (Exception e) {
+        					U.warn(log, "Consul IP Finder could not read addresses on startup, " +
+        						"serving cached ones: " + e.getMessage());
+        				}
+        				finally {
+        					cacheWarmup = false;
+        				}
+        			}
+        		};
+        		
+        		t.setDaemon(true);
+        		t.start();
+        	}
+        }
+        
+        if (reconcileInterval > 0) {
+        	reconciler = new ConsulReconciler(this, endpoints, serviceName, clusterName, nodeIdentity(),
+        		reconcileInterval, reconcileBatchSize, log);
+        	
+        	reconciler.start();
+        }
+        
+        registerMBean();
+    }
+    
+    /** Registers the metrics MXBean with the MBean server of the node, if any. */
+    private void registerMBean() {
+    	if (ignite == null || U.IGNITE_MBEANS_DISABLED)
+    		return;
+    	
+    	try {
+    		mbeanName = U.registerMBean(ignite.configuration().getMBeanServer(), ignite.name(), "SPIs",
+    			getClass().getSimpleName() + "-" + serviceName, metrics, TcpDiscoveryConsulIpFinderMXBean.class);
+    	}
+    	catch (JMException e) {
+    		U.error(log, "Failed to register Consul IP Finder MBean.", e);
+    	}
     }
+    
+    /** Unregisters the metrics MXBean, if registered. */
+    private void unregisterMBean() {
+    	if (mbeanName == null)
+    		return;
+    	
+    	try {
+    		ignite.configuration().getMBeanServer().unregisterMBean(mbeanName);
+    	}
+    	catch (JMException e) {
+    		U.error(log, "Failed to unregister Consul IP Finder MBean: " + mbeanName, e);
+    	}
+    }
+    
+    /**
+     * @param url Consul base URL.
+     * @return Transport shared with the other finders of the JVM using the same URL and settings.
+     */
+    private ConsulTransport transport(String url) {
+    	// Blocking queries must not be cut short by the HTTP read timeout (Consul adds up to wait/16 of jitter).
+    	int blockingReadTimeout = watchWaitSeconds * 1000 + watchWaitSeconds * 1000 / 16 + readTimeout;
+    	
+    	return ConsulTransport.acquire(url, connectTimeout, readTimeout, blockingReadTimeout, aclToken, sslContext);
+    }
+	
+	/** {@inheritDoc} */
+	@Override
+	public void onSpiContextInitialized(IgniteSpiContext spiCtx) throws IgniteSpiException {
+		super.onSpiContextInitialized(spiCtx);
+		
+		if (fallbackIpFinder != null) {
+			// Only this finder is known to the SPI, inject the resources of the fallback one (e.g. its logger).
+			if (ignite instanceof IgniteEx) {
+				try {
+					((IgniteEx)ignite).context().resource().injectGeneric(fallbackIpFinder);
+				}
+				catch (IgniteCheckedException e) {
+					throw new IgniteSpiException("Failed to inject resources into the fallback IP finder.", e);
+				}
+			}
+			
+			fallbackIpFinder.onSpiContextInitialized(spiCtx);
+		}
+	}
 	
 	/** {@inheritDoc} */
     @Override
@@ -116,11 +883,59 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
 
          if (log.isInfoEnabled())
              log.info("Destroying Consul IP Finder.");
+         
+         // An eager initialization may still be running.
+         if (initGuard.get())
+        	 U.awaitQuiet(initLatch);
 
          super.onSpiContextDestroyed();
+         
+         ConsulAddressWatcher w = watcher;
+         
+         if (w != null)
+        	 w.shutdown();
+         
+         for (ConsulAddressWatcher dcWatcher : dcWatchers.values())
+        	 dcWatcher.shutdown();
+         
+         if (hostNames != null)
+        	 hostNames.stop();
+         
+         if (heartbeat != null) {
+        	 heartbeat.cancel(false);
+        	 
+        	 heartbeatScheduler.release();
+         }
+         
+         if (reconciler != null)
+        	 reconciler.stop();
+         
+         notifier.stop();
+         
+         if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+        	 try {
+        		 Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        	 }
+        	 catch (IllegalStateException ignored) {
+        		 // JVM is already shutting down.
+        	 }
+         }
+         
          unregisterSelf();
-         if(consul != null)
-        	 consul.destroy();
+         
+         if (kv != null)
+        	 kv.destroy();
+         
+         if (asyncExec != null)
+        	 asyncExec.shutdownNow();
+         
+         unregisterMBean();
+         
+         if(endpoints != null)
+        	 endpoints.close();
+         
+         if (fallbackIpFinder != null)
+        	 fallbackIpFinder.onSpiContextDestroyed();
     }
 	
 	/** {@inheritDoc} */
@@ -131,98 +946,1568 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
 		if (log.isDebugEnabled())
             log.debug("Getting registered addresses from Consul IP Finder.");
 		
-		List<ServiceHealth> nodes = consul.healthClient()
-               							  .getHealthyServiceInstances(serviceName)
-               							  .getResponse();
+		ConsulAddressWatcher w = watcher;
 		
-		Collection<InetSocketAddress> registeredAddresses = new HashSet<>();
+		if (w != null) {
+			Collection<InetSocketAddress> snapshot = w.snapshot();
+			
+			// Until the first blocking query completes fall back to the cache file or a direct read.
+			if (snapshot != null) {
+				metrics.onLookup(true);
+				
+				return forDiscovery(onConsulRead(withDatacenterSnapshots(snapshot)), false);
+			}
+		}
 		
-		for(ServiceHealth node : nodes) {
-			registeredAddresses.add(new InetSocketAddress(node.getService().getAddress(), node.getService().getPort()));
+		ConsulAddressCache c = addrCache;
+		
+		if (c != null && (cacheWarmup || w != null)) {
+			Collection<InetSocketAddress> cached = c.get();
+			
+			if (cached != null) {
+				metrics.onLookup(true);
+				
+				return forDiscovery(cached, false);
+			}
 		}
 		
-        if (log.isInfoEnabled())
-            log.info("Cosnul IP Finder resolved addresses: " + registeredAddresses);
+		Collection<InetSocketAddress> pre = prefetched;
+		
+		if (pre != null) {
+			prefetched = null;
+			
+			if (U.currentTimeMillis() - prefetchTime <= PREFETCH_MAX_AGE) {
+				metrics.onLookup(true);
+				
+				return forDiscovery(pre, false);
+			}
+		}
+		
+		final boolean[] called = new boolean[1];
+		
+		Collection<InetSocketAddress> registeredAddresses;
+		
+		boolean failed = false;
+		
+		try {
+			// Concurrent lookups (discovery threads, other finders sharing the client) share one in-flight query.
+			// Every finder sharing the flight records its result, not only the one running it.
+			registeredAddresses = onConsulRead(ConsulSingleFlight.execute(lookupKey,
+				new Callable<Collection<InetSocketAddress>>() {
+					@Override
+					public Collection<InetSocketAddress> call() {
+						called[0] = true;
+						
+						return readAllAddresses();
+					}
+				}));
+		}
+		catch (IgniteSpiException e) {
+			Collection<InetSocketAddress> cached = c != null ? c.get() : null;
+			
+			if (cached != null) {
+				U.warn(log, "Consul IP Finder lookup failed, using addresses read " + c.age() + " ms ago [err=" +
+					e.getMessage() + ']');
+				
+				registeredAddresses = cached;
+			}
+			else if (fallbackIpFinder != null) {
+				LT.warn(log, "Consul IP Finder lookup failed, using the fallback IP finder [err=" + e.getMessage() +
+					']');
+				
+				registeredAddresses = Collections.emptySet();
+				
+				failed = true;
+			}
+			else
+				throw e;
+		}
+		
+		metrics.onLookup(!called[0]);
+		
+		// Lookups are frequent and the address set may be large: keep the dump out of INFO.
+        if (log.isDebugEnabled())
+            log.debug("Cosnul IP Finder resolved addresses: " + registeredAddresses);
 
-		return registeredAddresses;
+		return forDiscovery(registeredAddresses, failed);
 	}
 	
-	/** {@inheritDoc} */
-	@Override
-	public void registerAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
-		init();
+	/**
+	 * @param addrs Addresses from Consul.
+	 * @param consulFailed Whether Consul could not be read.
+	 * @return Addresses to return to the discovery SPI.
+	 * @throws IgniteSpiException If the fallback IP finder failed.
+	 */
+	private Collection<InetSocketAddress> forDiscovery(Collection<InetSocketAddress> addrs, boolean consulFailed)
+		throws IgniteSpiException {
+		boolean joining = joining();
 		
-		if (log.isInfoEnabled())
-            log.info("Registering addresses with Cosnul IP Finder: " + addrs + " Addresses that are already registered will be ignored");
+		Collection<InetSocketAddress> res = datacenterAddresses(addrs, joining);
 		
-		Collection<InetSocketAddress> alreadyRegistered = getRegisteredAddresses();
+		return withFallback(joining ? nearest(subset(res)) : res, consulFailed);
+	}
+	
+	/**
+	 * @param addrs Addresses of all datacenters.
+	 * @param joining Whether the addresses are for a joining server node or a client node.
+	 * @return Addresses of the local datacenter, with those of remote datacenters only for a joining node finding
+	 *     fewer than {@link #setMinLocalAddresses(int) minLocalAddresses} local ones: the IP finder cleaner of the
+	 *     coordinator would unregister remote addresses, not being in its topology.
+	 */
+	@SuppressWarnings("unchecked")
+	private Collection<InetSocketAddress> datacenterAddresses(Collection<InetSocketAddress> addrs, boolean joining) {
+		Object[] merged = lastMerge;
 		
-		addrs.removeAll(alreadyRegistered);
+		if (datacenters.isEmpty() || merged == null)
+			return addrs;
 		
-		for(InetSocketAddress addr : addrs) {
-			String serviceUid = inetAddrToUid(addr);
-			
-			Registration serviceRegistration = ImmutableRegistration.builder()
-																	.name(serviceName)
-																	.address(addr.getAddress().getHostAddress())
-																	.port(addr.getPort())
-																	.id(serviceUid)
-																	.build();
-			consul.agentClient().register(serviceRegistration);
-			ourInstances.add(addr);
+		List<Collection<InetSocketAddress>> parts = (List<Collection<InetSocketAddress>>)merged[0];
+		
+		// Remote addresses as of the last read, e.g. the cache file does not tell datacenters apart.
+		Set<InetSocketAddress> remote = new HashSet<>();
+		
+		for (int i = 1; i < parts.size(); i++)
+			remote.addAll(parts.get(i));
+		
+		remote.removeAll(parts.get(0));
+		
+		if (remote.isEmpty())
+			return addrs;
+		
+		Set<InetSocketAddress> local = new LinkedHashSet<>(addrs);
+		
+		local.removeAll(remote);
+		
+		if (joining && local.size() < minLocalAddresses)
+			return addrs;
+		
+		return Collections.unmodifiableSet(local);
+	}
+	
+	/**
+	 * @return Whether lookups serve a server node that has not joined the topology yet, or a client node, rather
+	 *     than the IP finder cleaner of the coordinator: the cleaner unregisters the addresses it does not find in
+	 *     the topology and registers those it does not find in the IP finder, so it must see all of them.
+	 */
+	private boolean joining() {
+		// The SPI context is only initialized once the node has joined.
+		return spiContext() == null || discoveryClientMode();
+	}
+	
+	/**
+	 * @param addrs Addresses from Consul.
+	 * @param consulFailed Whether Consul could not be read.
+	 * @return Addresses with those of the fallback IP finder appended, if it is used.
+	 * @throws IgniteSpiException If the fallback IP finder failed.
+	 */
+	private Collection<InetSocketAddress> withFallback(Collection<InetSocketAddress> addrs, boolean consulFailed)
+		throws IgniteSpiException {
+		if (fallbackIpFinder == null || !(consulFailed || mergeFallbackAddresses))
+			return addrs;
+		
+		Set<InetSocketAddress> res = new LinkedHashSet<>(addrs);
+		
+		res.addAll(fallbackIpFinder.getRegisteredAddresses());
+		
+		return Collections.unmodifiableSet(res);
+	}
+	
+	/**
+	 * Narrows addresses down to the nearest ones: the discovery SPI shuffles what it gets, so that ordering
+	 * them would not make nodes join through the nearest nodes.
+	 * 
+	 * @param addrs Addresses.
+	 * @return The {@link #setProximityCandidates(int) proximityCandidates} first reachable addresses by connect
+	 *     time if {@link #setProximityProbeTimeout(int) probing} is enabled, the first addresses in network
+	 *     coordinates order if {@link #setProximityOrdering(boolean) proximity ordering} is, otherwise {@code addrs}.
+	 */
+	private Collection<InetSocketAddress> nearest(Collection<InetSocketAddress> addrs) {
+		ConsulProximityProber p = prober;
+		
+		Collection<InetSocketAddress> res = addrs;
+		
+		if (p != null) {
+			res = p.order(addrs);
 			
-			log.info("registered service " + serviceUid + ", registration status now is {}"
-					+ consul.agentClient().isRegistered(serviceUid));
+			// None reachable: better try all of them than to start a new cluster because of dropped probes.
+			if (res == addrs)
+				return addrs;
 		}
+		else if (!proximityOrdering)
+			return addrs;
 		
-	}
-
-	/** {@inheritDoc} */
-	@Override
-	public void unregisterAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
-		init();
+		if (res.size() <= proximityCandidates)
+			return res;
 		
-		if (log.isInfoEnabled())
-            log.info("Unregistering addresses with Consul IP Finder: " + addrs);
+		Set<InetSocketAddress> nearest = new LinkedHashSet<>();
 		
-		for(InetSocketAddress addr : addrs) {
-			String serviceUid = inetAddrToUid(addr);
+		for (InetSocketAddress addr : res) {
+			if (nearest.size() == proximityCandidates)
+				break;
 			
-			consul.agentClient().deregister(serviceUid);
+			nearest.add(addr);
 		}
+		
+		return Collections.unmodifiableSet(nearest);
 	}
 	
-    /** {@inheritDoc} */
-    @Override 
-    public void initializeLocalAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
-    	registerSelf(addrs);
-    }
-    
-    private String inetAddrToUid(InetSocketAddress addr) {
-    	return addr.getAddress().getHostName() + ":" + addr.getAddress().getHostAddress() + ":" + addr.getPort();
-    }
-    
-    private void registerSelf(Collection<InetSocketAddress> addrs) {
-    	registerAddresses(addrs);
-    	myAddresses.addAll(addrs);
-    }
-    
-    private void unregisterSelf() {
-    	unregisterAddresses(myAddresses);
-    }
-
-	public Consul getConsul() {
-		return consul;
+	/**
+	 * @param addrs Addresses just read from Consul.
+	 * @return {@code addrs}.
+	 */
+	private Collection<InetSocketAddress> onConsulRead(Collection<InetSocketAddress> addrs) {
+		ConsulAddressCache c = addrCache;
+		
+		if (c != null)
+			c.update(addrs);
+		
+		notifier.update(addrs);
+		
+		return addrs;
 	}
-
-	public void setConsul(Consul consul) {
-		this.consul = consul;
+	
+	/**
+	 * Called by watchers once their snapshot changed, so that address listeners need not wait for a lookup.
+	 */
+	void onWatchUpdate() {
+		ConsulAddressWatcher w = watcher;
+		
+		Collection<InetSocketAddress> snapshot = w != null ? w.snapshot() : null;
+		
+		if (snapshot != null)
+			onConsulRead(withDatacenterSnapshots(snapshot));
 	}
-
-	public String getConsulAddres() {
-		return consulAddres;
+	
+	/**
+	 * @param addrs All healthy addresses.
+	 * @return Subset of this node if {@link #setSubsetSize(int) subsetting} is enabled, otherwise all addresses.
+	 */
+	private Collection<InetSocketAddress> subset(Collection<InetSocketAddress> addrs) {
+		if (subsetSize <= 0)
+			return addrs;
+		
+		ConsulSubsetSelector sel = subsetSelector;
+		
+		if (sel == null) {
+			// Racing threads build equal selectors: the node identity is stable once local addresses are known.
+			sel = new ConsulSubsetSelector(subsetSize, Math.min(subsetAnchors, subsetSize), nodeIdentity());
+			
+			subsetSelector = sel;
+		}
+		
+		return sel.select(addrs);
+	}
+	
+	/**
+	 * @return Identity of the local node: its consistent ID if set, otherwise its sorted local addresses,
+	 *     otherwise its instance name.
+	 */
+	private String nodeIdentity() {
+		if (ignite != null && ignite.configuration().getConsistentId() != null)
+			return ignite.configuration().getConsistentId().toString();
+		
+		if (!myAddresses.isEmpty()) {
+			List<String> addrs = new ArrayList<>(myAddresses.size());
+			
+			for (InetSocketAddress addr : myAddresses)
+				addrs.add(ConsulServiceInstance.toString(addr));
+			
+			Collections.sort(addrs);
+			
+			return addrs.toString();
+		}
+		
+		return ignite != null ? String.valueOf(ignite.name()) : UUID.randomUUID().toString();
+	}
+	
+	/**
+	 * @return Nodes of the topology, or {@code null} if unknown, e.g. the local node has not joined yet.
+	 */
+	private Collection<ClusterNode> topology() {
+		if (ignite == null)
+			return null;
+		
+		try {
+			return ignite.cluster().nodes();
+		}
+		catch (IllegalStateException ignored) {
+			// Node is starting or stopping.
+			return null;
+		}
+	}
+	
+	/**
+	 * @return IDs of all nodes of the topology, or {@code null} if unknown.
+	 */
+	Set<String> topologyNodeIds() {
+		Collection<ClusterNode> nodes = topology();
+		
+		if (nodes == null || nodes.isEmpty())
+			return null;
+		
+		Set<String> res = new HashSet<>();
+		
+		for (ClusterNode node : nodes)
+			res.add(node.id().toString());
+		
+		return res;
+	}
+	
+	/**
+	 * @return Addresses all nodes of the topology registered, i.e. their discovery addresses and, with an address
+	 *     resolver, their external ones, or {@code null} if unknown.
+	 */
+	Collection<InetSocketAddress> topologyAddresses() {
+		Collection<ClusterNode> nodes = topology();
+		
+		if (nodes == null)
+			return null;
+		
+		String extAddrsAttr = U.spiAttribute(ignite.configuration().getDiscoverySpi(), TcpDiscoverySpi.ATTR_EXT_ADDRS);
+		
+		Set<InetSocketAddress> res = new HashSet<>();
+		
+		for (ClusterNode node : nodes) {
+			if (!(node instanceof TcpDiscoveryNode))
+				return null;
+			
+			res.addAll(((TcpDiscoveryNode)node).socketAddresses());
+			
+			Collection<InetSocketAddress> extAddrs = node.attribute(extAddrsAttr);
+			
+			if (extAddrs != null)
+				res.addAll(extAddrs);
+		}
+		
+		return res.isEmpty() ? null : res;
+	}
+	
+	/**
+	 * Reads addresses of the local datacenter from Consul, bypassing the watch snapshot and lookup coalescing.
+	 * 
+	 * @return Immutable set of addresses.
+	 * @throws IgniteSpiException If failed.
+	 */
+	private Collection<InetSocketAddress> readAddresses() throws IgniteSpiException {
+		Collection<InetSocketAddress> res = readAddresses(null);
+		
+		metrics.onRead(res.size());
+		
+		return res;
+	}
+	
+	/**
+	 * @param dc Datacenter, {@code null} for the local one.
+	 * @return Immutable set of addresses.
+	 * @throws IgniteSpiException If failed.
+	 */
+	private Collection<InetSocketAddress> readAddresses(final String dc) throws IgniteSpiException {
+		return endpoints.read(ConsulOperation.LOOKUP, new ConsulEndpoints.Call<Collection<InetSocketAddress>>() {
+			@Override
+			public Collection<InetSocketAddress> apply(ConsulEndpoints.Endpoint ep) throws IOException {
+				return lookup(ep, dc);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the local datacenter while remote datacenters are read in parallel. Remote datacenters get at most
+	 * {@link #setDatacenterTimeout(long) datacenterTimeout} from the start of the lookup; those that did not
+	 * answer in time, or failed, contribute the addresses they returned last.
+	 * 
+	 * @return Immutable set of addresses, local ones first.
+	 * @throws IgniteSpiException If the local datacenter could not be read.
+	 */
+	private Collection<InetSocketAddress> readAllAddresses() throws IgniteSpiException {
+		if (datacenters.isEmpty())
+			return readAddresses();
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(datacenterTimeout);
+		
+		List<CompletableFuture<Collection<InetSocketAddress>>> futs = new ArrayList<>(datacenters.size());
+		
+		for (String dc : datacenters)
+			futs.add(readDatacenterAsync(dc));
+		
+		List<Collection<InetSocketAddress>> parts = new ArrayList<>(datacenters.size() + 1);
+		
+		parts.add(readAddresses());
+		
+		for (int i = 0; i < datacenters.size(); i++) {
+			String dc = datacenters.get(i);
+			
+			try {
+				parts.add(futs.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				
+				throw new IgniteSpiException("Interrupted while reading Consul datacenter: " + dc, e);
+			}
+			catch (TimeoutException | ExecutionException e) {
+				Collection<InetSocketAddress> prev = dcAddrs.get(dc);
+				
+				U.warn(log, "Consul IP Finder could not read datacenter " + dc + (e instanceof TimeoutException ?
+					" within " + datacenterTimeout + " ms" : ": " + e.getCause()) +
+					(prev != null ? ", using its last known addresses" : ", skipping it"));
+				
+				if (prev != null)
+					parts.add(prev);
+			}
+		}
+		
+		return merge(parts);
+	}
+	
+	/**
+	 * @param dc Remote datacenter.
+	 * @return Lookup of the datacenter, shared with the lookup still in flight if any.
+	 */
+	private CompletableFuture<Collection<InetSocketAddress>> readDatacenterAsync(final String dc) {
+		CompletableFuture<Collection<InetSocketAddress>> fut = dcReads.get(dc);
+		
+		// A slow datacenter must not pile up requests: join the lookup that timed out last time.
+		if (fut != null && !fut.isDone())
+			return fut;
+		
+		final CompletableFuture<Collection<InetSocketAddress>> newFut = CompletableFuture.supplyAsync(
+			new Supplier<Collection<InetSocketAddress>>() {
+				@Override
+				public Collection<InetSocketAddress> get() {
+					Collection<InetSocketAddress> res = readAddresses(dc);
+					
+					// Late answers still serve the next lookups.
+					dcAddrs.put(dc, res);
+					
+					return res;
+				}
+			}, asyncExec);
+		
+		dcReads.put(dc, newFut);
+		
+		return newFut;
+	}
+	
+	/**
+	 * @param local Snapshot of the local datacenter.
+	 * @return Snapshot of all datacenters, local addresses first.
+	 */
+	private Collection<InetSocketAddress> withDatacenterSnapshots(Collection<InetSocketAddress> local) {
+		if (dcWatchers.isEmpty())
+			return local;
+		
+		List<Collection<InetSocketAddress>> parts = new ArrayList<>(dcWatchers.size() + 1);
+		
+		parts.add(local);
+		
+		for (ConsulAddressWatcher w : dcWatchers.values()) {
+			Collection<InetSocketAddress> snapshot = w.snapshot();
+			
+			if (snapshot != null)
+				parts.add(snapshot);
+		}
+		
+		return merge(parts);
+	}
+	
+	/**
+	 * @param parts Immutable sets of addresses.
+	 * @return Immutable union keeping the order of parts, the previous one if parts did not change.
+	 */
+	@SuppressWarnings("unchecked")
+	private Collection<InetSocketAddress> merge(List<Collection<InetSocketAddress>> parts) {
+		Object[] prev = lastMerge;
+		
+		if (prev != null && sameInstances((List<Collection<InetSocketAddress>>)prev[0], parts))
+			return (Collection<InetSocketAddress>)prev[1];
+		
+		Set<InetSocketAddress> res = new LinkedHashSet<>();
+		
+		for (Collection<InetSocketAddress> part : parts)
+			res.addAll(part);
+		
+		Collection<InetSocketAddress> out = Collections.unmodifiableSet(res);
+		
+		lastMerge = new Object[] {parts, out};
+		
+		return out;
+	}
+	
+	/**
+	 * @param a Lists.
+	 * @param b Lists.
+	 * @return {@code true} if both lists hold the same instances.
+	 */
+	private static boolean sameInstances(List<?> a, List<?> b) {
+		if (a.size() != b.size())
+			return false;
+		
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i) != b.get(i))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public void registerAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
+		join(registerAddressesAsync(addrs));
+	}
+	
+	/**
+	 * Registers addresses without blocking the caller. Instances are registered in parallel, up to
+	 * {@link #setAsyncParallelism(int) asyncParallelism} Consul calls at a time.
+	 * 
+	 * @param addrs Addresses to register.
+	 * @return Future completed once all addresses are registered.
+	 * @throws IgniteSpiException If initialization failed.
+	 */
+	public CompletableFuture<Void> registerAddressesAsync(Collection<InetSocketAddress> addrs)
+		throws IgniteSpiException {
+		init();
+		
+		if (log.isInfoEnabled())
+            log.info("Registering addresses with Cosnul IP Finder: " + describe(addrs) + " Addresses that are already registered will be ignored");
+		
+		// The caller's collection may be shared with other threads: never modify it.
+		final List<InetSocketAddress> toRegister = new ArrayList<>(addrs);
+		
+		// Writing a key is idempotent, no need to read first.
+		if (kv != null) {
+			return CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					kv.register(toRegister);
+					
+					ourInstances.addAll(toRegister);
+				}
+			}, asyncExec);
+		}
+		
+		// Registration is idempotent: a batch simply refreshes addresses that are already registered
+		// instead of paying a lookup round-trip first. Otherwise read fresh: a snapshot or a coalesced lookup
+		// may predate a concurrent unregistration of the same addresses.
+		CompletableFuture<Void> dedup = batchAvailable() ? CompletableFuture.<Void>completedFuture(null) :
+			CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					toRegister.removeAll(readAddresses());
+				}
+			}, asyncExec);
+		
+		return dedup.thenCompose(new Function<Void, CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> apply(Void ignored) {
+				if (toRegister.isEmpty())
+					return CompletableFuture.completedFuture(null);
+				
+				return registerAsync(instances(toRegister));
+			}
+		}).thenRun(new Runnable() {
+			@Override
+			public void run() {
+				ourInstances.addAll(toRegister);
+			}
+		});
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void unregisterAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
+		join(unregisterAddressesAsync(addrs));
+	}
+	
+	/**
+	 * Unregisters addresses without blocking the caller. Instances are deregistered in parallel, up to
+	 * {@link #setAsyncParallelism(int) asyncParallelism} Consul calls at a time.
+	 * 
+	 * @param addrs Addresses to unregister.
+	 * @return Future completed once all addresses are unregistered.
+	 * @throws IgniteSpiException If initialization failed.
+	 */
+	public CompletableFuture<Void> unregisterAddressesAsync(Collection<InetSocketAddress> addrs)
+		throws IgniteSpiException {
+		init();
+		
+		if (log.isInfoEnabled())
+            log.info("Unregistering addresses with Consul IP Finder: " + describe(addrs));
+		
+		if (addrs.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		
+		final List<InetSocketAddress> toUnregister = new ArrayList<>(addrs);
+		
+		ourInstances.removeAll(toUnregister);
+		
+		if (kv != null) {
+			return CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					kv.unregister(toUnregister);
+				}
+			}, asyncExec);
+		}
+		
+		// Instance IDs cannot be derived from the addresses alone, nor their catalog nodes when batching:
+		// look the instances up instead.
+		if (registrationMode == ConsulRegistrationMode.PER_NODE || !instanceIdPrefix.isEmpty() || batchAvailable())
+			return unregisterFromInstancesAsync(toUnregister);
+		
+		Collection<String> ids = new ArrayList<>(toUnregister.size());
+		
+		for(InetSocketAddress addr : toUnregister)
+			ids.add(inetAddrToUid(addr));
+		
+		return deregisterAsync(ids);
+	}
+	
+	/**
+	 * Maps addresses onto service instances according to the registration mode.
+	 * 
+	 * @param addrs Addresses.
+	 * @return Service instances.
+	 */
+	private List<ConsulServiceInstance> instances(Collection<InetSocketAddress> addrs) {
+		if (registrationMode == ConsulRegistrationMode.PER_NODE) {
+			List<InetSocketAddress> sorted = new ArrayList<>(addrs);
+			
+			// Sorted so that the instance ID does not depend on the iteration order of the caller's collection.
+			Collections.sort(sorted, new Comparator<InetSocketAddress>() {
+				@Override
+				public int compare(InetSocketAddress a1, InetSocketAddress a2) {
+					return ConsulServiceInstance.toString(a1).compareTo(ConsulServiceInstance.toString(a2));
+				}
+			});
+			
+			return Collections.singletonList(ConsulServiceInstance.multi(inetAddrToUid(sorted.get(0)), sorted,
+				regTags, serviceMeta));
+		}
+		
+		List<ConsulServiceInstance> res = new ArrayList<>(addrs.size());
+		
+		for (InetSocketAddress addr : addrs)
+			res.add(ConsulServiceInstance.single(inetAddrToUid(addr), addr, regTags, serviceMeta));
+		
+		return res;
+	}
+	
+	/**
+	 * Removes addresses from whatever instances carry them, regardless of their IDs: instances left without
+	 * addresses are deregistered, those of this finder are registered again with the remaining addresses.
+	 * Instances of other nodes losing some of their addresses are left to them.
+	 * 
+	 * @param addrs Addresses to remove.
+	 * @return Future.
+	 */
+	private CompletableFuture<Void> unregisterFromInstancesAsync(final Collection<InetSocketAddress> addrs) {
+		return CompletableFuture.supplyAsync(new Supplier<List<ServiceHealth>>() {
+			@Override
+			public List<ServiceHealth> get() {
+				return endpoints.read(ConsulOperation.SCAN, new ConsulEndpoints.Call<List<ServiceHealth>>() {
+					@Override
+					public List<ServiceHealth> apply(ConsulEndpoints.Endpoint ep) {
+						return ep.client().healthClient().getAllServiceInstances(serviceName).getResponse();
+					}
+				});
+			}
+		}, asyncExec).thenCompose(new Function<List<ServiceHealth>, CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> apply(List<ServiceHealth> all) {
+				List<ConsulServiceInstance> updated = new ArrayList<>();
+				List<ServiceHealth> removed = new ArrayList<>();
+				
+				for (ServiceHealth sh : all) {
+					Collection<InetSocketAddress> held = ConsulServiceInstance.addresses(sh);
+					
+					if (Collections.disjoint(held, addrs))
+						continue;
+					
+					List<InetSocketAddress> remaining = new ArrayList<>(held);
+					
+					remaining.removeAll(addrs);
+					
+					if (remaining.isEmpty())
+						removed.add(sh);
+					else if (owned(sh.getService().getId(), held, remaining))
+						updated.add(ConsulServiceInstance.multi(sh.getService().getId(), remaining, regTags,
+							serviceMeta));
+					else if (log.isDebugEnabled())
+						log.debug("Consul IP Finder leaves the instance of another node to it [id=" +
+							sh.getService().getId() + ", addrs=" + held + ']');
+				}
+				
+				return CompletableFuture.allOf(deregisterAsync(removed, all), registerAsync(updated));
+			}
+		});
+	}
+	
+    /**
+     * @param id Instance ID.
+     * @param held Addresses of the instance.
+     * @param remaining Addresses of the instance that remain registered.
+     * @return Whether this finder registered the instance: its ID is derived from one of its addresses
+     *     and the remaining addresses are registered by this finder.
+     */
+    private boolean owned(String id, Collection<InetSocketAddress> held, Collection<InetSocketAddress> remaining) {
+    	if (!ourInstances.containsAll(remaining))
+    		return false;
+    	
+    	for (InetSocketAddress addr : held) {
+    		if (inetAddrToUid(addr).equals(id))
+    			return true;
+    	}
+    	
+    	return false;
+    }
+    
+    /**
+     * @return Whether operations can currently be batched through the transaction API.
+     */
+    private boolean batchAvailable() {
+    	// TTL checks live on the agent, catalog transactions cannot carry them.
+    	return batchRegistration && endpoints.all().get(0).http != null && !txnUnsupported && checkTtlSeconds == 0;
+    }
+    
+    /**
+     * @return Catalog node of this finder, named after the node identity so that a restarted node takes its
+     *     entries over instead of leaving them behind.
+     */
+    private String catalogNode() {
+    	String node = catalogNode;
+    	
+    	if (node == null) {
+    		node = catalogNodeName + '-' + UUID.nameUUIDFromBytes(nodeIdentity().getBytes(StandardCharsets.UTF_8));
+    		
+    		catalogNode = node;
+    	}
+    	
+    	return node;
+    }
+    
+    /**
+     * @param node Catalog node name.
+     * @return Whether the node is the catalog node of a finder rather than that of an agent.
+     */
+    private boolean isCatalogNode(String node) {
+    	return node.startsWith(catalogNodeName + '-');
+    }
+    
+    /**
+     * Registers service instances, in a single Consul transaction if possible, otherwise in parallel.
+     * 
+     * @param insts Instances to register.
+     * @return Future.
+     */
+    private CompletableFuture<Void> registerAsync(final List<ConsulServiceInstance> insts) {
+    	if (insts.isEmpty())
+    		return CompletableFuture.completedFuture(null);
+    	
+    	if (batchAvailable()) {
+    		final ConsulCatalogTxn txn = new ConsulCatalogTxn(catalogNode());
+    		
+    		txn.setNode(insts.get(0).address());
+    		
+    		for (ConsulServiceInstance inst : insts)
+    			txn.setService(inst, serviceName);
+    		
+    		return commitAsync(txn).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+    			@Override
+    			public CompletionStage<Void> apply(Boolean committed) {
+    				return committed ? CompletableFuture.<Void>completedFuture(null) : agentRegisterAsync(insts);
+    			}
+    		});
+    	}
+    	
+    	return agentRegisterAsync(insts);
+    }
+    
+    /**
+     * Registers service instances with the agent, in parallel.
+     * 
+     * @param insts Instances to register.
+     * @return Future.
+     */
+    private CompletableFuture<Void> agentRegisterAsync(List<ConsulServiceInstance> insts) {
+    	final Registration.RegCheck check = ttlCheck();
+    	
+    	CompletableFuture<?>[] futs = new CompletableFuture<?>[insts.size()];
+    	
+    	for (int i = 0; i < futs.length; i++) {
+    		final ConsulServiceInstance inst = insts.get(i);
+    		
+    		futs[i] = CompletableFuture.runAsync(new Runnable() {
+    			@Override
+    			public void run() {
+    				boolean registered = endpoints.write(ConsulOperation.REGISTER, new ConsulEndpoints.Call<Boolean>() {
+    					@Override
+    					public Boolean apply(ConsulEndpoints.Endpoint ep) throws IOException {
+    						agentRegister(ep, inst, check);
+    						
+    						return ep.client().agentClient().isRegistered(inst.id());
+    					}
+    				});
+    				
+    				if (check != null)
+    					ttlInstances.put(inst.id(), inst);
+    				
+    				log.info("registered service " + inst.id() + ", registration status now is {}" + registered);
+    			}
+    		}, asyncExec);
+    	}
+    	
+    	return CompletableFuture.allOf(futs);
+    }
+    
+    /**
+     * @param ep Endpoint.
+     * @param inst Instance.
+     * @param check Health check or {@code null}.
+     * @throws IOException If the request could not be performed.
+     */
+    private void agentRegister(ConsulEndpoints.Endpoint ep, ConsulServiceInstance inst, Registration.RegCheck check)
+    	throws IOException {
+    	if (inst.meta().isEmpty() || ep.http == null) {
+    		ep.client().agentClient().register(inst.toRegistration(serviceName, check));
+    		
+    		return;
+    	}
+    	
+    	ConsulHttpClient.Response res = ep.http.put("/v1/agent/service/register", inst.toRegistrationJson(serviceName,
+    		check));
+    	
+    	if (!res.isSuccess()) {
+    		String msg = "Consul registration failed [id=" + inst.id() + ", code=" + res.code + ", body=" + res.body +
+    			']';
+    		
+    		ConsulHttpClient.checkRetryable(res.code, msg);
+    		
+    		throw new IgniteSpiException(msg);
+    	}
+    }
+    
+    /**
+     * Deregisters service instances, in a single Consul transaction if possible, otherwise in parallel.
+     * 
+     * @param ids Instance IDs.
+     * @return Future.
+     */
+    private CompletableFuture<Void> deregisterAsync(final Collection<String> ids) {
+    	if (ids.isEmpty())
+    		return CompletableFuture.completedFuture(null);
+    	
+    	if (batchAvailable()) {
+    		ConsulCatalogTxn txn = new ConsulCatalogTxn(catalogNode());
+    		
+    		for (String id : ids)
+    			txn.deleteService(id);
+    		
+    		return commitAsync(txn).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+    			@Override
+    			public CompletionStage<Void> apply(Boolean committed) {
+    				return committed ? CompletableFuture.<Void>completedFuture(null) : agentDeregisterAsync(ids);
+    			}
+    		});
+    	}
+    	
+    	return agentDeregisterAsync(ids);
+    }
+    
+    /**
+     * Deregisters looked up service instances wherever they are registered: those of finder catalog nodes in
+     * a single Consul transaction if possible, catalog nodes left without services being removed as well,
+     * the others from the agent.
+     * 
+     * @param removed Instances to deregister.
+     * @param all All instances of the service.
+     * @return Future.
+     */
+    private CompletableFuture<Void> deregisterAsync(final List<ServiceHealth> removed, List<ServiceHealth> all) {
+    	if (!batchAvailable()) {
+    		Set<String> ids = new HashSet<>();
+    		
+    		for (ServiceHealth sh : removed)
+    			ids.add(sh.getService().getId());
+    		
+    		return deregisterAsync(ids);
+    	}
+    	
+    	Map<String, Integer> left = new HashMap<>();
+    	
+    	for (ServiceHealth sh : all) {
+    		Integer cnt = left.get(sh.getNode().getNode());
+    		
+    		left.put(sh.getNode().getNode(), cnt == null ? 1 : cnt + 1);
+    	}
+    	
+    	ConsulCatalogTxn txn = new ConsulCatalogTxn(catalogNode());
+    	
+    	final List<ServiceHealth> catalog = new ArrayList<>();
+    	List<String> agent = new ArrayList<>();
+    	
+    	for (ServiceHealth sh : removed) {
+    		String node = sh.getNode().getNode();
+    		
+    		if (!isCatalogNode(node)) {
+    			agent.add(sh.getService().getId());
+    			
+    			continue;
+    		}
+    		
+    		catalog.add(sh);
+    		
+    		txn.deleteService(node, sh.getService().getId());
+    		
+    		int cnt = left.get(node) - 1;
+    		
+    		left.put(node, cnt);
+    		
+    		if (cnt == 0)
+    			txn.deleteNode(node);
+    	}
+    	
+    	CompletableFuture<Void> txnFut = txn.size() == 0 ? CompletableFuture.<Void>completedFuture(null) :
+    		commitAsync(txn).thenCompose(new Function<Boolean, CompletionStage<Void>>() {
+    			@Override
+    			public CompletionStage<Void> apply(Boolean committed) {
+    				return committed ? CompletableFuture.<Void>completedFuture(null) : catalogDeregisterAsync(catalog);
+    			}
+    		});
+    	
+    	return CompletableFuture.allOf(txnFut, agentDeregisterAsync(agent));
+    }
+    
+    /**
+     * Deregisters service instances from the catalog, in parallel.
+     * 
+     * @param insts Instances.
+     * @return Future.
+     */
+    private CompletableFuture<Void> catalogDeregisterAsync(List<ServiceHealth> insts) {
+    	CompletableFuture<?>[] futs = new CompletableFuture<?>[insts.size()];
+    	
+    	for (int i = 0; i < futs.length; i++) {
+    		final ServiceHealth sh = insts.get(i);
+    		
+    		futs[i] = CompletableFuture.runAsync(new Runnable() {
+    			@Override
+    			public void run() {
+    				endpoints.write(ConsulOperation.DEREGISTER, new ConsulEndpoints.Call<Void>() {
+    					@Override
+    					public Void apply(ConsulEndpoints.Endpoint ep) {
+    						ep.client().catalogClient().deregister(ImmutableCatalogDeregistration.builder()
+    							.node(sh.getNode().getNode())
+    							.serviceId(sh.getService().getId())
+    							.build());
+    						
+    						return null;
+    					}
+    				});
+    			}
+    		}, asyncExec);
+    	}
+    	
+    	return CompletableFuture.allOf(futs);
+    }
+    
+    /**
+     * Deregisters service instances from the agent, in parallel.
+     * 
+     * @param ids Instance IDs.
+     * @return Future.
+     */
+    private CompletableFuture<Void> agentDeregisterAsync(Collection<String> ids) {
+    	CompletableFuture<?>[] futs = new CompletableFuture<?>[ids.size()];
+    	
+    	int i = 0;
+    	
+    	for (final String id : ids) {
+    		ttlInstances.remove(id);
+    		
+    		futs[i++] = CompletableFuture.runAsync(new Runnable() {
+    			@Override
+    			public void run() {
+    				endpoints.write(ConsulOperation.DEREGISTER, new ConsulEndpoints.Call<Void>() {
+    					@Override
+    					public Void apply(ConsulEndpoints.Endpoint ep) {
+    						try {
+    							ep.client().agentClient().deregister(id);
+    						}
+    						catch (ConsulException e) {
+    							// Already deregistered, e.g. by a concurrent unregistration of the same address.
+    							if (e.getCode() != 404)
+    								throw e;
+    						}
+    						
+    						return null;
+    					}
+    				});
+    			}
+    		}, asyncExec);
+    	}
+    	
+    	return CompletableFuture.allOf(futs);
+    }
+    
+    /**
+     * @param txn Transaction.
+     * @return Future of {@link #commit(ConsulCatalogTxn)}.
+     */
+    private CompletableFuture<Boolean> commitAsync(final ConsulCatalogTxn txn) {
+    	return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+    		@Override
+    		public Boolean get() {
+    			return commit(txn);
+    		}
+    	}, asyncExec);
+    }
+    
+    /**
+     * Waits for a future, unwrapping its failure.
+     * 
+     * @param fut Future.
+     * @throws IgniteSpiException If the future failed.
+     */
+    private static void join(CompletableFuture<?> fut) throws IgniteSpiException {
+    	try {
+    		fut.join();
+    	}
+    	catch (CompletionException e) {
+    		Throwable cause = e.getCause();
+    		
+    		if (cause instanceof IgniteSpiException)
+    			throw (IgniteSpiException)cause;
+    		
+    		throw new IgniteSpiException("Consul IP Finder operation failed.", cause);
+    	}
+    }
+    
+    /**
+     * @return TTL check for new registrations or {@code null} if disabled. The check starts passing so that
+     *     instances are visible before the first heartbeat.
+     */
+    private Registration.RegCheck ttlCheck() {
+    	if (checkTtlSeconds <= 0)
+    		return null;
+    	
+    	return ImmutableRegCheck.builder()
+    		.ttl(checkTtlSeconds + "s")
+    		.deregisterCriticalServiceAfter(deregisterCriticalAfterSeconds + "s")
+    		.status("passing")
+    		.build();
+    }
+    
+    /**
+     * Marks the TTL checks of all instances registered by this finder as passing, in one pass.
+     * Instances the agent has forgotten (e.g. after an agent restart) are registered again.
+     * 
+     * The pass gives up once it outlasts the TTL, the checks it missed being critical by then anyway, so that
+     * a slow Consul never holds the heartbeat thread for longer.
+     */
+    private void heartbeat() {
+    	final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(checkTtlSeconds);
+    	
+    	for (final ConsulServiceInstance inst : ttlInstances.values()) {
+    		try {
+    			endpoints.write(ConsulOperation.HEARTBEAT, new ConsulEndpoints.Call<Void>() {
+    				@Override
+    				public Void apply(ConsulEndpoints.Endpoint ep) throws IOException {
+    					// Checked on every attempt, ending the retries too.
+    					if (System.nanoTime() - deadline > 0)
+    						throw new IgniteSpiException("Consul TTL heartbeat outlasted the TTL of " +
+    							checkTtlSeconds + "s");
+    					
+    					try {
+    						ep.client().agentClient().pass(inst.id());
+    					}
+    					catch (NotRegisteredException ignored) {
+    						// E.g. the agent restarted or agent writes moved to another endpoint.
+    						agentRegister(ep, inst, ttlCheck());
+    					}
+    					
+    					return null;
+    				}
+    			});
+    		}
+    		catch (Exception e) {
+    			U.warn(log, "Failed to refresh Consul TTL check, will retry on next heartbeat [id=" + inst.id() +
+    				", err=" + e.getMessage() + ']');
+    			
+    			// The agent is likely unreachable, the other checks would fail the same way.
+    			break;
+    		}
+    	}
+    }
+    
+    /**
+     * @param txn Transaction.
+     * @return {@code false} if the agent does not support the transaction API (HTTP 404 or 405).
+     * @throws IgniteSpiException If the request could not be performed or the transaction failed.
+     */
+    private boolean commit(final ConsulCatalogTxn txn) throws IgniteSpiException {
+    	// Catalog transactions are forwarded to the servers, so any endpoint will do.
+    	ConsulHttpClient.Response res = endpoints.read(ConsulOperation.TXN, new ConsulEndpoints.Call<ConsulHttpClient.Response>() {
+    		@Override
+    		public ConsulHttpClient.Response apply(ConsulEndpoints.Endpoint ep) throws IOException {
+    			ConsulHttpClient.Response res = txn.commit(ep.http);
+    			
+    			// Retried like any other unavailable endpoint, the failed operations being still pending.
+    			if (!res.isSuccess())
+    				ConsulHttpClient.checkRetryable(res.code, "Consul transaction failed [code=" + res.code + ", body=" +
+    					res.body + ']');
+    			
+    			return res;
+    		}
+    	});
+    	
+    	if (res.isSuccess())
+    		return true;
+    	
+    	// Anything else, e.g. a rolled back transaction (HTTP 409), is an ordinary failure.
+    	// Operations of the chunks committed before the failed one stay applied.
+    	if (res.code != 404 && res.code != 405)
+    		throw new IgniteSpiException("Consul transaction failed [code=" + res.code + ", committedOps=" +
+    			txn.committed() + ", pendingOps=" + txn.size() + ", body=" + res.body + ']');
+    	
+    	U.warn(log, "Consul agent does not support transactions, falling back to per-instance agent calls [code=" +
+    		res.code + ", body=" + res.body + ']');
+    	
+    	txnUnsupported = true;
+    	
+    	return false;
+    }
+    
+    /** {@inheritDoc} */
+    @Override 
+    public void initializeLocalAddresses(Collection<InetSocketAddress> addrs) throws IgniteSpiException {
+    	// E.g. the multicast IP finder answers requests with the local addresses.
+    	if (fallbackIpFinder != null)
+    		fallbackIpFinder.initializeLocalAddresses(addrs);
+    	
+    	registerSelf(addrs);
+    }
+    
+    /**
+     * Reads healthy addresses from an endpoint, honouring the consistency mode, the staleness bound,
+     * the agent cache settings and the lean lookup mode.
+     * 
+     * @param ep Endpoint.
+     * @param dc Datacenter, {@code null} for the local one.
+     * @return Immutable set of addresses.
+     * @throws IOException If an agent cache read failed.
+     */
+    private Collection<InetSocketAddress> lookup(ConsulEndpoints.Endpoint ep, String dc) throws IOException {
+    	if (kv != null)
+    		return kv.read(ep, readConsistency, dc, null, 0).getResponse();
+    	
+    	if (dns != null)
+    		return dns.lookup(new InetSocketAddress(URI.create(ep.url).getHost(), dnsPort), dnsName(dc));
+    	
+    	if ((leanLookups || agentCacheMaxAge > 0) && ep.http != null)
+    		return lookupLean(ep, dc);
+    	
+    	ConsulResponse<List<ServiceHealth>> res = ep.client().healthClient().getHealthyServiceInstances(serviceName,
+    		queryOptions(ImmutableQueryOptions.builder(), readConsistency, dc));
+    	
+    	// A stale read from a server that lost contact with the leader for too long: ask the leader instead.
+    	if (readConsistency == ConsistencyMode.STALE && maxStale > 0 && res.getLastContact() > maxStale)
+    		res = ep.client().healthClient().getHealthyServiceInstances(serviceName,
+    			queryOptions(ImmutableQueryOptions.builder(), ConsistencyMode.DEFAULT, dc));
+    	
+    	return toAddresses(res.getResponse());
+    }
+    
+    /**
+     * @param opts Base options.
+     * @param consistency Consistency mode.
+     * @param dc Datacenter, {@code null} for the local one.
+     * @return Lookup query options.
+     */
+    QueryOptions queryOptions(ImmutableQueryOptions.Builder opts, ConsistencyMode consistency, String dc) {
+    	opts.consistencyMode(consistency).tag(qryTags);
+    	
+    	if (dc != null)
+    		opts.datacenter(dc);
+    	
+    	if (proximityOrdering)
+    		opts.near(NEAR_AGENT);
+    	
+    	return lookupFilter != null ? new ConsulFilterQueryOptions(opts.build(), lookupFilter) : opts.build();
+    }
+    
+    /**
+     * Runs a blocking query for the watch mode.
+     * 
+     * @param ep Endpoint.
+     * @param waitSeconds Wait time, in seconds.
+     * @param index Index to wait for a change from.
+     * @param consistency Consistency mode.
+     * @param dc Datacenter, {@code null} for the local one.
+     * @return Immutable set of addresses with the Consul index.
+     * @throws IOException If failed.
+     */
+    ConsulResponse<Collection<InetSocketAddress>> watch(ConsulEndpoints.Endpoint ep, int waitSeconds,
+    	BigInteger index, ConsistencyMode consistency, String dc) throws IOException {
+    	if (kv != null)
+    		return kv.read(ep, consistency, dc, index, waitSeconds);
+    	
+    	ConsulResponse<List<ServiceHealth>> res = ep.blockingClient().healthClient().getHealthyServiceInstances(
+    		serviceName, queryOptions(QueryOptions.blockSeconds(waitSeconds, index), consistency, dc));
+    	
+    	return new ConsulResponse<>(toAddresses(res.getResponse()), res.getLastContact(), res.isKnownLeader(),
+    		res.getIndex());
+    }
+    
+    /**
+     * @param dc Datacenter, {@code null} for the local one.
+     * @return SRV name of the service, e.g. {@code tag.ignite.service.dc2.consul}.
+     */
+    private String dnsName(String dc) {
+    	StringBuilder sb = new StringBuilder();
+    	
+    	if (!qryTags.isEmpty())
+    		sb.append(qryTags.get(0)).append('.');
+    	
+    	sb.append(serviceName).append(".service.");
+    	
+    	if (dc != null)
+    		sb.append(dc).append('.');
+    	
+    	return sb.append(dnsDomain).toString();
+    }
+    
+    /**
+     * Streams healthy addresses over raw HTTP through {@link ConsulHealthParser}, which reads nothing but
+     * addresses and ports and reuses the address instances of the previous lookup. Also serves reads through
+     * the agent cache ({@code ?cached}), which answers repeated lookups locally and refreshes them from
+     * the servers at most every {@link #setAgentCacheMaxAge(int) max-age} seconds.
+     * 
+     * @param ep Endpoint.
+     * @param dc Datacenter, {@code null} for the local one.
+     * @return Immutable set of addresses.
+     * @throws IOException If failed.
+     */
+    private Collection<InetSocketAddress> lookupLean(ConsulEndpoints.Endpoint ep, String dc) throws IOException {
+    	boolean cached = agentCacheMaxAge > 0 && readConsistency != ConsistencyMode.CONSISTENT;
+    	
+    	StringBuilder path = new StringBuilder("/v1/health/service/").append(ConsulHttpClient.encode(serviceName))
+    		.append("?passing");
+    	
+    	if (cached)
+    		path.append("&cached");
+    	
+    	if (readConsistency == ConsistencyMode.CONSISTENT)
+    		path.append("&consistent");
+    	
+    	if (proximityOrdering)
+    		path.append("&near=").append(NEAR_AGENT);
+    	
+    	if (dc != null)
+    		path.append("&dc=").append(ConsulHttpClient.encode(dc));
+    	
+    	for (String tag : qryTags)
+    		path.append("&tag=").append(ConsulHttpClient.encode(tag));
+    	
+    	if (lookupFilter != null)
+    		path.append("&filter=").append(ConsulHttpClient.encode(lookupFilter));
+    	
+    	ConsulHealthParser parser = dc == null ? healthParser : dcParser(dc);
+    	
+    	Map<String, String> hdrs = cached ?
+    		Collections.singletonMap("Cache-Control", "max-age=" + agentCacheMaxAge) :
+    		Collections.<String, String>emptyMap();
+    	
+    	Collection<InetSocketAddress> res = null;
+    	
+    	if (readConsistency == ConsistencyMode.STALE)
+    		res = ep.http.get(path + "&stale", hdrs, healthReader(maxStale, parser));
+    	
+    	// Either not a stale read or the answering server lost contact with the leader for too long.
+    	if (res == null)
+    		res = ep.http.get(path.toString(), hdrs, healthReader(0, parser));
+    	
+    	return res;
+    }
+    
+    /**
+     * @param dc Remote datacenter.
+     * @return Parser of the datacenter, so that each keeps reusing the addresses of its previous lookup.
+     */
+    private ConsulHealthParser dcParser(String dc) {
+    	ConsulHealthParser parser = dcParsers.get(dc);
+    	
+    	if (parser == null) {
+    		ConsulHealthParser old = dcParsers.putIfAbsent(dc, parser = new ConsulHealthParser());
+    		
+    		if (old != null)
+    			parser = old;
+    	}
+    	
+    	return parser;
+    }
+    
+    /**
+     * @param maxStale Maximum accepted {@code X-Consul-LastContact}, {@code 0} for no bound.
+     * @param parser Parser.
+     * @return Reader of a health response; returns {@code null} if the response is too stale.
+     */
+    private ConsulHttpClient.BodyReader<Collection<InetSocketAddress>> healthReader(final long maxStale,
+    	final ConsulHealthParser parser) {
+    	return new ConsulHttpClient.BodyReader<Collection<InetSocketAddress>>() {
+    		@Override
+    		public Collection<InetSocketAddress> read(ConsulHttpClient.Response res, Reader body) throws IOException {
+    			if (!res.isSuccess()) {
+    				String msg = "Consul health read failed [code=" + res.code + ", body=" + readFully(body) + ']';
+    				
+    				ConsulHttpClient.checkRetryable(res.code, msg);
+    				
+    				throw new IgniteSpiException(msg);
+    			}
+    			
+    			String lastContact = res.header("X-Consul-LastContact");
+    			
+    			if (maxStale > 0 && lastContact != null && Long.parseLong(lastContact) > maxStale)
+    				return null;
+    			
+    			return parser.parse(body);
+    		}
+    	};
+    }
+    
+    /**
+     * @param body Body.
+     * @return Body text.
+     * @throws IOException If failed.
+     */
+    static String readFully(Reader body) throws IOException {
+    	StringBuilder sb = new StringBuilder();
+    	
+    	char[] buf = new char[1024];
+    	
+    	for (int n; (n = body.read(buf)) != -1; )
+    		sb.append(buf, 0, n);
+    	
+    	return sb.toString();
+    }
+    
+    /**
+     * @param s String.
+     * @return SHA-256 of the string, e.g. to tell ACL tokens apart without keeping them in lookup keys.
+     */
+    private static String hash(String s) {
+    	try {
+    		MessageDigest md = MessageDigest.getInstance("SHA-256");
+    		
+    		return U.byteArray2HexString(md.digest(s.getBytes(StandardCharsets.UTF_8)));
+    	}
+    	catch (NoSuchAlgorithmException e) {
+    		// Every Java platform implements SHA-256.
+    		throw new IgniteSpiException(e);
+    	}
+    }
+    
+    /**
+     * @param tags Tags.
+     * @return Tags with the cluster tag if a cluster name is set.
+     */
+    private List<String> withClusterTag(List<String> tags) {
+    	if (clusterName == null)
+    		return tags;
+    	
+    	List<String> res = new ArrayList<>(tags);
+    	
+    	res.add(CLUSTER_TAG_PREFIX + clusterName);
+    	
+    	return Collections.unmodifiableList(res);
+    }
+    
+    /**
+     * Converts healthy service instances into an immutable set of addresses, keeping their order.
+     * 
+     * @param nodes Healthy service instances.
+     * @return Addresses.
+     */
+    Collection<InetSocketAddress> toAddresses(List<ServiceHealth> nodes) {
+    	Collection<InetSocketAddress> addrs = new LinkedHashSet<>();
+		
+		for(ServiceHealth node : nodes) {
+			addrs.addAll(ConsulServiceInstance.addresses(node));
+		}
+		
+		return Collections.unmodifiableCollection(addrs);
+    }
+    
+    /**
+     * Builds the instance ID of an address from its literal IP and port, so no reverse DNS lookup is involved
+     * and the ID computed at deregistration is always the one used at registration.
+     * 
+     * @param addr Address.
+     * @return Instance ID.
+     */
+    private String inetAddrToUid(InetSocketAddress addr) {
+    	return instanceIdPrefix + ConsulServiceInstance.toString(addr);
+    }
+    
+    /**
+     * @param addrs Addresses.
+     * @return Addresses with their host names when already resolved, for logging.
+     */
+    private Object describe(Collection<InetSocketAddress> addrs) {
+    	if (hostNames == null)
+    		return addrs;
+    	
+    	StringBuilder sb = new StringBuilder("[");
+    	
+    	for (InetSocketAddress addr : addrs) {
+    		if (sb.length() > 1)
+    			sb.append(", ");
+    		
+    		sb.append(hostNames.hostName(addr.getAddress())).append('/').append(ConsulServiceInstance.toString(addr));
+    	}
+    	
+    	return sb.append(']').toString();
+    }
+    
+    private void registerSelf(Collection<InetSocketAddress> addrs) {
+    	// First, as the catalog node of batched registrations is named after them.
+    	myAddresses.addAll(addrs);
+    	registerAddresses(addrs);
+    	
+    	// Once, after the new instances are registered, so that the addresses never disappear meanwhile.
+    	if (legacyIdCleanup && kv == null) {
+    		final List<InetSocketAddress> local = new ArrayList<>(addrs);
+    		
+    		asyncExec.execute(new Runnable() {
+    			@Override
+    			public void run() {
+    				removeLegacyInstances(local);
+    			}
+    		});
+    	}
+    }
+    
+    /**
+     * Deregisters the instances of the local addresses that older versions registered under host-name based IDs
+     * ({@code <host>:<ip>:<port>}), from the agents holding them. Instances of other nodes are never touched.
+     * 
+     * @param addrs Local addresses.
+     */
+    private void removeLegacyInstances(Collection<InetSocketAddress> addrs) {
+    	Set<String> current = new HashSet<>();
+    	
+    	for (ConsulServiceInstance inst : instances(addrs))
+    		current.add(inst.id());
+    	
+    	Set<InetSocketAddress> local = new HashSet<>(addrs);
+    	
+    	// Agents only list the services registered with them.
+    	for (ConsulEndpoints.Endpoint ep : endpoints.all()) {
+    		try {
+    			for (Service svc : ep.client().agentClient().getServices().values()) {
+    				String id = svc.getId();
+    				
+    				if (!serviceName.equals(svc.getService()) || current.contains(id) ||
+    					!isLegacyId(id, ConsulServiceInstance.addresses(svc), local))
+    					continue;
+    				
+    				ep.client().agentClient().deregister(id);
+    				
+    				if (log.isInfoEnabled())
+    					log.info("Consul IP Finder removed a legacy instance [id=" + id + ", endpoint=" + ep + ']');
+    			}
+    		}
+    		catch (Exception e) {
+    			U.warn(log, "Consul IP Finder could not remove legacy instances [endpoint=" + ep + ", err=" +
+    				e.getMessage() + ']');
+    		}
+    	}
+    }
+    
+    /**
+     * @param id Instance ID.
+     * @param held Addresses of the instance.
+     * @param local Local addresses.
+     * @return Whether the instance only holds local addresses and its ID is {@code <host>:<ip>:<port>} for one
+     *     of them.
+     */
+    private static boolean isLegacyId(String id, Collection<InetSocketAddress> held, Set<InetSocketAddress> local) {
+    	if (!local.containsAll(held))
+    		return false;
+    	
+    	for (InetSocketAddress addr : held) {
+    		String suffix = ":" + addr.getAddress().getHostAddress() + ":" + addr.getPort();
+    		
+    		// The host name holds no colon, unlike IPv6 addresses.
+    		if (id.endsWith(suffix) && id.indexOf(':') == id.length() - suffix.length() && id.length() > suffix.length())
+    			return true;
+    	}
+    	
+    	return false;
+    }
+    
+    /**
+     * Unregisters the local addresses, waiting at most {@link #setShutdownTimeout(long) shutdownTimeout}:
+     * a slow or unreachable Consul must not hold up the node shutdown.
+     */
+    private void unregisterSelf() {
+    	// Snapshot, as another thread may still be registering; nothing to do if this node never registered.
+    	List<InetSocketAddress> addrs = new ArrayList<>(myAddresses);
+    	
+    	if (addrs.isEmpty())
+    		return;
+    	
+    	try {
+    		CompletableFuture<Void> fut = unregisterAddressesAsync(addrs);
+    		
+    		if (shutdownTimeout > 0)
+    			fut.get(shutdownTimeout, TimeUnit.MILLISECONDS);
+    		else
+    			fut.get();
+    	}
+    	catch (TimeoutException e) {
+    		U.warn(log, "Consul IP Finder could not unregister local addresses within " + shutdownTimeout +
+    			" ms, proceeding with shutdown" + (checkTtlSeconds > 0 ? " (Consul will drop them once their TTL " +
+    			"checks expire): " : ": ") + addrs);
+    	}
+    	catch (ExecutionException e) {
+    		U.error(log, "Consul IP Finder failed to unregister local addresses: " + addrs, e.getCause());
+    	}
+    	catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		
+    		U.warn(log, "Consul IP Finder was interrupted while unregistering local addresses: " + addrs);
+    	}
+    	catch (IgniteSpiException e) {
+    		U.error(log, "Consul IP Finder failed to unregister local addresses: " + addrs, e);
+    	}
+    }
+
+	public Consul getConsul() {
+		ConsulEndpoints e = endpoints;
+		
+		// Without an explicit client, the one of the first endpoint is built on first use.
+		return consul != null || e == null ? consul : e.first();
+	}
+
+	/**
+	 * @param consul Consul client, used instead of the transport shared by the finders of the JVM. It belongs to
+	 *     the application, which destroys it once no finder uses it.
+	 */
+	public void setConsul(Consul consul) {
+		this.consul = consul;
+	}
+
+	public String getConsulAddres() {
+		return consulAddres;
+	}
+
+	/**
+	 * @param consulAddres Consul URL, e.g. {@code http://consul}, or a comma-separated list of agent/server URLs.
+	 *     Entries without a port get {@link #setConsulPort(int) the default one}. Reads go to the fastest healthy
+	 *     endpoint, agent writes stick to one endpoint and fail over only when it is unavailable.
+	 *     Can be overridden by the {@value #PROP_CONSUL_ADDRESS_KEY} system property.
+	 */
 	public void setConsulAddres(String consulAddres) {
 		this.consulAddres = consulAddres;
 	}
@@ -235,6 +2520,803 @@ public class TcpDiscoveryConsulIpFinder extends TcpDiscoveryIpFinderAdapter {
 		this.consulPort = consulPort;
 	}
 
+	public boolean isWatchEnabled() {
+		return watchEnabled;
+	}
+
+	/**
+	 * Enables the watch mode: a background thread keeps an in-memory snapshot of healthy addresses up to date
+	 * through Consul blocking queries and {@link #getRegisteredAddresses()} returns it without calling Consul.
+	 * 
+	 * When a Consul client is set explicitly its read timeout must exceed {@link #setWatchWaitSeconds(int)}.
+	 * 
+	 * @param watchEnabled Whether the watch mode is enabled.
+	 */
+	public void setWatchEnabled(boolean watchEnabled) {
+		this.watchEnabled = watchEnabled;
+	}
+
+	public int getWatchWaitSeconds() {
+		return watchWaitSeconds;
+	}
+
+	/**
+	 * @param watchWaitSeconds Blocking query wait time for the watch mode, in seconds (Consul caps it at 600).
+	 */
+	public void setWatchWaitSeconds(int watchWaitSeconds) {
+		A.ensure(watchWaitSeconds > 0 && watchWaitSeconds <= 600, "watchWaitSeconds must be in (0, 600]");
+		
+		this.watchWaitSeconds = watchWaitSeconds;
+	}
+
+	public ConsulRegistrationMode getRegistrationMode() {
+		return registrationMode;
+	}
+
+	/**
+	 * Sets how addresses are mapped onto Consul service instances. With {@link ConsulRegistrationMode#PER_NODE}
+	 * each registration call produces one instance carrying all addresses in tags, which keeps the catalog
+	 * and health responses small for multi-homed nodes. Lookups understand both layouts.
+	 * 
+	 * @param registrationMode Registration mode.
+	 */
+	public void setRegistrationMode(ConsulRegistrationMode registrationMode) {
+		A.notNull(registrationMode, "registrationMode");
+		
+		this.registrationMode = registrationMode;
+	}
+
+	public boolean isBatchRegistration() {
+		return batchRegistration;
+	}
+
+	/**
+	 * Enables batched registration: all addresses passed to {@link #registerAddresses(Collection)} or
+	 * {@link #unregisterAddresses(Collection)} are submitted in one Consul transaction ({@code /v1/txn}).
+	 * 
+	 * Services are then registered in the catalog under {@link #setCatalogNodeName(String) an external node}
+	 * of their own per Ignite node rather than on the local agent. Such entries have no health check: the
+	 * addresses of a node that crashed are removed by the coordinator, which unregisters the addresses of failed
+	 * nodes, or by the {@link #setReconcileInterval(long) reconciler}.
+	 * Requires Consul 1.4+ and the Consul URL (not only an injected client);
+	 * otherwise the finder falls back to per-address agent calls.
+	 * 
+	 * Consul accepts at most 64 operations per transaction, so a call with more addresses (63 with the catalog
+	 * node) is split into several transactions and is not atomic: if one fails, the addresses of the transactions
+	 * committed before it stay registered (or unregistered) and the call fails. Registrations being idempotent,
+	 * calling it again converges.
+	 * 
+	 * @param batchRegistration Whether registrations are batched.
+	 */
+	public void setBatchRegistration(boolean batchRegistration) {
+		this.batchRegistration = batchRegistration;
+	}
+
+	public String getCatalogNodeName() {
+		return catalogNodeName;
+	}
+
+	/**
+	 * Sets the prefix of the catalog nodes batched registrations are attached to: each finder uses its own
+	 * {@code <catalogNodeName>-<UUID>} node, the UUID being derived from the node consistent ID or addresses.
+	 * Must be the same on all nodes sharing the service.
+	 * 
+	 * @param catalogNodeName Catalog node name prefix, defaults to {@code <serviceName>-external}.
+	 */
+	public void setCatalogNodeName(String catalogNodeName) {
+		this.catalogNodeName = catalogNodeName;
+	}
+
+	public boolean isIncludeConsistentId() {
+		return includeConsistentId;
+	}
+
+	/**
+	 * @param includeConsistentId Whether instance IDs are prefixed with the consistent ID set in
+	 *     {@link org.apache.ignite.configuration.IgniteConfiguration#setConsistentId(java.io.Serializable)}.
+	 *     Deregistration then looks instances up by address.
+	 */
+	public void setIncludeConsistentId(boolean includeConsistentId) {
+		this.includeConsistentId = includeConsistentId;
+	}
+
+	public boolean isLegacyIdCleanup() {
+		return legacyIdCleanup;
+	}
+
+	/**
+	 * Instance IDs used to embed the reverse DNS host name of the address. When enabled, once the local addresses
+	 * are registered the agents are asked for the instances of these addresses registered under such legacy IDs,
+	 * which are then deregistered. Instances of other nodes are never touched.
+	 * 
+	 * @param legacyIdCleanup Whether legacy instances of the local addresses are removed on startup, {@code false}
+	 *     by default.
+	 */
+	public void setLegacyIdCleanup(boolean legacyIdCleanup) {
+		this.legacyIdCleanup = legacyIdCleanup;
+	}
+
+	public boolean isResolveHostNames() {
+		return resolveHostNames;
+	}
+
+	/**
+	 * @param resolveHostNames Whether host names are resolved in the background and shown in log messages.
+	 *     Registration never waits for them.
+	 */
+	public void setResolveHostNames(boolean resolveHostNames) {
+		this.resolveHostNames = resolveHostNames;
+	}
+
+	public int getCheckTtlSeconds() {
+		return checkTtlSeconds;
+	}
+
+	/**
+	 * Attaches a TTL health check to every registration and refreshes it from a heartbeat thread shared by
+	 * the finders of the same Consul, so instances of a node that died without deregistering turn critical and
+	 * disappear from {@link #getRegisteredAddresses()} after the TTL. TTL checks live on the agent, so this disables
+	 * {@link #setBatchRegistration(boolean) batched registration}.
+	 * 
+	 * @param checkTtlSeconds Check TTL in seconds, {@code 0} (default) for no check.
+	 */
+	public void setCheckTtlSeconds(int checkTtlSeconds) {
+		A.ensure(checkTtlSeconds >= 0, "checkTtlSeconds >= 0");
+		
+		this.checkTtlSeconds = checkTtlSeconds;
+	}
+
+	public int getDeregisterCriticalAfterSeconds() {
+		return deregisterCriticalAfterSeconds;
+	}
+
+	/**
+	 * @param deregisterCriticalAfterSeconds Delay after which Consul removes instances whose TTL check stays
+	 *     critical, in seconds (Consul enforces a minimum of one minute).
+	 */
+	public void setDeregisterCriticalAfterSeconds(int deregisterCriticalAfterSeconds) {
+		A.ensure(deregisterCriticalAfterSeconds > 0, "deregisterCriticalAfterSeconds > 0");
+		
+		this.deregisterCriticalAfterSeconds = deregisterCriticalAfterSeconds;
+	}
+
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * @param retryCount Number of retries of a Consul call that failed on all endpoints or was throttled
+	 *     (HTTP 429). Retries are delayed by a jittered exponential back-off so that nodes do not retry in lockstep.
+	 */
+	public void setRetryCount(int retryCount) {
+		A.ensure(retryCount >= 0, "retryCount >= 0");
+		
+		this.retryCount = retryCount;
+	}
+
+	public long getRetryBaseDelay() {
+		return retryBaseDelay;
+	}
+
+	/**
+	 * @param retryBaseDelay Base delay of the back-off between retries, in milliseconds; doubles on every retry.
+	 */
+	public void setRetryBaseDelay(long retryBaseDelay) {
+		A.ensure(retryBaseDelay >= 0, "retryBaseDelay >= 0");
+		
+		this.retryBaseDelay = retryBaseDelay;
+	}
+
+	public long getRetryMaxDelay() {
+		return retryMaxDelay;
+	}
+
+	/**
+	 * @param retryMaxDelay Maximum delay between retries, in milliseconds.
+	 */
+	public void setRetryMaxDelay(long retryMaxDelay) {
+		A.ensure(retryMaxDelay >= 0, "retryMaxDelay >= 0");
+		
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	public ConsistencyMode getReadConsistency() {
+		return readConsistency;
+	}
+
+	/**
+	 * Sets the consistency mode of discovery reads. {@link ConsistencyMode#STALE} lets any server answer
+	 * instead of forwarding every lookup to the leader, which is fine for discovery and much cheaper.
+	 * 
+	 * @param readConsistency Consistency mode, {@link ConsistencyMode#DEFAULT} by default.
+	 */
+	public void setReadConsistency(ConsistencyMode readConsistency) {
+		A.notNull(readConsistency, "readConsistency");
+		
+		this.readConsistency = readConsistency;
+	}
+
+	public long getMaxStale() {
+		return maxStale;
+	}
+
+	/**
+	 * @param maxStale Maximum time, in milliseconds, since the answering server last heard from the leader
+	 *     for a stale read to be accepted; older answers are re-read with the default consistency.
+	 *     {@code 0} (default) for no bound.
+	 */
+	public void setMaxStale(long maxStale) {
+		A.ensure(maxStale >= 0, "maxStale >= 0");
+		
+		this.maxStale = maxStale;
+	}
+
+	public int getSubsetSize() {
+		return subsetSize;
+	}
+
+	/**
+	 * Bounds lookups to a deterministic subset of the healthy addresses, so that in large clusters each
+	 * joining node contacts a few well-spread nodes instead of all of them. The subset is chosen by
+	 * rendezvous hashing on the node identity (consistent ID, or else local addresses) and always contains
+	 * {@link #setSubsetAnchors(int) anchors} common to all nodes. Only lookups of joining server nodes and of client
+	 * nodes are bounded: once joined, the coordinator cleans the IP finder from all addresses.
+	 * 
+	 * @param subsetSize Subset size, {@code 0} (default) to return all addresses.
+	 */
+	public void setSubsetSize(int subsetSize) {
+		A.ensure(subsetSize >= 0, "subsetSize >= 0");
+		
+		this.subsetSize = subsetSize;
+	}
+
+	public int getSubsetAnchors() {
+		return subsetAnchors;
+	}
+
+	/**
+	 * @param subsetAnchors Number of subset addresses shared by all nodes, {@link #DEFAULT_SUBSET_ANCHORS}
+	 *     by default.
+	 */
+	public void setSubsetAnchors(int subsetAnchors) {
+		A.ensure(subsetAnchors >= 0, "subsetAnchors >= 0");
+		
+		this.subsetAnchors = subsetAnchors;
+	}
+
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Fails Consul calls fast once this many consecutive calls failed on all endpoints, instead of having each
+	 * lookup wait for timeouts and retries. After {@link #setCircuitBreakerOpenTime(long) circuitBreakerOpenTime}
+	 * a single call probes Consul again. Blocking queries of the watch mode are not affected.
+	 * 
+	 * @param circuitBreakerThreshold Number of consecutive failed calls, {@code 0} (default) to disable the breaker.
+	 */
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		A.ensure(circuitBreakerThreshold >= 0, "circuitBreakerThreshold >= 0");
+		
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	public long getCircuitBreakerOpenTime() {
+		return circuitBreakerOpenTime;
+	}
+
+	/**
+	 * @param circuitBreakerOpenTime Time the circuit breaker stays open before letting a probe through in
+	 *     milliseconds, {@link #DEFAULT_CIRCUIT_BREAKER_OPEN_TIME} by default.
+	 */
+	public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+		A.ensure(circuitBreakerOpenTime > 0, "circuitBreakerOpenTime > 0");
+		
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	public TcpDiscoveryIpFinder getFallbackIpFinder() {
+		return fallbackIpFinder;
+	}
+
+	/**
+	 * Sets an IP finder, e.g. {@code TcpDiscoveryVmIpFinder} with static addresses or a multicast one, used
+	 * when Consul lookups fail and no {@link #setCacheFile(String) cached} addresses are available.
+	 * Its addresses are also merged into all lookups if {@link #setMergeFallbackAddresses(boolean)} is set.
+	 * Addresses are only registered with Consul.
+	 * 
+	 * @param fallbackIpFinder Fallback IP finder, {@code null} (default) for none.
+	 */
+	public void setFallbackIpFinder(TcpDiscoveryIpFinder fallbackIpFinder) {
+		this.fallbackIpFinder = fallbackIpFinder;
+	}
+
+	public boolean isMergeFallbackAddresses() {
+		return mergeFallbackAddresses;
+	}
+
+	/**
+	 * @param mergeFallbackAddresses Whether the addresses of the fallback IP finder are merged into all lookups
+	 *     rather than only used when Consul lookups fail, {@code false} by default.
+	 */
+	public void setMergeFallbackAddresses(boolean mergeFallbackAddresses) {
+		this.mergeFallbackAddresses = mergeFallbackAddresses;
+	}
+
+	public String getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Keeps the last addresses read from Consul in a file, so that a node can find the cluster while
+	 * Consul is down or slow. On startup lookups are answered from the file while Consul is read in the background;
+	 * later on the file serves lookups that fail. Each node needs its own file.
+	 * 
+	 * @param cacheFile Path of the address cache file, {@code null} (default) for none.
+	 */
+	public void setCacheFile(String cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	public long getCacheMaxAge() {
+		return cacheMaxAge;
+	}
+
+	/**
+	 * @param cacheMaxAge Maximum age of the addresses served from the cache file in milliseconds, counted from
+	 *     the last time Consul returned them, {@code 0} for no bound. {@link #DEFAULT_CACHE_MAX_AGE} by default.
+	 */
+	public void setCacheMaxAge(long cacheMaxAge) {
+		A.ensure(cacheMaxAge >= 0, "cacheMaxAge >= 0");
+		
+		this.cacheMaxAge = cacheMaxAge;
+	}
+
+	public String getClusterName() {
+		return clusterName;
+	}
+
+	/**
+	 * Lets several clusters share a Consul service name: instances are registered with an
+	 * {@code ignite-cluster=<name>} tag and lookups only return instances with the tag of this cluster,
+	 * filtered by Consul.
+	 * 
+	 * @param clusterName Cluster name, {@code null} (default) for none.
+	 */
+	public void setClusterName(String clusterName) {
+		this.clusterName = clusterName;
+	}
+
+	public List<String> getServiceTags() {
+		return serviceTags;
+	}
+
+	/**
+	 * @param serviceTags Tags added to all registrations, e.g. the Ignite version or the node role.
+	 */
+	public void setServiceTags(Collection<String> serviceTags) {
+		A.notNull(serviceTags, "serviceTags");
+		
+		this.serviceTags = Collections.unmodifiableList(new ArrayList<>(serviceTags));
+	}
+
+	public Map<String, String> getServiceMeta() {
+		return serviceMeta;
+	}
+
+	/**
+	 * Requires Consul 1.0 or later, and a Consul URL even if a client is set explicitly.
+	 * 
+	 * @param serviceMeta Metadata added to all registrations, e.g. the cluster name or the zone.
+	 */
+	public void setServiceMeta(Map<String, String> serviceMeta) {
+		A.notNull(serviceMeta, "serviceMeta");
+		
+		this.serviceMeta = Collections.unmodifiableMap(new LinkedHashMap<>(serviceMeta));
+	}
+
+	public List<String> getLookupTags() {
+		return lookupTags;
+	}
+
+	/**
+	 * Requires Consul 1.2.3 or later for more than one tag.
+	 * 
+	 * @param lookupTags Tags looked up instances must all have, none by default.
+	 */
+	public void setLookupTags(Collection<String> lookupTags) {
+		A.notNull(lookupTags, "lookupTags");
+		
+		this.lookupTags = Collections.unmodifiableList(new ArrayList<>(lookupTags));
+	}
+
+	public String getLookupFilter() {
+		return lookupFilter;
+	}
+
+	/**
+	 * Sets a Consul filter expression applied by Consul to lookups, e.g.
+	 * {@code Service.Meta.zone == "eu-1" and Service.Meta.role != "client"}. Requires Consul 1.5 or later.
+	 * 
+	 * @param lookupFilter Filter expression, {@code null} (default) for none.
+	 */
+	public void setLookupFilter(String lookupFilter) {
+		this.lookupFilter = lookupFilter;
+	}
+
+	public List<String> getDatacenters() {
+		return datacenters;
+	}
+
+	/**
+	 * Lets nodes join through the instances registered in other Consul datacenters, reached over the WAN
+	 * through the local agent, when the local datacenter has too few. Remote datacenters are read in parallel
+	 * with the local one, but their addresses are only returned to joining server nodes and client nodes
+	 * finding fewer than {@link #setMinLocalAddresses(int) minLocalAddresses} local addresses: the discovery SPI
+	 * shuffles addresses, so remote ones could not be tried last. Joined server nodes only get local addresses,
+	 * so that the coordinator never unregisters remote ones. {@link ConsulAddressListener Address listeners}
+	 * get the addresses of all datacenters. Registrations stay in the local datacenter.
+	 * 
+	 * @param datacenters Remote datacenters, none by default.
+	 */
+	public void setDatacenters(Collection<String> datacenters) {
+		A.notNull(datacenters, "datacenters");
+		
+		this.datacenters = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(datacenters)));
+	}
+
+	public int getMinLocalAddresses() {
+		return minLocalAddresses;
+	}
+
+	/**
+	 * @param minLocalAddresses Number of local addresses below which joining nodes also get the addresses of
+	 *     {@link #setDatacenters(Collection) remote datacenters}, {@code 1} by default, i.e. only when the local
+	 *     datacenter has none; {@code 0} to never return remote addresses.
+	 */
+	public void setMinLocalAddresses(int minLocalAddresses) {
+		A.ensure(minLocalAddresses >= 0, "minLocalAddresses >= 0");
+		
+		this.minLocalAddresses = minLocalAddresses;
+	}
+
+	public long getDatacenterTimeout() {
+		return datacenterTimeout;
+	}
+
+	/**
+	 * @param datacenterTimeout Time lookups wait for remote datacenters in milliseconds,
+	 *     {@link #DEFAULT_DATACENTER_TIMEOUT} by default. A datacenter that does not answer in time contributes
+	 *     the addresses it returned last.
+	 */
+	public void setDatacenterTimeout(long datacenterTimeout) {
+		A.ensure(datacenterTimeout >= 0, "datacenterTimeout >= 0");
+		
+		this.datacenterTimeout = datacenterTimeout;
+	}
+
+	public boolean isProximityOrdering() {
+		return proximityOrdering;
+	}
+
+	/**
+	 * Sorts lookups by network round trip time from the local Consul agent ({@code ?near=_agent}) and gives
+	 * joining server nodes and client nodes only the {@link #setProximityCandidates(int) proximityCandidates}
+	 * nearest addresses: the discovery SPI shuffles the addresses it gets, so the order alone is lost. Once
+	 * joined, lookups return all addresses, so that the coordinator can clean the IP finder. Requires Consul
+	 * network coordinates, which are enabled by default; without them the candidates are arbitrary. Without
+	 * {@link #setProximityProbeTimeout(int) probing}, stale registrations among the candidates delay the join
+	 * until they are removed, e.g. by TTL checks or the coordinator.
+	 * 
+	 * @param proximityOrdering Whether lookups are sorted by proximity, {@code false} by default.
+	 */
+	public void setProximityOrdering(boolean proximityOrdering) {
+		this.proximityOrdering = proximityOrdering;
+	}
+
+	public int getProximityProbeTimeout() {
+		return proximityProbeTimeout;
+	}
+
+	/**
+	 * Probes the addresses looked up by joining server nodes and client nodes with TCP connects, all in
+	 * parallel and for at most this timeout, then returns the {@link #setProximityCandidates(int)
+	 * proximityCandidates} fastest of those that accepted a connection. All addresses are returned if none did.
+	 * Once joined, lookups return all addresses again, including those that do not answer, so that the
+	 * coordinator unregisters them. Probe results are reused while the addresses do not change, for up to
+	 * 30 seconds.
+	 * 
+	 * @param proximityProbeTimeout Probe timeout in milliseconds, {@code 0} (default) for no probe.
+	 */
+	public void setProximityProbeTimeout(int proximityProbeTimeout) {
+		A.ensure(proximityProbeTimeout >= 0, "proximityProbeTimeout >= 0");
+		
+		this.proximityProbeTimeout = proximityProbeTimeout;
+	}
+
+	public int getProximityCandidates() {
+		return proximityCandidates;
+	}
+
+	/**
+	 * @param proximityCandidates Number of nearest addresses joining nodes get when
+	 *     {@link #setProximityOrdering(boolean) proximity ordering} or {@link #setProximityProbeTimeout(int)
+	 *     probing} is enabled, {@link #DEFAULT_PROXIMITY_CANDIDATES} by default.
+	 */
+	public void setProximityCandidates(int proximityCandidates) {
+		A.ensure(proximityCandidates > 0, "proximityCandidates > 0");
+		
+		this.proximityCandidates = proximityCandidates;
+	}
+
+	/**
+	 * @return Metrics of this finder, also registered as an MXBean when the finder runs within a node.
+	 */
+	public TcpDiscoveryConsulIpFinderMXBean getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param hook Hook receiving every Consul interaction, e.g. to feed an external metrics system, or {@code null}.
+	 */
+	public void setMetricsHook(ConsulMetricsHook hook) {
+		metrics.hook(hook);
+	}
+	
+	/**
+	 * Adds a listener of the changes of the healthy addresses registered in Consul, all datacenters included and
+	 * before {@link #setSubsetSize(int) subsetting}. A listener added once addresses are known is first notified
+	 * of all of them. In {@link #setWatchEnabled(boolean) watch mode} changes are notified as soon as Consul
+	 * reports them, otherwise when a lookup reads them.
+	 * 
+	 * @param lsnr Listener, called from a dedicated thread of this finder.
+	 */
+	public void addAddressListener(ConsulAddressListener lsnr) {
+		A.notNull(lsnr, "lsnr");
+		
+		notifier.add(lsnr);
+	}
+	
+	/**
+	 * @param lsnr Listener.
+	 * @return {@code true} if the listener was registered.
+	 */
+	public boolean removeAddressListener(ConsulAddressListener lsnr) {
+		return notifier.remove(lsnr);
+	}
+
+	public int getAsyncParallelism() {
+		return asyncParallelism;
+	}
+
+	/**
+	 * @param asyncParallelism Maximum number of Consul calls a finder runs in parallel when registering or
+	 *     unregistering several instances, {@link #DEFAULT_ASYNC_PARALLELISM} by default.
+	 */
+	public void setAsyncParallelism(int asyncParallelism) {
+		A.ensure(asyncParallelism > 0, "asyncParallelism > 0");
+		
+		this.asyncParallelism = asyncParallelism;
+	}
+
+	public boolean isEagerInit() {
+		return eagerInit;
+	}
+	
+	/**
+	 * Enables the eager initialization: as soon as the discovery SPI starts, a background thread builds the Consul
+	 * clients, opens a connection to every endpoint and reads the addresses, which the first lookup gets if not older
+	 * than {@value #PREFETCH_MAX_AGE} ms. Otherwise all of this happens within the first registration or lookup,
+	 * on the path of the node joining the cluster.
+	 * 
+	 * @param eagerInit Whether the eager initialization is enabled.
+	 */
+	public void setEagerInit(boolean eagerInit) {
+		this.eagerInit = eagerInit;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/**
+	 * Sets how long shutdown waits for the local addresses to be unregistered. Past it the node stops anyway and
+	 * leaves stale instances to Consul, which drops them once their TTL checks expire if
+	 * {@link #setCheckTtlSeconds(int) checkTtlSeconds} is set.
+	 * 
+	 * @param shutdownTimeout Timeout in milliseconds, {@code 0} for no limit, {@link #DEFAULT_SHUTDOWN_TIMEOUT}
+	 *     by default.
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		A.ensure(shutdownTimeout >= 0, "shutdownTimeout >= 0");
+		
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout Connect timeout of HTTP calls in milliseconds, {@link #DEFAULT_CONNECT_TIMEOUT} by default.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		A.ensure(connectTimeout > 0, "connectTimeout > 0");
+		
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the read timeout of HTTP calls. Blocking queries of the {@link #setWatchEnabled(boolean) watch mode}
+	 * go through separate connections whose timeout adds the wait time and the jitter of Consul to this one.
+	 * 
+	 * @param readTimeout Read timeout in milliseconds, {@link #DEFAULT_READ_TIMEOUT} by default.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		A.ensure(readTimeout > 0, "readTimeout > 0");
+		
+		this.readTimeout = readTimeout;
+	}
+
+	public String getAclToken() {
+		return aclToken;
+	}
+
+	/**
+	 * @param aclToken ACL token sent with every Consul call, or {@code null}.
+	 */
+	public void setAclToken(String aclToken) {
+		this.aclToken = aclToken;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets the SSL context of {@code https} Consul URLs. Finders of the JVM sharing a context share its TLS session
+	 * cache, so that new connections resume sessions instead of running full handshakes.
+	 * 
+	 * @param sslContext SSL context, or {@code null} for the default one.
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public long getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	/**
+	 * Enables a background reconciler removing the instances of nodes that left the topology without
+	 * unregistering, e.g. killed. One node at a time, elected through a Consul session lock, compares
+	 * the instances its lookups would return with the live topology and removes those of nodes that left, with
+	 * no live address, for a whole interval, at most {@link #setReconcileBatchSize(int) reconcileBatchSize}
+	 * per interval. Instances are matched with their nodes through their {@link #NODE_TAG_PREFIX node tag}:
+	 * those without it, e.g. registered by older versions, are left alone.
+	 * Instances kept by a live agent other than the leader's are put back by that agent; use
+	 * {@link #setCheckTtlSeconds(int) TTL checks} for those.
+	 * 
+	 * @param reconcileInterval Reconciliation interval in milliseconds, at least one second, {@code 0} to disable
+	 *     the reconciler (default).
+	 */
+	public void setReconcileInterval(long reconcileInterval) {
+		A.ensure(reconcileInterval == 0 || reconcileInterval >= 1000,
+			"reconcileInterval == 0 || reconcileInterval >= 1000");
+		
+		this.reconcileInterval = reconcileInterval;
+	}
+
+	public int getReconcileBatchSize() {
+		return reconcileBatchSize;
+	}
+
+	/**
+	 * @param reconcileBatchSize Maximum number of orphaned instances removed per reconciliation,
+	 *     {@link #DEFAULT_RECONCILE_BATCH_SIZE} by default.
+	 */
+	public void setReconcileBatchSize(int reconcileBatchSize) {
+		A.ensure(reconcileBatchSize > 0, "reconcileBatchSize > 0");
+		
+		this.reconcileBatchSize = reconcileBatchSize;
+	}
+
+	public boolean isShutdownHookEnabled() {
+		return shutdownHookEnabled;
+	}
+
+	/**
+	 * @param shutdownHookEnabled Whether a JVM shutdown hook unregisters the local addresses on a best-effort
+	 *     basis if the JVM exits without stopping the SPI, {@code false} by default.
+	 */
+	public void setShutdownHookEnabled(boolean shutdownHookEnabled) {
+		this.shutdownHookEnabled = shutdownHookEnabled;
+	}
+
+	public boolean isLeanLookups() {
+		return leanLookups;
+	}
+
+	/**
+	 * Streams health responses and extracts only addresses and ports instead of deserializing every node,
+	 * check and tag, reusing the address instances of the previous lookup. Requires the Consul URL.
+	 * 
+	 * @param leanLookups Whether lookups are lean, {@code false} by default.
+	 */
+	public void setLeanLookups(boolean leanLookups) {
+		this.leanLookups = leanLookups;
+	}
+
+	public int getDnsPort() {
+		return dnsPort;
+	}
+
+	/**
+	 * Looks addresses up through the Consul DNS interface, on the hosts of the Consul URLs, instead of the HTTP API:
+	 * a lookup is then a single UDP datagram each way (TCP if the answer is truncated) and a few bytes to parse.
+	 * SRV records list instances whose checks are not critical, so instances with warning checks are included.
+	 * Requires the Consul URL and the {@link ConsulRegistrationMode#PER_ADDRESS} registration mode, and allows
+	 * a single lookup tag, cluster name included, and no lookup filter. Past a few hundred instances, enable
+	 * {@code dns_config.enable_truncate} in Consul so that answers too large for UDP are retried over TCP rather
+	 * than trimmed. The watch mode keeps using the HTTP API.
+	 * 
+	 * @param dnsPort Port of the Consul DNS interface, usually {@code 8600}, {@code 0} (default) to use the HTTP API.
+	 */
+	public void setDnsPort(int dnsPort) {
+		A.ensure(dnsPort >= 0 && dnsPort <= 65535, "dnsPort >= 0 && dnsPort <= 65535");
+		
+		this.dnsPort = dnsPort;
+	}
+
+	public String getDnsDomain() {
+		return dnsDomain;
+	}
+
+	/**
+	 * @param dnsDomain Domain of the Consul DNS interface, {@link #DEFAULT_DNS_DOMAIN} by default.
+	 */
+	public void setDnsDomain(String dnsDomain) {
+		A.notNullOrEmpty(dnsDomain, "dnsDomain");
+		
+		this.dnsDomain = dnsDomain;
+	}
+
+	public int getSessionTtlSeconds() {
+		return sessionTtlSeconds;
+	}
+
+	/**
+	 * @param sessionTtlSeconds TTL of the session of the {@link ConsulRegistrationMode#KV KV} registration mode,
+	 *     in seconds, at least {@code 10}; {@link #DEFAULT_SESSION_TTL_SECONDS} by default. Consul deletes the keys
+	 *     of a node between one and two TTLs after it stops renewing its session.
+	 */
+	public void setSessionTtlSeconds(int sessionTtlSeconds) {
+		A.ensure(sessionTtlSeconds >= 10 && sessionTtlSeconds <= 86400,
+			"sessionTtlSeconds >= 10 && sessionTtlSeconds <= 86400");
+		
+		this.sessionTtlSeconds = sessionTtlSeconds;
+	}
+
+	public int getAgentCacheMaxAge() {
+		return agentCacheMaxAge;
+	}
+
+	/**
+	 * Serves lookups from the Consul agent cache ({@code ?cached}) with the given {@code Cache-Control: max-age}.
+	 * Requires the Consul URL; ignored with {@link ConsistencyMode#CONSISTENT} reads, which Consul never caches.
+	 * 
+	 * @param agentCacheMaxAge Max-age in seconds, {@code 0} (default) to bypass the agent cache.
+	 */
+	public void setAgentCacheMaxAge(int agentCacheMaxAge) {
+		A.ensure(agentCacheMaxAge >= 0, "agentCacheMaxAge >= 0");
+		
+		this.agentCacheMaxAge = agentCacheMaxAge;
+	}
+
 	public String getServiceName() {
 		return serviceName;
 	}
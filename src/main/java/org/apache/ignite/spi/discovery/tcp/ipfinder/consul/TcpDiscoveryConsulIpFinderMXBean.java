@@ -0,0 +1,70 @@
+package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
+
+import java.util.Map;
+
+import org.apache.ignite.mxbean.MXBeanDescription;
+import org.apache.ignite.mxbean.MXBeanParametersDescriptions;
+import org.apache.ignite.mxbean.MXBeanParametersNames;
+
+/**
+ * Management bean of {@link TcpDiscoveryConsulIpFinder}. Operations are named after {@link ConsulOperation}.
+ */
+@MXBeanDescription("MBean that provides access to Consul IP finder metrics.")
+public interface TcpDiscoveryConsulIpFinderMXBean {
+    /**
+     * @return Number of Consul calls by operation.
+     */
+    @MXBeanDescription("Number of Consul calls by operation.")
+    public Map<String, Long> getCallCounts();
+
+    /**
+     * @return Number of failed Consul calls by operation.
+     */
+    @MXBeanDescription("Number of failed Consul calls by operation.")
+    public Map<String, Long> getErrorCounts();
+
+    /**
+     * @return Average latency of Consul calls by operation, in milliseconds.
+     */
+    @MXBeanDescription("Average latency of Consul calls by operation, in milliseconds.")
+    public Map<String, Double> getAverageLatencies();
+
+    /**
+     * @return Upper bounds of the latency histogram buckets, in milliseconds; the last bucket is unbounded.
+     */
+    @MXBeanDescription("Upper bounds of the latency histogram buckets in milliseconds (the last bucket is unbounded).")
+    public long[] getLatencyHistogramBounds();
+
+    /**
+     * @param op Operation name.
+     * @return Number of calls per latency bucket.
+     */
+    @MXBeanDescription("Number of calls of an operation per latency bucket.")
+    @MXBeanParametersNames("op")
+    @MXBeanParametersDescriptions("Operation name, e.g. LOOKUP.")
+    public long[] latencyHistogram(String op);
+
+    /**
+     * @return Time since the addresses were last read from Consul, in milliseconds, or {@code -1} if never.
+     */
+    @MXBeanDescription("Time since the addresses were last read from Consul in milliseconds, -1 if never.")
+    public long getSnapshotAge();
+
+    /**
+     * @return Number of addresses last read from Consul.
+     */
+    @MXBeanDescription("Number of addresses last read from Consul.")
+    public int getAddressCount();
+
+    /**
+     * @return Share of lookups served without a Consul call of their own (watch snapshot or coalesced lookup).
+     */
+    @MXBeanDescription("Share of lookups served without a Consul call of their own.")
+    public double getCacheHitRatio();
+
+    /**
+     * Resets all metrics.
+     */
+    @MXBeanDescription("Resets all metrics.")
+    public void resetMetrics();
+}
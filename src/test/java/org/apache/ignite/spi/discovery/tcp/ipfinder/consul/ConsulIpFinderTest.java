@@ -1,31 +1,90 @@
 package org.apache.ignite.spi.discovery.tcp.ipfinder.consul;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.ignite.Ignite;
 import org.apache.ignite.configuration.IgniteConfiguration;
 import org.apache.ignite.events.Event;
 import org.apache.ignite.events.EventType;
+import org.apache.ignite.internal.IgniteInternalFuture;
 import org.apache.ignite.internal.util.lang.GridAbsPredicate;
 import org.apache.ignite.internal.util.typedef.internal.U;
 import org.apache.ignite.lang.IgniteBiPredicate;
+import org.apache.ignite.spi.IgniteSpiException;
 import org.apache.ignite.spi.discovery.tcp.TcpDiscoverySpi;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.vm.TcpDiscoveryVmIpFinder;
 import org.apache.ignite.testframework.GridTestUtils;
 import org.apache.ignite.testframework.junits.common.GridCommonAbstractTest;
 
 import com.orbitz.consul.Consul;
 import com.orbitz.consul.model.agent.ImmutableRegistration;
 import com.orbitz.consul.model.agent.Registration;
+import com.orbitz.consul.model.health.ImmutableNode;
+import com.orbitz.consul.model.health.ImmutableService;
+import com.orbitz.consul.model.health.ImmutableServiceHealth;
 import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ConsistencyMode;
 import com.pszymczyk.consul.ConsulProcess;
 import com.pszymczyk.consul.ConsulStarterBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 public class ConsulIpFinderTest extends GridCommonAbstractTest {
 
 	 private ConsulProcess consul;
+	 
+	 /** Whether started nodes use the watch mode. */
+	 private boolean watchEnabled;
+	 
+	 /** Whether started nodes batch registrations. */
+	 private boolean batchRegistration;
+	 
+	 /** Registration mode of started nodes. */
+	 private ConsulRegistrationMode registrationMode;
+	 
+	 /** TTL check of started nodes, in seconds. */
+	 private int checkTtlSeconds;
+	 
+	 /** Read consistency mode of started nodes. */
+	 private ConsistencyMode readConsistency;
+	 
+	 /** Agent cache max-age of started nodes, in seconds. */
+	 private int agentCacheMaxAge;
+	 
+	 /** Whether started nodes use lean lookups. */
+	 private boolean leanLookups;
+	 
+	 /** Reconciliation interval of started nodes, in milliseconds. */
+	 private long reconcileInterval;
+	 
+	 /** Whether started nodes initialize their finder eagerly. */
+	 private boolean eagerInit;
+	 
+	 /** Lookup subset size of started nodes. */
+	 private int subsetSize;
 
 
 	/**
@@ -41,6 +100,17 @@ public class ConsulIpFinderTest extends GridCommonAbstractTest {
         System.getProperties().remove(TcpDiscoveryConsulIpFinder.PROP_CONSUL_ADDRESS_KEY);
         System.getProperties().remove(TcpDiscoveryConsulIpFinder.PROP_CONSUL_PORT_KEY);
         
+        watchEnabled = false;
+        batchRegistration = false;
+        registrationMode = ConsulRegistrationMode.PER_ADDRESS;
+        checkTtlSeconds = 0;
+        readConsistency = ConsistencyMode.DEFAULT;
+        agentCacheMaxAge = 0;
+        leanLookups = false;
+        reconcileInterval = 0;
+        eagerInit = false;
+        subsetSize = 0;
+        
         consul = ConsulStarterBuilder.consulStarter().build().start();
     }
     
@@ -73,6 +143,18 @@ public class ConsulIpFinderTest extends GridCommonAbstractTest {
         	consulIpFinder.setConsul(Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build());
         }
 
+        consulIpFinder.setWatchEnabled(watchEnabled);
+        consulIpFinder.setWatchWaitSeconds(5);
+        consulIpFinder.setBatchRegistration(batchRegistration);
+        consulIpFinder.setRegistrationMode(registrationMode);
+        consulIpFinder.setCheckTtlSeconds(checkTtlSeconds);
+        consulIpFinder.setReadConsistency(readConsistency);
+        consulIpFinder.setAgentCacheMaxAge(agentCacheMaxAge);
+        consulIpFinder.setLeanLookups(leanLookups);
+        consulIpFinder.setReconcileInterval(reconcileInterval);
+        consulIpFinder.setEagerInit(eagerInit);
+        consulIpFinder.setSubsetSize(subsetSize);
+
         tcpDisco.setIpFinder(consulIpFinder);
 
         return configuration;
@@ -368,6 +450,1197 @@ public class ConsulIpFinderTest extends GridCommonAbstractTest {
     }
 
     
+    /**
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithWatchMode() throws Exception {
+    	watchEnabled = true;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithBatchRegistration() throws Exception {
+    	batchRegistration = true;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithPerNodeRegistration() throws Exception {
+    	registrationMode = ConsulRegistrationMode.PER_NODE;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * Checks that nodes fail over from an unreachable Consul endpoint to a working one.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testFailoverToSecondConsulEndpoint() throws Exception {
+        System.setProperty(TcpDiscoveryConsulIpFinder.PROP_CONSUL_ADDRESS_KEY,
+        	"http://127.0.0.1:1," + getConsulAddress() + ":" + consul.getHttpPort());
+        
+        startGrid(2);
+        startGrid(3);
+        
+        waitForRemoteNodes(grid(2), 1);
+        
+        assertEquals(2, grid(3).cluster().metrics().getTotalNodes());
+        
+        stopAllGrids();
+    }
+    
+    /**
+     * Hammers a single finder from many threads: lazy initialization, registration, lookup and unregistration
+     * interleave freely, then the finder is destroyed while lookups are still running.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testConcurrentRegistrationLookupAndShutdown() throws Exception {
+    	final TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	final int threads = 16;
+    	
+    	final AtomicInteger idx = new AtomicInteger();
+    	
+    	// Every thread races the lazy initialization, then churns its own address and finally keeps it.
+    	GridTestUtils.runMultiThreaded(new Callable<Object>() {
+    		@Override
+    		public Object call() throws Exception {
+    			Collection<InetSocketAddress> addr = Collections.singleton(
+    				new InetSocketAddress("10.0.0." + (idx.incrementAndGet()), 47500));
+    			
+    			for (int i = 0; i < 10; i++) {
+    				finder.registerAddresses(addr);
+    				
+    				assertNotNull(finder.getRegisteredAddresses());
+    				
+    				finder.unregisterAddresses(addr);
+    			}
+    			
+    			finder.initializeLocalAddresses(addr);
+    			
+    			return null;
+    		}
+    	}, threads, "consul-finder-churn");
+    	
+    	assertEquals(threads, finder.getRegisteredAddresses().size());
+    	
+    	final AtomicBoolean stop = new AtomicBoolean();
+    	
+    	IgniteInternalFuture<Long> lookups = GridTestUtils.runMultiThreadedAsync(new Callable<Object>() {
+    		@Override
+    		public Object call() throws Exception {
+    			while (!stop.get()) {
+    				try {
+    					finder.getRegisteredAddresses();
+    				}
+    				catch (IgniteSpiException ignored) {
+    					// Expected once the finder is destroyed.
+    				}
+    			}
+    			
+    			return null;
+    		}
+    	}, threads / 2, "consul-finder-lookup");
+    	
+    	U.sleep(500);
+    	
+    	finder.onSpiContextDestroyed();
+    	
+    	stop.set(true);
+    	
+    	lookups.get();
+    	
+    	Consul client = Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build();
+    	
+    	try {
+    		assertTrue(client.healthClient().getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+    			.getResponse().isEmpty());
+    	}
+    	finally {
+    		client.destroy();
+    	}
+    }
+    
+    /**
+     * Registers and unregisters many addresses through the asynchronous API.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testAsyncRegistration() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	List<InetSocketAddress> addrs = new ArrayList<>();
+    	
+    	for (int i = 1; i <= 20; i++)
+    		addrs.add(new InetSocketAddress("10.0.1." + i, 47500));
+    	
+    	try {
+    		finder.registerAddressesAsync(addrs).get(10, TimeUnit.SECONDS);
+    		
+    		assertEquals(20, finder.getRegisteredAddresses().size());
+    		
+    		finder.unregisterAddressesAsync(addrs).get(10, TimeUnit.SECONDS);
+    		
+    		assertTrue(finder.getRegisteredAddresses().isEmpty());
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that instance IDs are built from literal addresses, and that the instances of the local addresses
+     * registered under legacy host-name based IDs are replaced on startup, those of other nodes being left alone.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testLegacyInstanceIdMigration() throws Exception {
+    	final Consul client = Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build();
+    	
+    	InetSocketAddress addr = new InetSocketAddress("10.0.14.1", 47500);
+    	InetSocketAddress addr6 = new InetSocketAddress("2001:db8::1", 47500);
+    	
+    	client.agentClient().register(ImmutableRegistration.builder()
+    		.name(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+    		.address("10.0.14.1")
+    		.port(47500)
+    		.id("legacy-host:10.0.14.1:47500")
+    		.build());
+    	
+    	client.agentClient().register(ImmutableRegistration.builder()
+    		.name(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+    		.address("10.0.14.2")
+    		.port(47500)
+    		.id("other-host:10.0.14.2:47500")
+    		.build());
+    	
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(true);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	try {
+    		finder.initializeLocalAddresses(Arrays.asList(addr, addr6));
+    		
+    		assertTrue(GridTestUtils.waitForCondition(new GridAbsPredicate() {
+    			@Override public boolean apply() {
+    				return !client.agentClient().getServices().containsKey("legacy-host:10.0.14.1:47500");
+    			}
+    		}, 10_000));
+    		
+    		Set<String> ids = client.agentClient().getServices().keySet();
+    		
+    		assertTrue(ids.toString(), ids.contains("10.0.14.1:47500"));
+    		assertTrue(ids.toString(), ids.contains("[2001:db8:0:0:0:0:0:1]:47500"));
+    		assertTrue(ids.toString(), ids.contains("other-host:10.0.14.2:47500"));
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    		
+    		client.agentClient().deregister("other-host:10.0.14.2:47500");
+    		client.destroy();
+    	}
+    }
+    
+    /**
+     * Checks that subsetting returns a stable subset per node, with anchors shared by all nodes.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testSubsetLookups() throws Exception {
+    	List<InetSocketAddress> addrs = new ArrayList<>();
+    	
+    	for (int i = 1; i <= 20; i++)
+    		addrs.add(new InetSocketAddress("10.0.4." + i, 47500));
+    	
+    	TcpDiscoveryConsulIpFinder finder1 = subsetFinder(addrs.get(0));
+    	TcpDiscoveryConsulIpFinder finder2 = subsetFinder(addrs.get(1));
+    	
+    	try {
+    		finder1.registerAddresses(addrs);
+    		
+    		Collection<InetSocketAddress> subset1 = finder1.getRegisteredAddresses();
+    		Collection<InetSocketAddress> subset2 = finder2.getRegisteredAddresses();
+    		
+    		assertEquals(5, subset1.size());
+    		assertEquals(5, subset2.size());
+    		assertTrue(addrs.containsAll(subset1));
+    		assertEquals(subset1, finder1.getRegisteredAddresses());
+    		
+    		Set<InetSocketAddress> shared = new HashSet<>(subset1);
+    		
+    		shared.retainAll(subset2);
+    		
+    		assertTrue("Anchors are not shared: " + shared, shared.size() >= 2);
+    		
+    		finder1.unregisterAddresses(addrs);
+    	}
+    	finally {
+    		finder1.onSpiContextDestroyed();
+    		finder2.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that only joining nodes get subsets, the IP finder cleaner of the coordinator seeing all addresses.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testSubsetNotAppliedOnceJoined() throws Exception {
+    	subsetSize = 1;
+    	
+    	List<InetSocketAddress> stale = Arrays.asList(new InetSocketAddress("10.0.15.1", 47500),
+    		new InetSocketAddress("10.0.15.2", 47500), new InetSocketAddress("10.0.15.3", 47500));
+    	
+    	TcpDiscoveryConsulIpFinder joining = subsetFinder(stale.get(0));
+    	
+    	try {
+    		joining.registerAddresses(stale);
+    		
+    		startGrids(2);
+    		
+    		waitForRemoteNodes(grid(0), 1);
+    		
+    		// Not joined.
+    		assertEquals(5, joining.getRegisteredAddresses().size());
+    		
+    		TcpDiscoveryConsulIpFinder joined = (TcpDiscoveryConsulIpFinder)((TcpDiscoverySpi)grid(0).configuration()
+    			.getDiscoverySpi()).getIpFinder();
+    		
+    		Collection<InetSocketAddress> all = joined.getRegisteredAddresses();
+    		
+    		// Stale addresses and those of both nodes.
+    		assertTrue(all.containsAll(stale));
+    		assertTrue(all.size() >= stale.size() + 2);
+    		
+    		joining.unregisterAddresses(stale);
+    	}
+    	finally {
+    		joining.onSpiContextDestroyed();
+    		
+    		stopAllGrids();
+    	}
+    }
+    
+    /**
+     * @param locAddr Local address of the node.
+     * @return Finder returning subsets of 5 addresses.
+     */
+    private TcpDiscoveryConsulIpFinder subsetFinder(InetSocketAddress locAddr) {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	finder.setSubsetSize(5);
+    	finder.setSubsetAnchors(2);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	Set<InetSocketAddress> myAddrs = GridTestUtils.getFieldValue(finder, "myAddresses");
+    	
+    	myAddrs.add(locAddr);
+    	
+    	return finder;
+    }
+    
+    /**
+     * Checks that proximity probing drops addresses that refuse connections.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testProximityProbe() throws Exception {
+    	InetSocketAddress closed;
+    	
+    	try (ServerSocket sock = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+    		closed = new InetSocketAddress(InetAddress.getLoopbackAddress(), sock.getLocalPort());
+    	}
+    	
+    	try (ServerSocket sock = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+    		InetSocketAddress open = new InetSocketAddress(InetAddress.getLoopbackAddress(), sock.getLocalPort());
+    		
+    		TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    		
+    		finder.setConsulAddres(getConsulAddress());
+    		finder.setConsulPort(consul.getHttpPort());
+    		finder.setLegacyIdCleanup(false);
+    		finder.setProximityOrdering(true);
+    		finder.setProximityProbeTimeout(1000);
+    		
+    		GridTestUtils.setFieldValue(finder, "log", log());
+    		
+    		try {
+    			finder.registerAddresses(Arrays.asList(closed, open));
+    			
+    			assertEquals(Collections.singleton(open), new HashSet<>(finder.getRegisteredAddresses()));
+    			
+    			finder.unregisterAddresses(Arrays.asList(closed, open));
+    		}
+    		finally {
+    			finder.onSpiContextDestroyed();
+    		}
+    	}
+    }
+    
+    /**
+     * Checks that proximity ordering narrows lookups of joining nodes down to the nearest addresses.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testProximityCandidates() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	finder.setProximityOrdering(true);
+    	finder.setProximityCandidates(2);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	List<InetSocketAddress> addrs = new ArrayList<>();
+    	
+    	for (int i = 1; i <= 4; i++)
+    		addrs.add(new InetSocketAddress("10.0.16." + i, 47500));
+    	
+    	try {
+    		finder.registerAddresses(addrs);
+    		
+    		Collection<InetSocketAddress> nearest = finder.getRegisteredAddresses();
+    		
+    		assertEquals(2, nearest.size());
+    		assertTrue(addrs.containsAll(nearest));
+    		
+    		finder.unregisterAddresses(addrs);
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that lookups merge remote datacenters and do not fail because of an unreachable one.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testRemoteDatacenters() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	finder.setRetryCount(0);
+    	// The embedded agent is dc1, queried here as a remote datacenter as well.
+    	finder.setDatacenters(Arrays.asList("dc1", "unknown-dc"));
+    	finder.setDatacenterTimeout(2000);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	List<InetSocketAddress> addrs = Arrays.asList(new InetSocketAddress("10.0.5.1", 47500),
+    		new InetSocketAddress("10.0.5.2", 47500));
+    	
+    	try {
+    		finder.registerAddresses(addrs);
+    		
+    		long start = U.currentTimeMillis();
+    		
+    		assertEquals(new HashSet<>(addrs), new HashSet<>(finder.getRegisteredAddresses()));
+    		
+    		assertTrue(U.currentTimeMillis() - start < 5000);
+    		
+    		finder.unregisterAddresses(addrs);
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that clusters sharing a service name only see their own instances.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testClustersSharingServiceName() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder1 = clusterFinder("cluster1");
+    	TcpDiscoveryConsulIpFinder finder2 = clusterFinder("cluster2");
+    	
+    	List<InetSocketAddress> addrs1 = Arrays.asList(new InetSocketAddress("10.0.6.1", 47500),
+    		new InetSocketAddress("10.0.6.2", 47500));
+    	
+    	List<InetSocketAddress> addrs2 = Collections.singletonList(new InetSocketAddress("10.0.6.3", 47500));
+    	
+    	try {
+    		finder1.registerAddresses(addrs1);
+    		finder2.registerAddresses(addrs2);
+    		
+    		assertEquals(new HashSet<>(addrs1), new HashSet<>(finder1.getRegisteredAddresses()));
+    		assertEquals(new HashSet<>(addrs2), new HashSet<>(finder2.getRegisteredAddresses()));
+    		
+    		finder1.unregisterAddresses(addrs1);
+    		finder2.unregisterAddresses(addrs2);
+    	}
+    	finally {
+    		finder1.onSpiContextDestroyed();
+    		finder2.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * @param clusterName Cluster name.
+     * @return Finder of the cluster.
+     */
+    private TcpDiscoveryConsulIpFinder clusterFinder(String clusterName) {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	finder.setClusterName(clusterName);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	return finder;
+    }
+    
+    /**
+     * Checks that addresses are served from the cache file while Consul is down.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testCacheFileWhenConsulIsDown() throws Exception {
+    	File cacheFile = File.createTempFile("consul-ip-finder", ".cache");
+    	
+    	assertTrue(cacheFile.delete());
+    	
+    	List<InetSocketAddress> addrs = Arrays.asList(new InetSocketAddress("10.0.7.1", 47500),
+    		new InetSocketAddress("10.0.7.2", 47500));
+    	
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	finder.setCacheFile(cacheFile.getPath());
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	try {
+    		finder.registerAddresses(addrs);
+    		
+    		assertEquals(new HashSet<>(addrs), new HashSet<>(finder.getRegisteredAddresses()));
+    		
+    		finder.unregisterAddresses(addrs);
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    	
+    	assertTrue(cacheFile.exists());
+    	
+    	int closedPort;
+    	
+    	try (ServerSocket sock = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+    		closedPort = sock.getLocalPort();
+    	}
+    	
+    	TcpDiscoveryConsulIpFinder offline = new TcpDiscoveryConsulIpFinder();
+    	
+    	offline.setConsulAddres("http://127.0.0.1");
+    	offline.setConsulPort(closedPort);
+    	offline.setRetryCount(0);
+    	offline.setCacheFile(cacheFile.getPath());
+    	
+    	GridTestUtils.setFieldValue(offline, "log", log());
+    	
+    	try {
+    		// Served from the file, first while the startup read runs, then once it failed.
+    		assertEquals(new HashSet<>(addrs), new HashSet<>(offline.getRegisteredAddresses()));
+    		
+    		U.sleep(1000);
+    		
+    		assertEquals(new HashSet<>(addrs), new HashSet<>(offline.getRegisteredAddresses()));
+    	}
+    	finally {
+    		offline.onSpiContextDestroyed();
+    		
+    		cacheFile.delete();
+    	}
+    }
+    
+    /**
+     * Checks that lookups fail fast and use the fallback IP finder while Consul is down.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testCircuitBreakerWithFallbackIpFinder() throws Exception {
+    	int closedPort;
+    	
+    	try (ServerSocket sock = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+    		closedPort = sock.getLocalPort();
+    	}
+    	
+    	TcpDiscoveryVmIpFinder fallback = new TcpDiscoveryVmIpFinder();
+    	
+    	fallback.setAddresses(Collections.singleton("127.0.0.1:47500"));
+    	
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres("http://127.0.0.1");
+    	finder.setConsulPort(closedPort);
+    	finder.setRetryCount(0);
+    	finder.setCircuitBreakerThreshold(2);
+    	finder.setCircuitBreakerOpenTime(60_000);
+    	finder.setFallbackIpFinder(fallback);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	try {
+    		Collection<InetSocketAddress> expected = Collections.singleton(new InetSocketAddress("127.0.0.1", 47500));
+    		
+    		for (int i = 0; i < 2; i++)
+    			assertEquals(expected, new HashSet<>(finder.getRegisteredAddresses()));
+    		
+    		ConsulEndpoints endpoints = GridTestUtils.getFieldValue(finder, "endpoints");
+    		
+    		assertTrue(endpoints.breaker().isOpen());
+    		
+    		long calls = finder.getMetrics().getCallCounts().get(ConsulOperation.LOOKUP.name());
+    		long errs = finder.getMetrics().getErrorCounts().get(ConsulOperation.LOOKUP.name());
+    		
+    		assertEquals(expected, new HashSet<>(finder.getRegisteredAddresses()));
+    		
+    		// Rejected by the breaker.
+    		assertEquals(calls + 1, (long)finder.getMetrics().getCallCounts().get(ConsulOperation.LOOKUP.name()));
+    		assertEquals(errs + 1, (long)finder.getMetrics().getErrorCounts().get(ConsulOperation.LOOKUP.name()));
+    		assertTrue(endpoints.breaker().isOpen());
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that HTTP 429 on a raw HTTP path backs off instead of marking the endpoint down.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testThrottledLeanLookup() throws Exception {
+    	final Collection<String> paths = new ConcurrentLinkedQueue<>();
+    	
+    	HttpServer srv = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    	
+    	srv.createContext("/", new HttpHandler() {
+    		@Override
+    		public void handle(HttpExchange exchange) throws IOException {
+    			paths.add(exchange.getRequestURI().getPath());
+    			
+    			exchange.sendResponseHeaders(429, -1);
+    			exchange.close();
+    		}
+    	});
+    	
+    	srv.start();
+    	
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres("http://127.0.0.1");
+    	finder.setConsulPort(srv.getAddress().getPort());
+    	finder.setLeanLookups(true);
+    	finder.setRetryCount(1);
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	try {
+    		try {
+    			finder.getRegisteredAddresses();
+    		}
+    		catch (IgniteSpiException ignored) {
+    			// Expected: Consul never stops throttling.
+    		}
+    		
+    		assertTrue(paths.toString(), paths.contains("/v1/health/service/" + finder.getServiceName()));
+    		
+    		ConsulEndpoints endpoints = GridTestUtils.getFieldValue(finder, "endpoints");
+    		
+    		for (ConsulEndpoints.Endpoint ep : endpoints.all()) {
+    			assertEquals(0, ep.failures);
+    			assertEquals(0, ep.downUntil);
+    		}
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    		
+    		srv.stop(0);
+    	}
+    }
+    
+    /**
+     * Checks that lean and regular lookups both fall back to the node address for instances registered without
+     * a service address.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testEmptyServiceAddress() throws Exception {
+    	String json = "[{\"Node\":{\"Node\":\"n1\",\"Address\":\"10.0.14.1\"}," +
+    		"\"Service\":{\"ID\":\"s1\",\"Service\":\"ignite\",\"Address\":\"\",\"Port\":47500,\"Tags\":[]}," +
+    		"\"Checks\":[]}]";
+    	
+    	Collection<InetSocketAddress> expected = Collections.singleton(new InetSocketAddress("10.0.14.1", 47500));
+    	
+    	assertEquals(expected, new HashSet<>(new ConsulHealthParser().parse(new StringReader(json))));
+    	
+    	ServiceHealth sh = ImmutableServiceHealth.builder()
+    		.node(ImmutableNode.builder().node("n1").address("10.0.14.1").build())
+    		.service(ImmutableService.builder().id("s1").service("ignite").address("").port(47500).build())
+    		.build();
+    	
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	assertEquals(expected, new HashSet<>(finder.toAddresses(Collections.singletonList(sh))));
+    }
+    
+    /**
+     * Checks lookups through the Consul DNS interface.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testDnsLookups() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = clusterFinder("dns");
+    	TcpDiscoveryConsulIpFinder dnsFinder = clusterFinder("dns");
+    	
+    	dnsFinder.setDnsPort(consul.getDnsPort());
+    	
+    	List<InetSocketAddress> addrs = Arrays.asList(new InetSocketAddress("10.0.10.1", 47500),
+    		new InetSocketAddress("10.0.10.2", 47501));
+    	
+    	try {
+    		assertTrue(dnsFinder.getRegisteredAddresses().isEmpty());
+    		
+    		finder.registerAddresses(addrs);
+    		
+    		Collection<InetSocketAddress> res = dnsFinder.getRegisteredAddresses();
+    		
+    		assertEquals(new HashSet<>(addrs), new HashSet<>(res));
+    		
+    		// Unchanged answers are the same instance.
+    		assertSame(res, dnsFinder.getRegisteredAddresses());
+    		
+    		finder.unregisterAddresses(addrs.subList(0, 1));
+    		
+    		assertEquals(Collections.singleton(addrs.get(1)), new HashSet<>(dnsFinder.getRegisteredAddresses()));
+    		
+    		finder.unregisterAddresses(addrs.subList(1, 2));
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    		dnsFinder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that only lookups of finders with the same query options are coalesced.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testLookupKeys() throws Exception {
+    	List<TcpDiscoveryConsulIpFinder> finders = new ArrayList<>();
+    	
+    	for (int i = 0; i < 7; i++)
+    		finders.add(clusterFinder("lookup"));
+    	
+    	finders.get(1).setReadConsistency(ConsistencyMode.STALE);
+    	finders.get(2).setProximityOrdering(true);
+    	finders.get(3).setLeanLookups(true);
+    	finders.get(4).setAclToken("secret-token");
+    	finders.get(5).setAclToken("other-token");
+    	
+    	try {
+    		Set<String> keys = new HashSet<>();
+    		
+    		for (TcpDiscoveryConsulIpFinder finder : finders) {
+    			finder.getRegisteredAddresses();
+    			
+    			keys.add(GridTestUtils.<String>getFieldValue(finder, "lookupKey"));
+    		}
+    		
+    		// The last finder shares the lookups of the first one.
+    		assertEquals(finders.size() - 1, keys.size());
+    		
+    		for (String key : keys)
+    			assertFalse(key, key.contains("secret-token"));
+    	}
+    	finally {
+    		for (TcpDiscoveryConsulIpFinder finder : finders)
+    			finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that finders using the same endpoint share their client until the last one stops, and that
+     * explicit clients are left open.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testSharedTransport() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder1 = clusterFinder("transport");
+    	TcpDiscoveryConsulIpFinder finder2 = clusterFinder("transport");
+    	TcpDiscoveryConsulIpFinder other = clusterFinder("transport");
+    	TcpDiscoveryConsulIpFinder injected = clusterFinder("transport");
+    	
+    	other.setReadTimeout(5000);
+    	
+    	Consul client = Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build();
+    	
+    	injected.setConsul(client);
+    	
+    	InetSocketAddress addr = new InetSocketAddress("10.0.13.1", 47500);
+    	
+    	try {
+    		finder1.registerAddresses(Collections.singleton(addr));
+    		
+    		assertTrue(finder2.getRegisteredAddresses().contains(addr));
+    		assertTrue(other.getRegisteredAddresses().contains(addr));
+    		assertTrue(injected.getRegisteredAddresses().contains(addr));
+    		
+    		assertSame(finder1.getConsul(), finder2.getConsul());
+    		assertNotSame(finder1.getConsul(), other.getConsul());
+    		
+    		finder1.unregisterAddresses(Collections.singleton(addr));
+    		
+    		finder1.onSpiContextDestroyed();
+    		
+    		// Still open for the second finder.
+    		assertFalse(finder2.getRegisteredAddresses().contains(addr));
+    		
+    		injected.onSpiContextDestroyed();
+    		
+    		assertTrue(client.healthClient().getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+    			.getResponse().isEmpty());
+    		
+    		ConsulEndpoints endpoints = GridTestUtils.getFieldValue(finder2, "endpoints");
+    		
+    		final ConsulTransport transport = endpoints.all().get(0).transport;
+    		
+    		finder2.onSpiContextDestroyed();
+    		
+    		// Closed with the last finder, it must not build a client that nobody would destroy.
+    		GridTestUtils.assertThrows(log, new Callable<Object>() {
+    			@Override
+    			public Object call() {
+    				return transport.client();
+    			}
+    		}, IllegalStateException.class, null);
+    	}
+    	finally {
+    		finder1.onSpiContextDestroyed();
+    		finder2.onSpiContextDestroyed();
+    		other.onSpiContextDestroyed();
+    		injected.onSpiContextDestroyed();
+    		
+    		client.destroy();
+    	}
+    }
+    
+    /**
+     * Checks that address listeners receive the changes pushed by the watcher, in order.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testAddressListener() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = clusterFinder("lsnr");
+    	TcpDiscoveryConsulIpFinder watching = clusterFinder("lsnr");
+    	
+    	watching.setWatchEnabled(true);
+    	
+    	final BlockingQueue<List<Collection<InetSocketAddress>>> changes = new LinkedBlockingQueue<>();
+    	
+    	watching.addAddressListener(new ConsulAddressListener() {
+    		@Override
+    		public void onAddressesChanged(Collection<InetSocketAddress> added, Collection<InetSocketAddress> removed) {
+    			changes.add(Arrays.asList(added, removed));
+    		}
+    	});
+    	
+    	InetSocketAddress addr1 = new InetSocketAddress("10.0.12.1", 47500);
+    	InetSocketAddress addr2 = new InetSocketAddress("10.0.12.2", 47500);
+    	
+    	try {
+    		finder.registerAddresses(Collections.singleton(addr1));
+    		
+    		// Starts the watcher, no lookup is needed afterwards.
+    		watching.getRegisteredAddresses();
+    		
+    		List<Collection<InetSocketAddress>> change = changes.poll(10, TimeUnit.SECONDS);
+    		
+    		assertNotNull(change);
+    		assertEquals(Collections.singleton(addr1), new HashSet<>(change.get(0)));
+    		assertTrue(change.get(1).isEmpty());
+    		
+    		finder.registerAddresses(Collections.singleton(addr2));
+    		finder.unregisterAddresses(Collections.singleton(addr1));
+    		
+    		Set<InetSocketAddress> added = new HashSet<>();
+    		Set<InetSocketAddress> removed = new HashSet<>();
+    		
+    		while (!removed.contains(addr1)) {
+    			change = changes.poll(10, TimeUnit.SECONDS);
+    			
+    			assertNotNull(change);
+    			
+    			added.addAll(change.get(0));
+    			removed.addAll(change.get(1));
+    		}
+    		
+    		assertEquals(Collections.singleton(addr2), added);
+    		assertEquals(Collections.singleton(addr1), removed);
+    		
+    		finder.unregisterAddresses(Collections.singleton(addr2));
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    		watching.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks the KV registration mode, including the removal of the keys of a node that stopped renewing
+     * its session.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testKvRegistrationMode() throws Exception {
+    	final TcpDiscoveryConsulIpFinder finder = clusterFinder("kv");
+    	TcpDiscoveryConsulIpFinder dead = clusterFinder("kv");
+    	
+    	finder.setRegistrationMode(ConsulRegistrationMode.KV);
+    	dead.setRegistrationMode(ConsulRegistrationMode.KV);
+    	dead.setSessionTtlSeconds(10);
+    	
+    	List<InetSocketAddress> addrs = Arrays.asList(new InetSocketAddress("10.0.11.1", 47500),
+    		new InetSocketAddress("10.0.11.2", 47500));
+    	
+    	final InetSocketAddress deadAddr = new InetSocketAddress("10.0.11.3", 47500);
+    	
+    	try {
+    		assertTrue(finder.getRegisteredAddresses().isEmpty());
+    		
+    		finder.registerAddresses(addrs);
+    		dead.registerAddresses(Collections.singleton(deadAddr));
+    		
+    		Set<InetSocketAddress> all = new HashSet<>(addrs);
+    		
+    		all.add(deadAddr);
+    		
+    		assertEquals(all, new HashSet<>(finder.getRegisteredAddresses()));
+    		
+    		// Unchanged keys give the same instance.
+    		assertSame(finder.getRegisteredAddresses(), finder.getRegisteredAddresses());
+    		
+    		finder.unregisterAddresses(addrs.subList(0, 1));
+    		
+    		assertFalse(finder.getRegisteredAddresses().contains(addrs.get(0)));
+    		
+    		// The node dies: its session is no longer renewed.
+    		((ScheduledFuture<?>)GridTestUtils.getFieldValue(dead, "heartbeat")).cancel(false);
+    		
+    		assertTrue(GridTestUtils.waitForCondition(new GridAbsPredicate() {
+    			@Override public boolean apply() {
+    				return !finder.getRegisteredAddresses().contains(deadAddr);
+    			}
+    		}, 40_000));
+    		
+    		assertEquals(Collections.singleton(addrs.get(1)), new HashSet<>(finder.getRegisteredAddresses()));
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    		dead.onSpiContextDestroyed();
+    	}
+    	
+    	TcpDiscoveryConsulIpFinder reader = clusterFinder("kv");
+    	
+    	reader.setRegistrationMode(ConsulRegistrationMode.KV);
+    	
+    	try {
+    		// Keys left are deleted along with the session.
+    		assertTrue(reader.getRegisteredAddresses().isEmpty());
+    	}
+    	finally {
+    		reader.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that the reconciler removes the instances of a node that left without unregistering, and only those
+     * it can match with a node.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testReconcilerRemovesOrphanedInstances() throws Exception {
+    	reconcileInterval = 1000;
+    	
+    	final Consul consulClient = Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build();
+    	
+    	startGrids(2);
+    	
+    	waitForRemoteNodes(grid(0), 1);
+    	
+    	final int live = consulClient.healthClient().getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+    		.getResponse().size();
+    	
+    	// Instance of a node that died without unregistering.
+    	TcpDiscoveryConsulIpFinder dead = new TcpDiscoveryConsulIpFinder();
+    	
+    	dead.setConsulAddres(getConsulAddress());
+    	dead.setConsulPort(consul.getHttpPort());
+    	dead.setLegacyIdCleanup(false);
+    	dead.setServiceTags(Collections.singleton(TcpDiscoveryConsulIpFinder.NODE_TAG_PREFIX + UUID.randomUUID()));
+    	
+    	GridTestUtils.setFieldValue(dead, "log", log());
+    	
+    	// Instance no node can be matched with, e.g. registered by an older version.
+    	TcpDiscoveryConsulIpFinder unknown = new TcpDiscoveryConsulIpFinder();
+    	
+    	unknown.setConsulAddres(getConsulAddress());
+    	unknown.setConsulPort(consul.getHttpPort());
+    	unknown.setLegacyIdCleanup(false);
+    	
+    	GridTestUtils.setFieldValue(unknown, "log", log());
+    	
+    	try {
+    		dead.registerAddresses(Collections.singleton(new InetSocketAddress("10.0.9.1", 47500)));
+    		unknown.registerAddresses(Collections.singleton(new InetSocketAddress("10.0.9.2", 47500)));
+    	}
+    	finally {
+    		dead.onSpiContextDestroyed();
+    		unknown.onSpiContextDestroyed();
+    	}
+    	
+    	assertEquals(live + 2, consulClient.healthClient()
+    		.getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME).getResponse().size());
+    	
+    	assertTrue(GridTestUtils.waitForCondition(new GridAbsPredicate() {
+    		@Override public boolean apply() {
+    			return live + 1 == consulClient.healthClient()
+    				.getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME).getResponse().size();
+    		}
+    	}, 20_000));
+    	
+    	// Live nodes and instances of unknown nodes are left alone.
+    	U.sleep(3000);
+    	
+    	List<ServiceHealth> left = consulClient.healthClient()
+    		.getAllServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME).getResponse();
+    	
+    	assertEquals(live + 1, left.size());
+    	
+    	boolean unknownLeft = false;
+    	
+    	for (ServiceHealth sh : left)
+    		unknownLeft |= sh.getService().getId().equals("10.0.9.2:47500");
+    	
+    	assertTrue(unknownLeft);
+    	
+    	stopAllGrids();
+    }
+    
+    /**
+     * Checks metrics and the metrics hook.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testMetrics() throws Exception {
+    	TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    	
+    	finder.setConsulAddres(getConsulAddress());
+    	finder.setConsulPort(consul.getHttpPort());
+    	finder.setLegacyIdCleanup(false);
+    	
+    	final AtomicInteger hookCalls = new AtomicInteger();
+    	
+    	finder.setMetricsHook(new ConsulMetricsHook() {
+    		@Override
+    		public void onOperation(ConsulOperation op, long durationNanos, Throwable err) {
+    			hookCalls.incrementAndGet();
+    		}
+    	});
+    	
+    	GridTestUtils.setFieldValue(finder, "log", log());
+    	
+    	TcpDiscoveryConsulIpFinderMXBean metrics = finder.getMetrics();
+    	
+    	try {
+    		assertEquals(-1, metrics.getSnapshotAge());
+    		
+    		finder.registerAddresses(Arrays.asList(new InetSocketAddress("10.0.3.1", 47500),
+    			new InetSocketAddress("10.0.3.2", 47500)));
+    		
+    		assertEquals(2, finder.getRegisteredAddresses().size());
+    		
+    		assertEquals(2, (long)metrics.getCallCounts().get(ConsulOperation.REGISTER.name()));
+    		assertEquals(0, (long)metrics.getErrorCounts().get(ConsulOperation.REGISTER.name()));
+    		assertEquals(2, metrics.getAddressCount());
+    		assertTrue(metrics.getSnapshotAge() >= 0);
+    		
+    		long lookups = metrics.getCallCounts().get(ConsulOperation.LOOKUP.name());
+    		
+    		assertTrue(lookups >= 2);
+    		
+    		long inHistogram = 0;
+    		
+    		for (long cnt : metrics.latencyHistogram(ConsulOperation.LOOKUP.name()))
+    			inHistogram += cnt;
+    		
+    		assertEquals(lookups, inHistogram);
+    		assertEquals(metrics.getLatencyHistogramBounds().length + 1,
+    			metrics.latencyHistogram(ConsulOperation.LOOKUP.name()).length);
+    		
+    		assertEquals(lookups + 2, hookCalls.get());
+    		
+    		metrics.resetMetrics();
+    		
+    		assertEquals(0, (long)metrics.getCallCounts().get(ConsulOperation.LOOKUP.name()));
+    	}
+    	finally {
+    		finder.onSpiContextDestroyed();
+    	}
+    }
+    
+    /**
+     * Checks that shutdown does not wait past the shutdown timeout for a Consul that does not answer.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testShutdownTimeoutWithUnresponsiveConsul() throws Exception {
+    	// Accepts connections but never answers.
+    	try (ServerSocket blackhole = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+    		TcpDiscoveryConsulIpFinder finder = new TcpDiscoveryConsulIpFinder();
+    		
+    		finder.setConsulAddres("http://127.0.0.1");
+    		finder.setConsulPort(blackhole.getLocalPort());
+    		finder.setShutdownTimeout(1000);
+    		
+    		GridTestUtils.setFieldValue(finder, "log", log());
+    		
+    		Set<InetSocketAddress> myAddrs = GridTestUtils.getFieldValue(finder, "myAddresses");
+    		
+    		myAddrs.add(new InetSocketAddress("10.0.2.1", 47500));
+    		
+    		long start = U.currentTimeMillis();
+    		
+    		finder.onSpiContextDestroyed();
+    		
+    		long dur = U.currentTimeMillis() - start;
+    		
+    		assertTrue("Shutdown took " + dur + " ms", dur < 5000);
+    	}
+    }
+    
+    /**
+     * Checks that heartbeats keep TTL-checked instances passing well beyond their TTL.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithTtlChecks() throws Exception {
+    	checkTtlSeconds = 2;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * Checks discovery with stale reads served from the agent cache.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithStaleCachedReads() throws Exception {
+    	readConsistency = ConsistencyMode.STALE;
+    	agentCacheMaxAge = 1;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * Checks discovery with lean lookups, for both per-address and per-node instances.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithLeanLookups() throws Exception {
+    	leanLookups = true;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    	
+    	registrationMode = ConsulRegistrationMode.PER_NODE;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * Checks discovery with finders initialized as soon as the discovery SPI starts.
+     * 
+     * @throws Exception If failed.
+     */
+    public void testFourNodesWithEagerInit() throws Exception {
+    	eagerInit = true;
+    	
+    	checkFourNodesRegisterAndUnregister();
+    }
+    
+    /**
+     * Starts four nodes configured through system properties, checks they are registered in Consul
+     * and gone once stopped.
+     * 
+     * @throws Exception If failed.
+     */
+    private void checkFourNodesRegisterAndUnregister() throws Exception {
+    	Consul consulClient = Consul.builder().withUrl(getConsulAddress() + ":" + consul.getHttpPort()).build();
+    	
+        System.setProperty(TcpDiscoveryConsulIpFinder.PROP_CONSUL_ADDRESS_KEY, getConsulAddress());
+        System.setProperty(TcpDiscoveryConsulIpFinder.PROP_CONSUL_PORT_KEY, consul.getHttpPort() + "");
+        startGrids(4);
+
+        // wait until all grids are started
+        waitForRemoteNodes(grid(0), 3);
+
+        assertEquals(4, grid(3).cluster().metrics().getTotalNodes());
+
+        // outlive the TTL, so that only heartbeats keep the instances passing
+        if (checkTtlSeconds > 0)
+        	U.sleep(3 * checkTtlSeconds * 1000L);
+
+        assertEquals(4, consulClient
+				.healthClient()
+				.getHealthyServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+				.getResponse().size());
+
+        stopAllGrids();
+
+        assertEquals(0, consulClient
+				.healthClient()
+				.getHealthyServiceInstances(TcpDiscoveryConsulIpFinder.SERVICE_NAME)
+				.getResponse().size());
+    }
+    
     /**
      * @param ignite Node.
      * @param joinEvtCnt Expected events number.